@@ -116,8 +116,9 @@ public class Aggregate extends Operator {
                 break;
         }
         opIterator.rewind();
-        while(opIterator.hasNext()){
-            aggregator.mergeTupleIntoGroup(opIterator.next());
+        TupleBatch batch;
+        while((batch = opIterator.nextBatch()) != null){
+            aggregator.mergeBatchIntoGroup(batch);
         }
         op = aggregator.iterator();
         op.open();
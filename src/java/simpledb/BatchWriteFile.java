@@ -0,0 +1,23 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A DbFile that can write a run of adjacent pages in a single write.  The
+ * BufferPool flushes dirty pages in page-number order and hands each run of
+ * consecutive pages to {@link #writePages}.
+ *
+ * @see BufferPool#flushAllPages
+ */
+public interface BatchWriteFile extends DbFile {
+
+    /**
+     * Write pages that are stored next to each other in this file, in file
+     * order, with one write.
+     *
+     * @param run the pages to write; each page directly follows the one
+     *        before it in the file
+     */
+    public void writePages(List<Page> run) throws IOException;
+}
@@ -3,8 +3,18 @@ package simpledb;
 import java.io.*;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -16,8 +26,38 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Cached pages live in a striped {@link PageTable}; looking up, loading,
+ * evicting and discarding pages only latches the stripe of the page
+ * involved, so threads working on different pages do not serialize on the
+ * BufferPool monitor.  Hits are handed to the eviction policy in batches for
+ * the same reason.  Each page is read from disk by one thread at a time;
+ * other threads missing on the same page wait for that read.
+ * <p>
+ * Sequential scans are read ahead by the {@link Prefetcher}.
+ * <p>
+ * Dirty pages are written in batches, sorted by file and page number, with
+ * each run of adjacent pages going out in a single write.  A background
+ * {@link PageWriter} writes back pages of completed transactions, so that
+ * evictions and checkpoints find them clean.
+ * <p>
+ * Every page write of a transaction the {@link LogFile} knows as running is
+ * logged, and no page goes to disk before the log is durable up to the
+ * page's LSN.  By default the
+ * pool runs NO-STEAL/FORCE: pages of running transactions are never
+ * evicted, and a commit writes the transaction's pages.  With
+ * {@link #setSteal} dirty pages of running transactions may be written out
+ * to make room, and rolled back from the log if the transaction aborts; with
+ * {@link #setForce} turned off a commit only logs its pages, and the
+ * background writer writes them later.
  * 
- * @Threadsafe, all fields are final
+ * @Threadsafe.  Cached pages are guarded by the stripe locks of the
+ * {@link PageTable}; page writes, the dirty/clean state of pages and the
+ * start of the background writer by {@code writeLock}; the install epoch by
+ * {@code installLock}; resizing by the BufferPool monitor.  The settings
+ * changed at run time, {@code numPages}, {@code steal}, {@code force} and
+ * {@code writer}, are volatile; the remaining fields are final and refer to
+ * thread-safe objects.
  */
 public class BufferPool {
     /** Bytes per page, including header. */
@@ -30,25 +70,178 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    private ConcurrentHashMap<PageId,Page> pages;
-    private int numPages;
-    private LockManager lockManager;
+    /** System property turning on STEAL, e.g. -Dsimpledb.Steal=true. */
+    public static final String STEAL_PROPERTY = "simpledb.Steal";
+
+    /** System property turning off FORCE, e.g. -Dsimpledb.Force=false. */
+    public static final String FORCE_PROPERTY = "simpledb.Force";
+
+    /** Number of hits queued before they are handed to the eviction policy. */
+    private static final int ACCESS_BATCH = 64;
+
+    private final PageTable pageTable;
+    private volatile int numPages;
+    private final LockManager lockManager;
+    private final EvictionPolicy evictionPolicy;
+    private final VersionStore versions;
+    private volatile boolean steal = Boolean.getBoolean(STEAL_PROPERTY);
+    private volatile boolean force = !"false".equalsIgnoreCase(System.getProperty(FORCE_PROPERTY));
+
+    private final ConcurrentLinkedQueue<PageId> pendingAccesses = new ConcurrentLinkedQueue<PageId>();
+    private final AtomicInteger numPendingAccesses = new AtomicInteger(0);
+    private final ReentrantLock drainLock = new ReentrantLock();
+
+    /** Pages being read from disk, each with a latch released once it is cached. */
+    private final ConcurrentHashMap<PageId, CountDownLatch> loading = new ConcurrentHashMap<PageId, CountDownLatch>();
+
+    /**
+     * Bumped, under installLock, whenever a page is written or discarded, so
+     * read-ahead can tell that a page it read may be stale.
+     */
+    private long installEpoch = 0;
+    private final Object installLock = new Object();
+
+    private final Prefetcher prefetcher;
+
+    /**
+     * The dirty page table: for each page logged but not written since, the
+     * LSN the log was at when it was first logged, where recovery of the
+     * page has to start.
+     */
+    private final ConcurrentHashMap<PageId, Long> recLsns = new ConcurrentHashMap<PageId, Long>();
+
+    /** Serializes page writes, so pages are marked clean consistently. */
+    private final Object writeLock = new Object();
+    private volatile PageWriter writer = null;
+
+    /** Orders pages by table, then by page number. */
+    private static final Comparator<Page> FILE_ORDER = new Comparator<Page>() {
+        public int compare(Page a, Page b) {
+            int c = Integer.compare(a.getId().getTableId(), b.getId().getTableId());
+            if (c != 0) {
+                return c;
+            }
+            return Integer.compare(a.getId().getPageNumber(), b.getId().getPageNumber());
+        }
+    };
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, replacing pages
+     * with the scan-resistant LRU-2 policy.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new LRUKEvictionPolicy());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and uses the
+     * given policy to pick pages to evict.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param evictionPolicy the page replacement policy
+     */
+    public BufferPool(int numPages, EvictionPolicy evictionPolicy) {
         // some code goes here
         this.numPages = numPages;
-        this.pages = new ConcurrentHashMap<>(numPages);
+        this.pageTable = new PageTable(4 * Runtime.getRuntime().availableProcessors());
         this.lockManager = new LockManager(numPages, 2*numPages);
+        this.evictionPolicy = evictionPolicy;
+        this.prefetcher = new Prefetcher(this);
+        this.versions = new VersionStore();
+    }
+
+    /** Return the prefetcher that reads pages ahead of sequential scans. */
+    public Prefetcher getPrefetcher() {
+        return prefetcher;
     }
     
     public static int getPageSize() {
       return pageSize;
     }
+
+    /**
+     * Returns the number of pages a buffer pool with the given memory budget
+     * can hold, at least one.
+     *
+     * @param bytes the memory budget, in bytes
+     */
+    public static int pagesForBudget(long bytes) {
+        long n = bytes / getPageSize();
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, n));
+    }
+
+    /** Return the maximum number of pages this buffer pool may cache. */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /** Return the memory, in bytes, this buffer pool may use for pages. */
+    public long getMemoryBudget() {
+        return (long) numPages * getPageSize();
+    }
+
+    /**
+     * Change the number of pages this buffer pool may cache, without
+     * dropping the pages it already holds.  When shrinking, clean pages are
+     * evicted right away; if dirty pages keep the pool over its new size,
+     * later page loads keep evicting until it fits.
+     *
+     * @param numPages the new maximum number of pages, at least one
+     */
+    public synchronized void resize(int numPages) {
+        if (numPages < 1) {
+            throw new IllegalArgumentException("buffer pool needs at least one page");
+        }
+        this.numPages = numPages;
+        evictionPolicy.capacityChanged(numPages);
+        try {
+            while (pageTable.size() > numPages) {
+                evictPage();
+            }
+        } catch (DbException e) {
+            // only dirty pages are left; they are evicted once flushed
+        }
+    }
+
+    /**
+     * Resize this buffer pool to the number of pages that fit in the given
+     * memory budget.
+     *
+     * @param bytes the memory budget, in bytes
+     * @see #resize(int)
+     */
+    public void setMemoryBudget(long bytes) {
+        resize(pagesForBudget(bytes));
+    }
+
+    /**
+     * Allow or forbid writing out dirty pages of running transactions to
+     * make room in the pool.  Only pages of transactions that logged a
+     * BEGIN record are written, since the log is what rolls them back.
+     */
+    public void setSteal(boolean steal) {
+        this.steal = steal;
+    }
+
+    /**
+     * Choose whether a commit writes the transaction's dirty pages (FORCE)
+     * or only logs them (NO-FORCE).
+     */
+    public void setForce(boolean force) {
+        this.force = force;
+    }
+
+    /** Return the number of pages currently cached. */
+    int numCachedPages() {
+        return pageTable.size();
+    }
+
+    /** Return true if pid is cached. */
+    boolean isCached(PageId pid) {
+        return pageTable.get(pid) != null;
+    }
     
     // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
     public static void setPageSize(int pageSize) {
@@ -78,17 +271,170 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-        lockManager.acquireLock(pid, tid, perm);
-        Page result = this.pages.get(pid);
-        if(result==null){
-            if(this.pages.size()>=DEFAULT_PAGES){
-                evictPage();
+        if(tid.isSnapshot()){
+            if(perm != Permissions.READ_ONLY){
+                throw new DbException("snapshot transactions are read-only");
+            }
+        }else{
+            lockManager.acquireLock(pid, tid, perm);
+        }
+        PageTable.Frame frame = pageTable.pin(pid);
+        if(frame != null){
+            pageHit(frame);
+        }else{
+            frame = loadPage(pid);
+        }
+        try{
+            if(tid.isSnapshot()){
+                // no locks: read the version committed before tid began
+                return versions.read(frame.page, tid.getStartTimestamp());
+            }
+            return frame.page;
+        }finally{
+            frame.unpin();
+        }
+    }
+
+    /** Return the store of old page versions read by snapshot transactions. */
+    VersionStore getVersions() {
+        return versions;
+    }
+
+    /**
+     * Return the frame for pid, pinned, reading the page from disk unless
+     * another thread is already doing so.
+     */
+    private PageTable.Frame loadPage(PageId pid) throws DbException {
+        while(true){
+            CountDownLatch loaded = new CountDownLatch(1);
+            CountDownLatch other = loading.putIfAbsent(pid, loaded);
+            if(other == null){
+                try{
+                    PageTable.Frame frame = pageTable.pin(pid);
+                    if(frame != null){
+                        pageHit(frame);
+                        return frame;
+                    }
+                    return readPage(pid);
+                }finally{
+                    loading.remove(pid);
+                    loaded.countDown();
+                }
+            }
+            awaitLoad(other);
+            PageTable.Frame frame = pageTable.pin(pid);
+            if(frame != null){
+                pageHit(frame);
+                return frame;
             }
+            // the other read failed, or the page is already evicted
+        }
+    }
+
+    private static void awaitLoad(CountDownLatch loaded) {
+        boolean interrupted = false;
+        while(true){
+            try{
+                loaded.await();
+                break;
+            }catch(InterruptedException e){
+                interrupted = true;
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Read pid from disk into a new frame and return the frame, pinned. */
+    private PageTable.Frame readPage(PageId pid) throws DbException {
+        reserveFrame();
+        Page page;
+        try{
             DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            result = file.readPage(pid);
-            this.pages.put(pid, result);
+            page = file.readPage(pid);
+        }catch(RuntimeException e){
+            pageTable.unreserve();
+            throw e;
+        }
+        prefetcher.recordMiss();
+        PageTable.Frame frame = pageTable.insert(pid, page);
+        if(frame.page == page){
+            evictionPolicy.pageAdded(pid);
+        }else{
+            // a tuple update cached the page while we were reading it
+            recordAccess(pid);
+        }
+        return frame;
+    }
+
+    private void pageHit(PageTable.Frame frame) {
+        if(frame.prefetched){
+            // read-ahead already counted this reference
+            frame.prefetched = false;
+            prefetcher.recordHit();
+        }else{
+            recordAccess(frame.pid);
+        }
+    }
+
+    /**
+     * Read pid from file into the pool on behalf of the Prefetcher, unless
+     * it is cached or being read already.  No locks are taken; the page is
+     * not handed to any transaction.
+     *
+     * @return true if the page was read and cached
+     */
+    boolean prefetchPage(DbFile file, PageId pid) {
+        CountDownLatch loaded = new CountDownLatch(1);
+        if(loading.putIfAbsent(pid, loaded) != null){
+            return false;
+        }
+        try{
+            if(pageTable.get(pid) != null){
+                return false;
+            }
+            long epoch;
+            synchronized(installLock){
+                epoch = installEpoch;
+            }
+            try{
+                reserveFrame();
+            }catch(DbException e){
+                return false;
+            }
+            Page page;
+            try{
+                page = file.readPage(pid);
+            }catch(RuntimeException e){
+                pageTable.unreserve();
+                return false;
+            }
+            PageTable.Frame frame;
+            synchronized(installLock){
+                if(epoch != installEpoch){
+                    // the page may have been written since we read it
+                    pageTable.unreserve();
+                    return false;
+                }
+                frame = pageTable.insert(pid, page);
+                if(frame.page == page){
+                    frame.prefetched = true;
+                }
+            }
+            try{
+                if(frame.page != page){
+                    return false;
+                }
+                evictionPolicy.pageAdded(pid);
+                return true;
+            }finally{
+                frame.unpin();
+            }
+        }finally{
+            loading.remove(pid);
+            loaded.countDown();
         }
-        return result;
     }
 
     /**
@@ -114,6 +460,7 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
@@ -134,21 +481,127 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        if(tid.isSnapshot()){
+            VersionStore.endSnapshot(tid);
+            versions.collectGarbage();
+            return;
+        }
         if(commit){
-            flushPages(tid);
+            if(force){
+                flushPages(tid);
+            }
+            ArrayList<Page> written = new ArrayList<Page>();
+            ArrayList<PageId> evicted = new ArrayList<PageId>();
+            for(PageId pageId : lockedPages(tid)){
+                Page page = pageTable.get(pageId);
+                if(page == null){
+                    // evicted; if it was stolen, its committed version is kept
+                    evicted.add(pageId);
+                }else if(tid.equals(page.isDirty()) || versions.isStolen(pageId)){
+                    written.add(page);
+                }
+            }
+            versions.commit(written, evicted);
+        }else{
+            discardUpdates(tid);
+        }
+
+        lockManager.releaseLocksOnTransaction(tid);
+    }
+
+    /**
+     * Undo the changes an aborting transaction made to cached pages.  Pages
+     * it already wrote out are rolled back from the log first, unless the
+     * log has done so, which leaves the committed versions on disk.
+     * <p>
+     * Every other page it dirtied, or holds an exclusive lock on and so may
+     * have changed without marking it yet (B+ tree pages are marked once
+     * the whole insert or delete is done), gets its committed version back
+     * in the pool.  Reading the page from disk instead would lose the
+     * updates of a commit under NO-FORCE that are not written yet.
+     */
+    private void discardUpdates(TransactionId tid) throws IOException {
+        Collection<PageId> pids = lockedPages(tid);
+        LogFile log = Database.getLogFile();
+        for(PageId pageId : pids){
+            if(versions.isStolen(pageId) && log.isActive(tid)){
+                log.logAbort(tid);
+                break;
+            }
+        }
+        for(PageId pageId : pids){
+            boolean stolen = versions.isStolen(pageId);
+            Page page = pageTable.get(pageId);
+            if(page != null && (stolen || tid.equals(page.isDirty())
+                    || lockManager.holdsExclusiveLock(tid, pageId))){
+                restoreCommitted(page, tid, stolen);
+                rolledBack(pageId);
+            }else if(stolen){
+                discardPage(pageId);
+                rolledBack(pageId);
+            }
+            versions.forget(pageId);
+        }
+    }
+
+    /**
+     * Tell the file of a page that a transaction's changes to it were
+     * undone, by an abort or by recovery.
+     */
+    static void rolledBack(PageId pid) {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if(file instanceof HeapFile){
+            ((HeapFile) file).rolledBack(pid);
+        }
+    }
+
+    /**
+     * Put the committed version of page in its place in the pool.  It stays
+     * dirty if that version may not be on disk yet: the page was dirtied by
+     * another transaction, or NO-FORCE let an earlier commit leave it
+     * unwritten.  A stolen page has been rolled back on disk, so it is clean.
+     */
+    private void restoreCommitted(Page page, TransactionId aborted, boolean stolen) {
+        PageId pid = page.getId();
+        Page committed = versions.committedImage(page);
+        committed.setLsn(page.getLsn());
+        TransactionId dirtier = page.isDirty();
+        if(stolen || dirtier == null){
+            dirtier = null;
+        }else if(dirtier.equals(aborted) && force && !recLsns.containsKey(pid)){
+            dirtier = null;
         }
+        if(dirtier != null){
+            committed.markDirty(true, dirtier);
+        }else{
+            recLsns.remove(pid);
+        }
+        synchronized(installLock){
+            pageTable.replace(pid, committed);
+            installEpoch++;
+        }
+    }
 
+    /**
+     * Return the pages tid may have read or written: those it holds locks
+     * on, plus the cached pages of the tables it has locked as a whole.
+     */
+    private Collection<PageId> lockedPages(TransactionId tid) {
         ArrayList<PageId> pageIds = lockManager.getLockList(tid);
         if(pageIds == null){
-            for(PageId pageId : pageIds){
-                Page page = pages.getOrDefault(pageId,null);
-                if(page != null && page.isDirty()!=null){
-                    discardPage(pageId);
-                }
+            return Collections.emptyList();
+        }
+        ArrayList<Integer> tables = lockManager.getTableLocks(tid);
+        if(tables.isEmpty()){
+            return pageIds;
+        }
+        LinkedHashSet<PageId> pids = new LinkedHashSet<PageId>(pageIds);
+        for(PageId pid : pageTable.pageIds()){
+            if(tables.contains(pid.getTableId())){
+                pids.add(pid);
             }
         }
-
-        lockManager.releaseLocksOnTransaction(tid);
+        return pids;
     }
 
     /**
@@ -172,17 +625,8 @@ public class BufferPool {
         // not necessary for lab1
         ArrayList<Page> changedPages = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid,t);
         for(Page page:changedPages){
-            if(pages.contains(page.getId())){
-                pages.put(page.getId(),page);
-            }else{
-                if(pages.size() == numPages){
-                    evictPage();
-                    if(pages.size() == numPages){
-                        throw new DbException("BufferPool is out of space");
-                    }
-                }
-                pages.put(page.getId(),page);
-            }
+            page.markDirty(true, tid);
+            cachePage(page);
         }
     }
 
@@ -203,7 +647,11 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).deleteTuple(tid,t);
+        ArrayList<Page> changedPages = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).deleteTuple(tid,t);
+        for(Page page:changedPages){
+            page.markDirty(true, tid);
+            cachePage(page);
+        }
     }
 
     /**
@@ -211,12 +659,10 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for(PageId pageId : pages.keySet()){
-            flushPage(pageId);
-        }
+        flushBatch(pageTable.pageIds(), null);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -227,49 +673,359 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        if(pid!=null){
-            pages.remove(pid);
+        if(pid == null){
+            return;
         }
+        boolean removed;
+        synchronized(installLock){
+            removed = pageTable.remove(pid);
+            installEpoch++;
+        }
+        if(removed){
+            evictionPolicy.pageRemoved(pid);
+        }
+        recLsns.remove(pid);
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(pages.get(pid));
-        pages.get(pid).markDirty(false,null);
-
+        flushBatch(Collections.singletonList(pid), null);
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        flushBatch(lockedPages(tid), tid);
+    }
+
+    /**
+     * Write back the dirty pages of transactions that have completed.
+     * Pages some transaction holds an exclusive lock on are skipped; the
+     * others are share-locked while they are written, so no transaction can
+     * change them half way through.
+     *
+     * @return the number of pages written
+     */
+    int writeBehind() throws IOException {
+        ArrayList<Page> pages = new ArrayList<Page>();
+        // holds this call's shared locks; calls run concurrently (the
+        // writer, evictions, checkpoints), so each releases only its own
+        TransactionId writerTid = new TransactionId();
+        try{
+            for(PageId pid : pageTable.pageIds()){
+                Page page = pageTable.get(pid);
+                TransactionId dirtier = page == null ? null : page.isDirty();
+                if(dirtier == null || lockManager.holdsLocks(dirtier)){
+                    // clean, or its transaction is still running
+                    continue;
+                }
+                if(!lockManager.tryAcquireSharedLock(pid, writerTid)){
+                    continue;
+                }
+                // an aborted transaction's pages are discarded before its
+                // locks are released, so this catches them
+                if(pageTable.get(pid) == page && dirtier.equals(page.isDirty())){
+                    pages.add(page);
+                }
+            }
+            writePages(pages);
+        }finally{
+            lockManager.releaseLocksOnTransaction(writerTid);
+        }
+        return pages.size();
+    }
+
+    /**
+     * Make the updates of tid durable before its commit record is written:
+     * under FORCE its dirty pages are written out, under NO-FORCE they are
+     * only logged.
+     */
+    public void prepareCommit(TransactionId tid) throws IOException {
+        if(force){
+            flushPages(tid);
+        }else{
+            logWrites(dirtyPages(lockedPages(tid), tid), false);
+        }
+    }
+
+    /** Write those of the given pages that are dirty, by dirtier if not null. */
+    private void flushBatch(Collection<PageId> pids, TransactionId dirtier) throws IOException {
+        writePages(dirtyPages(pids, dirtier));
+    }
+
+    /** Return those of the given pages that are dirty, by dirtier if not null. */
+    private ArrayList<Page> dirtyPages(Collection<PageId> pids, TransactionId dirtier) {
+        ArrayList<Page> pages = new ArrayList<Page>();
+        for(PageId pid : pids){
+            Page page = pageTable.get(pid);
+            if(page != null && page.isDirty() != null
+                    && (dirtier == null || dirtier.equals(page.isDirty()))){
+                pages.add(page);
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Log an UPDATE record for each page dirtied by a transaction the log
+     * knows as running.  If the pages are about to be written, the log is
+     * then forced up to the highest page LSN among them, unless it is
+     * durable that far already, and the committed versions of pages of
+     * running transactions are kept, since the pages may be evicted and
+     * read back.
+     */
+    private void logWrites(List<Page> pages, boolean writing) throws IOException {
+        LogFile log = Database.getLogFile();
+        long lsn = 0;
+        for(Page page : pages){
+            TransactionId dirtier = page.isDirty();
+            if(dirtier == null){
+                continue;
+            }
+            if(writing && lockManager.holdsLocks(dirtier)){
+                versions.steal(page);
+            }
+            if(log.isActive(dirtier)){
+                // taken before the record is appended, so a checkpoint
+                // either lists the page or precedes its record
+                recLsns.putIfAbsent(page.getId(), log.getAppendedLsn());
+                log.logWrite(dirtier, versions.committedImage(page), page);
+            }
+            lsn = Math.max(lsn, page.getLsn());
+        }
+        if(writing && lsn > log.getDurableLsn()){
+            log.forceTo(lsn);
+        }
+    }
+
+    /**
+     * Write the pages in file order, each run of adjacent pages of a
+     * {@link BatchWriteFile} with a single write, and mark them clean.
+     */
+    private void writePages(List<Page> pages) throws IOException {
+        if(pages.isEmpty()){
+            return;
+        }
+        Collections.sort(pages, FILE_ORDER);
+        // write-ahead: log first, outside writeLock, which LogFile may need
+        logWrites(pages, true);
+        synchronized(writeLock){
+            // a rollback may have dropped some since they were picked
+            pages = cachedPages(pages);
+            int start = 0;
+            while(start < pages.size()){
+                int end = start + 1;
+                while(end < pages.size() && adjacent(pages.get(end - 1), pages.get(end))){
+                    end++;
+                }
+                writeRun(pages.subList(start, end));
+                start = end;
+            }
+        }
+        synchronized(installLock){
+            installEpoch++;
+        }
+    }
+
+    /** Return those of the given pages that are still the cached versions. */
+    private List<Page> cachedPages(List<Page> pages) {
+        ArrayList<Page> cached = new ArrayList<Page>(pages.size());
+        for(Page page : pages){
+            if(pageTable.get(page.getId()) == page){
+                cached.add(page);
+            }
+        }
+        return cached;
+    }
+
+    private static boolean adjacent(Page a, Page b) {
+        return a.getId().getTableId() == b.getId().getTableId()
+                && a.getId().getPageNumber() + 1 == b.getId().getPageNumber();
+    }
+
+    private void writeRun(List<Page> run) throws IOException {
+        TransactionId[] dirtiers = new TransactionId[run.size()];
+        Long[] logged = new Long[run.size()];
+        for(int i = 0; i < dirtiers.length; i++){
+            dirtiers[i] = run.get(i).isDirty();
+            logged[i] = recLsns.get(run.get(i).getId());
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(run.get(0).getId().getTableId());
+        if(run.size() > 1 && file instanceof BatchWriteFile){
+            ((BatchWriteFile) file).writePages(run);
+        }else{
+            for(Page page : run){
+                file.writePage(page);
+            }
+        }
+        for(int i = 0; i < dirtiers.length; i++){
+            Page page = run.get(i);
+            // leave pages dirtied again while they were written dirty
+            if(dirtiers[i].equals(page.isDirty())){
+                page.markDirty(false, null);
+                if(logged[i] != null){
+                    recLsns.remove(page.getId(), logged[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the lock pages are written out under.  LogFile takes it to
+     * undo updates on disk without a page write interleaving.
+     */
+    Object getWriteLock() {
+        return writeLock;
+    }
+
+    /**
+     * Return a copy of the dirty page table: the pages whose logged updates
+     * may not be written yet, each with the LSN recovery has to start at
+     * for it.
+     */
+    Map<PageId, Long> getDirtyPageTable() {
+        return new HashMap<PageId, Long>(recLsns);
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Only clean, unpinned pages are chosen, so nothing needs to be written.
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        for(Map.Entry<PageId,Page> entry : pages.entrySet()){
-            PageId pageId = entry.getKey();
-            Page page = entry.getValue();
-            if(page.isDirty()==null){
-                pages.remove(pageId);
+        drainLock.lock();
+        try{
+            drainAccesses();
+        }finally{
+            drainLock.unlock();
+        }
+        boolean wroteBehind = false;
+        boolean stole = false;
+        while(true){
+            PageId victim = evictionPolicy.evict(new EvictionPolicy.Evictable() {
+                public boolean canEvict(PageId pid) {
+                    return pageTable.isEvictable(pid);
+                }
+            });
+            if(victim == null){
+                if(!wroteBehind && writeBehindForEviction() > 0){
+                    wroteBehind = true;
+                    continue;
+                }
+                if(steal && !stole && stealForEviction() > 0){
+                    stole = true;
+                    continue;
+                }
+                throw new DbException("BufferPool: All pages are dirty or pinned");
+            }
+            if(pageTable.removeIfEvictable(victim)){
                 return;
             }
+            // the page was pinned or dirtied after the policy chose it
+            evictionPolicy.pageAdded(victim);
+        }
+    }
+
+    /** Write back pages for evictPage() instead of waiting for the writer. */
+    private int writeBehindForEviction() throws DbException {
+        try{
+            return writeBehind();
+        }catch(IOException e){
+            throw new DbException("BufferPool: could not write back pages: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write out the dirty pages of running transactions the log can roll
+     * back, so that they can be evicted.
+     */
+    private int stealForEviction() throws DbException {
+        LogFile log = Database.getLogFile();
+        ArrayList<Page> pages = new ArrayList<Page>();
+        for(PageId pid : pageTable.pageIds()){
+            Page page = pageTable.get(pid);
+            TransactionId dirtier = page == null ? null : page.isDirty();
+            if(dirtier != null && log.isActive(dirtier)){
+                pages.add(page);
+            }
+        }
+        try{
+            writePages(pages);
+        }catch(IOException e){
+            throw new DbException("BufferPool: could not steal pages: " + e.getMessage());
+        }
+        return pages.size();
+    }
+
+    /** Take a free frame, evicting a page if the pool is full. */
+    private void reserveFrame() throws DbException {
+        while(!pageTable.tryReserve(numPages)){
+            evictPage();
+        }
+    }
+
+    /** Cache a page handed back by a DbFile, replacing any cached version. */
+    private void cachePage(Page page) throws DbException {
+        startWriter();
+        PageId pid = page.getId();
+        if(pageTable.replace(pid, page)){
+            recordAccess(pid);
+            return;
+        }
+        reserveFrame();
+        PageTable.Frame frame = pageTable.insert(pid, page);
+        if(frame.page == page){
+            evictionPolicy.pageAdded(pid);
+        }else{
+            pageTable.replace(pid, page);
+            recordAccess(pid);
+        }
+        frame.unpin();
+    }
+
+    private void startWriter() {
+        if(writer == null){
+            synchronized(writeLock){
+                if(writer == null){
+                    writer = new PageWriter(this);
+                    writer.start();
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue a hit for the eviction policy; once enough hits are queued,
+     * whichever thread gets the drain lock hands them over.
+     */
+    private void recordAccess(PageId pid) {
+        pendingAccesses.add(pid);
+        if(numPendingAccesses.incrementAndGet() >= ACCESS_BATCH && drainLock.tryLock()){
+            try{
+                drainAccesses();
+            }finally{
+                drainLock.unlock();
+            }
+        }
+    }
+
+    private void drainAccesses() {
+        PageId pid;
+        while((pid = pendingAccesses.poll()) != null){
+            numPendingAccesses.decrementAndGet();
+            evictionPolicy.pageAccessed(pid);
         }
-        throw new DbException("BufferPool: All pages are marked as dirty");
     }
 
 }
@@ -0,0 +1,104 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * CLOCK-sweep replacement.  Resident pages sit in a circular array of frames
+ * and each frame carries a small usage count.  A hit bumps the count (up to
+ * {@link #MAX_USAGE}); the clock hand sweeps the frames, decrementing counts
+ * as it passes, and evicts the first evictable frame whose count has dropped
+ * to zero.
+ * <p>
+ * Pages that are touched only once, such as those streamed through by a
+ * sequential scan, enter with a count of one and are recycled on the next
+ * sweep, while frequently referenced pages (B+ tree internal pages, hot
+ * heap pages) build up a high count and survive several sweeps.  CLOCK is
+ * the cheapest policy to maintain; {@link LRUKEvictionPolicy} and
+ * {@link TwoQueueEvictionPolicy} resist long scans better.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    /** Upper bound on a frame's usage count. */
+    public static final int MAX_USAGE = 5;
+
+    private final ArrayList<PageId> frames = new ArrayList<PageId>();
+    private final ArrayList<Integer> usage = new ArrayList<Integer>();
+    private final HashMap<PageId, Integer> frameOf = new HashMap<PageId, Integer>();
+    private final ArrayList<Integer> freeFrames = new ArrayList<Integer>();
+    private int hand = 0;
+
+    public synchronized void pageAdded(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            bump(frame);
+            return;
+        }
+        if (freeFrames.isEmpty()) {
+            frame = frames.size();
+            frames.add(pid);
+            usage.add(1);
+        } else {
+            frame = freeFrames.remove(freeFrames.size() - 1);
+            frames.set(frame, pid);
+            usage.set(frame, 1);
+        }
+        frameOf.put(pid, frame);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            bump(frame);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame != null) {
+            frames.set(frame, null);
+            usage.set(frame, 0);
+            freeFrames.add(frame);
+        }
+    }
+
+    public void capacityChanged(int numPages) {
+        // the ring grows and shrinks with the resident set
+    }
+
+    public synchronized PageId evict(Evictable evictable) {
+        if (frameOf.isEmpty()) {
+            return null;
+        }
+        // every full revolution decrements each count by one, so after
+        // MAX_USAGE + 1 revolutions any evictable frame has been chosen
+        int steps = frames.size() * (MAX_USAGE + 1);
+        for (int i = 0; i < steps; i++) {
+            if (hand >= frames.size()) {
+                hand = 0;
+            }
+            int frame = hand++;
+            PageId pid = frames.get(frame);
+            if (pid == null) {
+                continue;
+            }
+            int count = usage.get(frame);
+            if (count > 0) {
+                usage.set(frame, count - 1);
+                continue;
+            }
+            if (evictable.canEvict(pid)) {
+                pageRemoved(pid);
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    private void bump(int frame) {
+        int count = usage.get(frame);
+        if (count < MAX_USAGE) {
+            usage.set(frame, count + 1);
+        }
+    }
+}
@@ -17,13 +17,27 @@ public class Database {
     private static AtomicReference<Database> _instance = new AtomicReference<Database>(new Database());
     private final Catalog _catalog;
     private final BufferPool _bufferpool;
+    private final FileHandleCache _filehandles;
 
     private final static String LOGFILENAME = "log";
+
+    /**
+     * System property giving the buffer pool's memory budget in bytes, e.g.
+     * -Dsimpledb.BufferPoolBytes=1073741824.  When it is not set the pool
+     * holds BufferPool.DEFAULT_PAGES pages.
+     */
+    public final static String BUFFER_POOL_BYTES_PROPERTY = "simpledb.BufferPoolBytes";
     private final LogFile _logfile;
 
     private Database() {
         _catalog = new Catalog();
-        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        _filehandles = new FileHandleCache();
+        String budget = System.getProperty(BUFFER_POOL_BYTES_PROPERTY);
+        if (budget == null) {
+            _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        } else {
+            _bufferpool = new BufferPool(BufferPool.pagesForBudget(Long.parseLong(budget)));
+        }
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -45,6 +59,11 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /** Return the open file handles of the static Database instance */
+    public static FileHandleCache getFileHandles() {
+        return _instance.get()._filehandles;
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
@@ -75,7 +94,7 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        _instance.getAndSet(new Database())._filehandles.closeAll();
     }
 
 }
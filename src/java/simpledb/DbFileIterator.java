@@ -27,6 +27,22 @@ public interface DbFileIterator{
     public Tuple next()
         throws DbException, TransactionAbortedException, NoSuchElementException;
 
+    /**
+     * Appends the next tuples to batch, until it is full or there are no
+     * more tuples.  Files whose pages can be decoded column by column
+     * override this; the default reads tuples from next().
+     *
+     * @return true if any tuples were appended
+     */
+    public default boolean readBatch(TupleBatch batch)
+        throws DbException, TransactionAbortedException {
+        int before = batch.size();
+        while (!batch.isFull() && hasNext()) {
+            batch.add(next());
+        }
+        return batch.size() > before;
+    }
+
     /**
      * Resets the iterator to the start.
      * @throws DbException When rewind is unsupported.
@@ -0,0 +1,71 @@
+package simpledb;
+
+/**
+ * EvictionPolicy decides which resident page the BufferPool gives up when it
+ * needs a free frame.  The BufferPool reports every page that enters, is hit
+ * in, or leaves the cache, and asks the policy for a victim when it is full.
+ * <p>
+ * The policy only tracks page ids; it never touches the pages themselves.
+ * Whether a page may actually be evicted (e.g. it is not dirty) is decided by
+ * the BufferPool through the {@link Evictable} callback passed to
+ * {@link #evict}.
+ * <p>
+ * Implementations must be safe to call from several threads at once.
+ *
+ * @see BufferPool
+ * @see ClockEvictionPolicy
+ * @see LRUKEvictionPolicy
+ * @see TwoQueueEvictionPolicy
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Callback used by {@link EvictionPolicy#evict} to ask the BufferPool
+     * whether a candidate page may be evicted right now.
+     */
+    public interface Evictable {
+        /**
+         * @param pid a page id currently tracked by the policy
+         * @return true if the page may be removed from the buffer pool
+         */
+        public boolean canEvict(PageId pid);
+    }
+
+    /**
+     * Called when a page is loaded into the buffer pool.
+     *
+     * @param pid the id of the page that was added
+     */
+    public void pageAdded(PageId pid);
+
+    /**
+     * Called when a page that is already resident is requested again.
+     *
+     * @param pid the id of the page that was referenced
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Called when a page leaves the buffer pool without going through
+     * {@link #evict}, e.g. because it was discarded.
+     *
+     * @param pid the id of the page that was removed
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Called when the buffer pool is resized.
+     *
+     * @param numPages the new maximum number of pages in the buffer pool
+     */
+    public void capacityChanged(int numPages);
+
+    /**
+     * Choose a page to evict and stop tracking it.
+     *
+     * @param evictable decides whether a candidate may be evicted
+     * @return the id of the chosen victim, or null if no tracked page can be
+     *         evicted
+     */
+    public PageId evict(Evictable evictable);
+}
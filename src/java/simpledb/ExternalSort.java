@@ -0,0 +1,246 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ExternalSort returns the tuples of its child in ascending order of one
+ * field.  The child is read once, in open(), a run of memoryRows rows at a
+ * time; each run is sorted in memory.  If the whole child fits in one run it
+ * is returned from memory.  Otherwise every sorted run is written to a
+ * SpillFile, and the runs are merged as they are read back.
+ * <p>
+ * Tuples read back from a spilled run have no RecordId.
+ */
+class ExternalSort extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of rows sorted in memory at once. */
+    public static final int RUN_SIZE = 20000;
+    /** System property overriding RUN_SIZE. */
+    public static final String MEMORY_PROPERTY = "simpledb.SortRows";
+
+    private OpIterator child;
+    private final int field;
+    private int memoryRows = memoryRows();
+
+    /** A spilled run being merged, and its next row. */
+    private static class Run {
+        final SpillFile file;
+        TupleBatch batch;
+        int row;
+
+        Run(SpillFile file) {
+            this.file = file;
+        }
+
+        /** Move to the next row; return false if the run is used up. */
+        boolean advance() throws DbException {
+            row++;
+            if (batch == null || row >= batch.size()) {
+                batch = file.nextBatch();
+                row = 0;
+            }
+            return batch != null;
+        }
+    }
+
+    /** The sorted child, if it fit in one run, and its next row. */
+    transient private TupleBatch sorted;
+    transient private int sortedRow;
+    /** The spilled runs, if it did not. */
+    transient private ArrayList<SpillFile> runs = new ArrayList<SpillFile>();
+    /** The runs with rows left, by their next row. */
+    transient private PriorityQueue<Run> heap;
+    /** The batch fetchNext() is returning tuples from. */
+    transient private TupleBatch current;
+    transient private int currentRow;
+
+    /**
+     * Creates an ExternalSort of child on field.
+     *
+     * @param child
+     *            the tuples to sort.
+     * @param field
+     *            the field to sort them on, in ascending order.
+     */
+    public ExternalSort(OpIterator child, int field) {
+        this.child = child;
+        this.field = field;
+    }
+
+    /** Return the number of rows sorted in memory at once. */
+    static int memoryRows() {
+        return Integer.getInteger(MEMORY_PROPERTY, RUN_SIZE);
+    }
+
+    /** Set the number of rows this sort holds in memory. */
+    void setMemoryRows(int rows) {
+        this.memoryRows = rows;
+    }
+
+    /** Return the field the tuples are sorted on. */
+    public int getSortField() {
+        return field;
+    }
+
+    /** Return the number of runs written to disk by the last open(). */
+    int numRuns() {
+        return runs.size();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        reset();
+        TupleDesc td = getTupleDesc();
+        TupleBatch run = new TupleBatch(td);
+        TupleBatch batch;
+        while ((batch = child.nextBatch()) != null) {
+            for (int r = 0; r < batch.size(); r++) {
+                if (run.size() >= memoryRows) {
+                    spill(sort(run));
+                    run = new TupleBatch(td);
+                }
+                run.addRow(batch, r);
+            }
+        }
+        run = sort(run);
+        if (runs.isEmpty()) {
+            sorted = run;
+        } else {
+            spill(run);
+        }
+        startMerge();
+        super.open();
+    }
+
+    /** Return the rows of run sorted on field, ties in their original order. */
+    private TupleBatch sort(TupleBatch run) {
+        int n = run.size();
+        int[] order = new int[n];
+        int[] keys = run.intColumn(field);
+        if (keys != null) {
+            // key in the high half, row in the low half: sorting the longs
+            // sorts by key, then row
+            long[] packed = new long[n];
+            for (int r = 0; r < n; r++) {
+                packed[r] = ((long) keys[r] << 32) | r;
+            }
+            Arrays.sort(packed);
+            for (int r = 0; r < n; r++) {
+                order[r] = (int) packed[r];
+            }
+        } else {
+            final String[] strings = run.stringColumn(field);
+            Integer[] rows = new Integer[n];
+            for (int r = 0; r < n; r++) {
+                rows[r] = r;
+            }
+            Arrays.sort(rows, new Comparator<Integer>() {
+                public int compare(Integer r1, Integer r2) {
+                    return strings[r1].compareTo(strings[r2]);
+                }
+            });
+            for (int r = 0; r < n; r++) {
+                order[r] = rows[r];
+            }
+        }
+        return run.select(order, n);
+    }
+
+    private void spill(TupleBatch run) throws DbException {
+        SpillFile file = new SpillFile(getTupleDesc());
+        for (int r = 0; r < run.size(); r++) {
+            file.add(run, r);
+        }
+        runs.add(file);
+    }
+
+    /** Start returning rows from the beginning of the sorted child. */
+    private void startMerge() throws DbException {
+        sortedRow = 0;
+        current = null;
+        if (runs.isEmpty()) {
+            return;
+        }
+        heap = new PriorityQueue<Run>(runs.size(), new Comparator<Run>() {
+            public int compare(Run a, Run b) {
+                return TupleBatch.compare(a.batch, field, a.row, b.batch, field, b.row);
+            }
+        });
+        for (SpillFile file : runs) {
+            file.open();
+            Run run = new Run(file);
+            if (run.advance()) {
+                heap.add(run);
+            }
+        }
+    }
+
+    /** Delete any spilled runs and drop the sorted rows. */
+    private void reset() {
+        for (SpillFile file : runs) {
+            file.delete();
+        }
+        runs.clear();
+        heap = null;
+        sorted = null;
+    }
+
+    public void close() {
+        super.close();
+        reset();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        startMerge();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (current == null || currentRow >= current.size()) {
+            current = fetchNextBatch();
+            currentRow = 0;
+            if (current == null) {
+                return null;
+            }
+        }
+        return current.getTuple(currentRow++);
+    }
+
+    /** Returns the next batch of sorted rows, merging the runs if there are several. */
+    protected TupleBatch fetchNextBatch() throws DbException,
+            TransactionAbortedException {
+        TupleBatch out = new TupleBatch(getTupleDesc());
+        if (sorted != null) {
+            while (!out.isFull() && sortedRow < sorted.size()) {
+                out.addRow(sorted, sortedRow++);
+            }
+        } else if (heap != null) {
+            while (!out.isFull() && !heap.isEmpty()) {
+                Run run = heap.poll();
+                out.addRow(run.batch, run.row);
+                if (run.advance()) {
+                    heap.add(run);
+                }
+            }
+        }
+        return out.size() == 0 ? null : out;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
@@ -0,0 +1,166 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * FileHandleCache keeps the FileChannels that DbFiles read and write their
+ * pages through, one per file, so page I/O never pays for opening and
+ * closing the file.  I/O on these channels is positional
+ * (FileChannel.read/write with an explicit offset, i.e. pread/pwrite), so
+ * one channel can be shared by any number of threads; the only exception,
+ * {@link MappedFile}'s gathering write, holds the channel's monitor while it
+ * uses the channel position.
+ * <p>
+ * At most a fixed number of channels are kept open; when a new file is
+ * opened, the least recently used channel that is not in use is closed.  It
+ * is transparently reopened the next time the file is accessed.
+ * <p>
+ * Callers bracket each use of a channel with {@link #acquire} or
+ * {@link #acquireForWrite} and {@link #release}, so a channel is never
+ * closed under a running read or write.  Only acquireForWrite creates a
+ * file that does not exist, so reading a missing file fails instead of
+ * leaving an empty file behind.
+ *
+ * @see Database#getFileHandles
+ * @Threadsafe
+ */
+public class FileHandleCache {
+
+    /** Number of channels kept open by default. */
+    public static final int DEFAULT_MAX_OPEN = 256;
+
+    private static class Handle {
+        final FileChannel channel;
+        int users = 0;
+
+        Handle(FileChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final int maxOpen;
+    private final LinkedHashMap<File, Handle> handles =
+            new LinkedHashMap<File, Handle>(16, 0.75f, true);
+    private final HashMap<FileChannel, File> files = new HashMap<FileChannel, File>();
+
+    public FileHandleCache() {
+        this(DEFAULT_MAX_OPEN);
+    }
+
+    /**
+     * @param maxOpen the number of channels to keep open
+     */
+    public FileHandleCache(int maxOpen) {
+        this.maxOpen = maxOpen;
+    }
+
+    /**
+     * Return the channel for f, opening it if needed.  The channel stays
+     * open at least until the matching call to {@link #release}.
+     *
+     * @throws FileNotFoundException if f does not exist
+     */
+    public synchronized FileChannel acquire(File f) throws IOException {
+        return acquire(f, false);
+    }
+
+    /**
+     * Return the channel for f, as {@link #acquire} does, creating f if it
+     * does not exist.
+     */
+    public synchronized FileChannel acquireForWrite(File f) throws IOException {
+        return acquire(f, true);
+    }
+
+    private FileChannel acquire(File f, boolean create) throws IOException {
+        File key = f.getAbsoluteFile();
+        Handle h = handles.get(key);
+        if (h == null || !h.channel.isOpen()) {
+            if (h != null) {
+                files.remove(h.channel);
+            }
+            h = new Handle(open(key, create));
+            handles.put(key, h);
+            files.put(h.channel, key);
+        }
+        h.users++;
+        closeIdle();
+        return h.channel;
+    }
+
+    /** Give back a channel obtained from {@link #acquire}. */
+    public synchronized void release(FileChannel channel) {
+        File key = files.get(channel);
+        Handle h = key == null ? null : handles.get(key);
+        if (h != null && h.channel == channel) {
+            h.users--;
+        }
+        closeIdle();
+    }
+
+    /** Close the channel for f, if it is open and not in use. */
+    public synchronized void close(File f) throws IOException {
+        File key = f.getAbsoluteFile();
+        Handle h = handles.get(key);
+        if (h != null && h.users == 0) {
+            handles.remove(key);
+            files.remove(h.channel);
+            h.channel.close();
+        }
+    }
+
+    /** Close every channel, in use or not. */
+    public synchronized void closeAll() {
+        for (Handle h : handles.values()) {
+            try {
+                h.channel.close();
+            } catch (IOException e) {
+                // nothing more we can do for this file
+            }
+        }
+        handles.clear();
+        files.clear();
+    }
+
+    /** Return the number of channels currently open. */
+    public synchronized int numOpen() {
+        return handles.size();
+    }
+
+    private void closeIdle() {
+        Iterator<Handle> it = handles.values().iterator();
+        while (handles.size() > maxOpen && it.hasNext()) {
+            Handle h = it.next();
+            if (h.users == 0) {
+                it.remove();
+                files.remove(h.channel);
+                try {
+                    h.channel.close();
+                } catch (IOException e) {
+                    // the file is no longer cached either way
+                }
+            }
+        }
+    }
+
+    private static FileChannel open(File f, boolean create) throws IOException {
+        if (!create && !f.exists()) {
+            throw new FileNotFoundException(f + " does not exist");
+        }
+        RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(f, "rw");
+        } catch (FileNotFoundException e) {
+            // read-only file
+            raf = new RandomAccessFile(f, "r");
+        }
+        return raf.getChannel();
+    }
+}
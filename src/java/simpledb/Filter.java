@@ -77,6 +77,28 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * Applies the predicate to batches from the child operator a column at
+     * a time, skipping batches in which no row passes.
+     *
+     * @see Predicate#filter(TupleBatch, int[])
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException,
+            DbException {
+        TupleBatch batch;
+        while ((batch = this.opIterator.nextBatch()) != null) {
+            int[] selected = new int[batch.size()];
+            int n = this.predicate.filter(batch, selected);
+            if (n == batch.size()) {
+                return batch;
+            }
+            if (n > 0) {
+                return batch.select(selected, n);
+            }
+        }
+        return null;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
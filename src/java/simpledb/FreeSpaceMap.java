@@ -0,0 +1,199 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile are full, so that an
+ * insert can go straight to a page with a free slot instead of reading every
+ * page of the file to find one.
+ * <p>
+ * The map keeps one bit per page, set once the page is known to be full and
+ * cleared again when a tuple is deleted from it.  It is persisted in a side
+ * file next to the heap file (the heap file's name plus <tt>.fsm</tt>): a
+ * header naming the heap file the map was built for, then one bit per page
+ * in page order.  Each change is written through as a single byte, and
+ * changes only happen when a page fills up or first loses a tuple.
+ * <p>
+ * The map is a hint, not part of the transactional state of the table: it is
+ * not logged, and it can be wrong both ways.  A clear bit for a full page,
+ * e.g. because the side file is missing, only costs a visit: callers must
+ * check the page itself and call {@link #markFull} when the hint was wrong.
+ * A set bit for a page with room hides that room from every later insert,
+ * so bits are cleared whenever a page may have gained a slot: when a tuple
+ * is deleted from it, and when the changes of an aborted transaction to it
+ * are undone (see {@link HeapFile#rolledBack}).
+ * <p>
+ * The side file does not know when its heap file is rewritten in place, so
+ * whatever creates or rewrites a heap file must {@link #reset} its map, and
+ * whatever deletes it must delete the side file too (see
+ * {@link Utility#deleteOnExit}).  As a check, the map is dropped when it is
+ * loaded if its header names another file (a heap file that was deleted and
+ * created again, or another page size) or it has bits for pages the heap
+ * file does not have.
+ *
+ * @Threadsafe
+ */
+class FreeSpaceMap {
+
+    /** Suffix added to the heap file's name to form the side file's. */
+    static final String SUFFIX = ".fsm";
+
+    /** The header: MAGIC, the page size and the heap file's identity. */
+    private static final int MAGIC = 0x46534d31;  // "FSM1"
+    private static final int HEADER_SIZE = 16;
+
+    private final File heapFile;
+    private final File file;
+    private BitSet full = null;  // loaded on first use
+    private int firstFree = 0;   // no page below this one has room
+    private boolean hasHeader = false;  // the side file starts with our header
+
+    FreeSpaceMap(File heapFile) {
+        this.heapFile = heapFile;
+        this.file = sideFile(heapFile);
+    }
+
+    /** Return the side file the map of heapFile is kept in. */
+    static File sideFile(File heapFile) {
+        return new File(heapFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * Forget what is known about the pages of heapFile, because it was just
+     * created or rewritten.  Maps already loaded for it are not affected.
+     */
+    static void reset(File heapFile) throws IOException {
+        File side = sideFile(heapFile);
+        Database.getFileHandles().close(side);
+        if (side.exists() && !side.delete()) {
+            throw new IOException("cannot delete " + side);
+        }
+    }
+
+    /** Return the side file the map is kept in. */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Return the first page at or after from that may have a free slot.
+     *
+     * @param from the first page number to consider
+     * @param numPages the number of pages in the heap file
+     * @return the page number, or -1 if every page from there on is full
+     */
+    synchronized int findPage(int from, int numPages) {
+        load();
+        int pageNo = full.nextClearBit(Math.max(from, firstFree));
+        return pageNo < numPages ? pageNo : -1;
+    }
+
+    /** Record that a page has no free slots left. */
+    synchronized void markFull(int pageNo) throws IOException {
+        load();
+        if (full.get(pageNo)) {
+            return;
+        }
+        full.set(pageNo);
+        if (pageNo == firstFree) {
+            firstFree = full.nextClearBit(pageNo);
+        }
+        store(pageNo);
+    }
+
+    /** Record that a page has at least one free slot. */
+    synchronized void markFree(int pageNo) throws IOException {
+        load();
+        firstFree = Math.min(firstFree, pageNo);
+        if (!full.get(pageNo)) {
+            return;
+        }
+        full.clear(pageNo);
+        store(pageNo);
+    }
+
+    /** Return whether the map records the page as full. */
+    synchronized boolean isFull(int pageNo) {
+        load();
+        return full.get(pageNo);
+    }
+
+    private void load() {
+        if (full != null) {
+            return;
+        }
+        full = new BitSet();
+        if (!file.exists()) {
+            return;
+        }
+        FileHandleCache handles = Database.getFileHandles();
+        try {
+            FileChannel ch = handles.acquire(file);
+            try {
+                ByteBuffer buf = ByteBuffer.allocate((int) ch.size());
+                while (buf.hasRemaining() && ch.read(buf, buf.position()) > 0) {
+                }
+                buf.flip();
+                if (buf.remaining() >= HEADER_SIZE && buf.getInt() == MAGIC
+                        && buf.getInt() == BufferPool.getPageSize()
+                        && buf.getLong() == heapIdentity()) {
+                    full = BitSet.valueOf(buf);
+                    hasHeader = true;
+                }
+                int numPages = (int) (heapFile.length() / BufferPool.getPageSize());
+                if (!hasHeader || full.length() > numPages) {
+                    Debug.log("FreeSpaceMap: %s does not match %s, dropping it", file, heapFile);
+                    full = new BitSet();
+                    hasHeader = false;
+                    ch.truncate(0);
+                }
+            } finally {
+                handles.release(ch);
+            }
+        } catch (IOException e) {
+            // an unreadable map is rebuilt as pages are found to be full
+            Debug.log("FreeSpaceMap: cannot read %s: %s", file, e);
+        }
+        firstFree = full.nextClearBit(0);
+    }
+
+    /** Write the byte holding pageNo's bit through to the side file. */
+    private void store(int pageNo) throws IOException {
+        int index = pageNo / 8;
+        byte b = 0;
+        for (int bit = 0; bit < 8; bit++) {
+            if (full.get(index * 8 + bit)) {
+                b |= 1 << bit;
+            }
+        }
+        FileHandleCache handles = Database.getFileHandles();
+        FileChannel ch = handles.acquireForWrite(file);
+        try {
+            if (!hasHeader) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(BufferPool.getPageSize()).putLong(heapIdentity());
+                header.flip();
+                ch.write(header, 0);
+                hasHeader = true;
+            }
+            ch.write(ByteBuffer.wrap(new byte[] { b }), HEADER_SIZE + index);
+        } finally {
+            handles.release(ch);
+        }
+    }
+
+    /**
+     * Return a number identifying the heap file on disk: a hash of its file
+     * key (device and inode on Unix), or of its path where there is none.
+     */
+    private long heapIdentity() throws IOException {
+        Object key = Files.readAttributes(heapFile.toPath(), BasicFileAttributes.class).fileKey();
+        return key != null ? key.hashCode() : heapFile.getAbsolutePath().hashCode();
+    }
+}
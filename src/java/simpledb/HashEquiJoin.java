@@ -11,8 +11,6 @@ public class HashEquiJoin extends Operator {
     private JoinPredicate pred;
     private OpIterator child1, child2;
     private TupleDesc comboTD;
-    transient private Tuple t1 = null;
-    transient private Tuple t2 = null;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -50,51 +48,117 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
-    HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
+    /** Default number of child1 rows the join holds in memory at once. */
     public final static int MAP_SIZE = 20000;
+    /** System property overriding MAP_SIZE. */
+    public static final String MEMORY_PROPERTY = "simpledb.HashJoinRows";
+    /** Number of partitions an input is split into each time it is spilled. */
+    static final int FANOUT = 16;
+    /**
+     * Levels of partitioning after which a partition that still does not fit,
+     * e.g. because it is all one key, is joined a chunk at a time instead.
+     */
+    static final int MAX_DEPTH = 3;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
-            }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+    private int memoryRows = memoryRows();
+
+    /** A pair of spilled partitions still to be joined. */
+    private static class Partition {
+        final SpillFile build, probe;
+        final int depth;
+
+        Partition(SpillFile build, SpillFile probe, int depth) {
+            this.build = build;
+            this.probe = probe;
+            this.depth = depth;
         }
-        return cnt > 0;
+    }
+
+    /** Return the number of build rows a hash join holds in memory. */
+    static int memoryRows() {
+        return Integer.getInteger(MEMORY_PROPERTY, MAP_SIZE);
+    }
 
+    /** Set the number of build rows this join holds in memory. */
+    void setMemoryRows(int rows) {
+        this.memoryRows = rows;
     }
 
+    /** Whether the first pass has started since open() or rewind(). */
+    transient private boolean started = false;
+    /**
+     * The inputs of the current pass: the children, or a pair of partitions
+     * spilled by an earlier pass.  Null once the pass is over.
+     */
+    transient private OpIterator buildSide, probeSide;
+    transient private int depth;
+    /** Partitions still to be joined. */
+    transient private ArrayDeque<Partition> partitions = new ArrayDeque<Partition>();
+    /** Number of times an input has been partitioned since open() or rewind(). */
+    transient private int spills = 0;
+
+    /**
+     * A chunk of the build side is loaded into build, and the probe side is
+     * probed against it a batch at a time.  The first row of each int key is
+     * in heads, by the key's id in intKeys, and the first row of each string
+     * key in stringHeads; the next row with the same key is in chain.
+     */
+    transient private TupleBatch build;
+    transient private IntHashTable intKeys;
+    transient private int[] heads;
+    transient private HashMap<String, Integer> stringHeads;
+    transient private int[] chain;
+    /** The build batch being loaded, and the next row of it to load. */
+    transient private TupleBatch carry;
+    transient private int carryRow;
+    /** Whether the build side has been read to the end. */
+    transient private boolean buildDone;
+    transient private TupleBatch probe;
+    transient private int probeRow;
+    /** The batch fetchNext() is returning tuples from. */
+    transient private TupleBatch out;
+    transient private int outRow;
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
         super.open();
     }
 
     public void close() {
         super.close();
+        reset();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        reset();
         child1.rewind();
         child2.rewind();
     }
 
-    transient Iterator<Tuple> listIt = null;
+    /** Forget the join in progress, deleting anything it has spilled. */
+    private void reset() {
+        endPass();
+        for (Partition p : partitions) {
+            p.build.delete();
+            p.probe.delete();
+        }
+        partitions.clear();
+        started = false;
+        spills = 0;
+        out = null;
+    }
+
+    /**
+     * Return the number of times an input was partitioned since open() or
+     * rewind().
+     */
+    int numSpills() {
+        return spills;
+    }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -114,49 +178,234 @@ public class HashEquiJoin extends Operator {
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
-    private Tuple processList() throws TransactionAbortedException, DbException {
-        t1 = listIt.next();
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (out == null || outRow >= out.size()) {
+            out = fetchNextBatch();
+            outRow = 0;
+            if (out == null) {
+                return null;
+            }
+        }
+        return out.getTuple(outRow++);
+    }
 
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
+    /**
+     * Returns the next batch of joined tuples.  child1 is the build side: if
+     * it fits in memory it is loaded into a hash table and child2 is probed
+     * against it a batch at a time.  If not, both children are hash
+     * partitioned into spill files and each pair of partitions is joined the
+     * same way, partitioning again, on a different hash, if a partition is
+     * still too big.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException,
+            DbException {
+        if (!started) {
+            started = true;
+            startPass(child1, child2, 0);
+        }
+        TupleBatch joined = new TupleBatch(comboTD);
+        while (!joined.isFull()) {
+            if (build == null) {
+                // this pass is over: join the next pair of partitions
+                Partition p = partitions.poll();
+                if (p == null) {
+                    break;
+                }
+                p.build.open();
+                p.probe.open();
+                startPass(p.build, p.probe, p.depth);
+                continue;
+            }
+            if (probe == null || probeRow >= probe.size()) {
+                probe = probeSide.nextBatch();
+                probeRow = 0;
+                if (probe == null) {
+                    if (buildDone) {
+                        endPass();
+                    } else {
+                        // too deep to partition again: join the next chunk
+                        probeSide.rewind();
+                        loadChunk();
+                    }
+                    continue;
+                }
+            }
+            for (int r = head(probe, probeRow); r >= 0; r = chain[r]) {
+                joined.addJoined(build, r, probe, probeRow);
+            }
+            probeRow++;
+        }
+        return joined.size() == 0 ? null : joined;
+    }
 
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
+    /**
+     * Start joining buildSide with probeSide, partitioning them both if
+     * buildSide does not fit in memory.
+     */
+    private void startPass(OpIterator buildSide, OpIterator probeSide, int depth)
+            throws DbException, TransactionAbortedException {
+        this.buildSide = buildSide;
+        this.probeSide = probeSide;
+        this.depth = depth;
+        loadChunk();
+        if (build.size() == 0) {
+            endPass();
+        } else if (!buildDone && depth < MAX_DEPTH) {
+            partition();
+        }
+    }
 
+    /** Load the next memoryRows or so rows of the build side into build. */
+    private void loadChunk() throws DbException, TransactionAbortedException {
+        build = new TupleBatch(buildSide.getTupleDesc());
+        probe = null;
+        while (build.size() < memoryRows && nextCarry()) {
+            build.addRow(carry, carryRow++);
+        }
+        buildDone = !nextCarry();
+        int n = build.size();
+        chain = new int[n];
+        int[] keys = build.intColumn(pred.getField1());
+        if (keys != null) {
+            intKeys = new IntHashTable(n);
+            heads = new int[n];
+            for (int r = 0; r < n; r++) {
+                int keysBefore = intKeys.size();
+                int id = intKeys.add(keys[r]);
+                chain[r] = id == keysBefore ? -1 : heads[id];
+                heads[id] = r;
+            }
+        } else {
+            stringHeads = new HashMap<String, Integer>();
+            for (int r = 0; r < n; r++) {
+                Integer head = stringHeads.put(build.getString(pred.getField1(), r), r);
+                chain[r] = head == null ? -1 : head;
+            }
+        }
     }
 
-    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
+    /** Return the first build row matching the given probe row, or -1. */
+    private int head(TupleBatch probe, int row) {
+        int[] keys = probe.intColumn(pred.getField2());
+        if (keys != null) {
+            int id = intKeys.get(keys[row]);
+            return id < 0 ? -1 : heads[id];
         }
+        Integer head = stringHeads.get(probe.getString(pred.getField2(), row));
+        return head == null ? -1 : head;
+    }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+    /**
+     * Make sure carry has a row to load, reading the next batch of the build
+     * side if need be; return false at the end of the build side.
+     */
+    private boolean nextCarry() throws DbException, TransactionAbortedException {
+        if (carry == null || carryRow >= carry.size()) {
+            carry = buildSide.nextBatch();
+            carryRow = 0;
+        }
+        return carry != null;
+    }
 
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
+    /**
+     * Hash partition the rest of the build side, including what has been
+     * loaded, and all of the probe side into spill files, and queue the
+     * pairs of partitions that can produce output.
+     */
+    private void partition() throws DbException, TransactionAbortedException {
+        spills++;
+        SpillFile[] builds = new SpillFile[FANOUT];
+        SpillFile[] probes = new SpillFile[FANOUT];
+        try {
+            for (int i = 0; i < FANOUT; i++) {
+                builds[i] = new SpillFile(buildSide.getTupleDesc());
+                probes[i] = new SpillFile(probeSide.getTupleDesc());
+            }
+            spill(build, 0, pred.getField1(), builds);
+            build = null;
+            clearTable();
+            if (carry != null) {
+                spill(carry, carryRow, pred.getField1(), builds);
+                carry = null;
+            }
+            TupleBatch batch;
+            while ((batch = buildSide.nextBatch()) != null) {
+                spill(batch, 0, pred.getField1(), builds);
+            }
+            while ((batch = probeSide.nextBatch()) != null) {
+                spill(batch, 0, pred.getField2(), probes);
+            }
+        } catch (DbException e) {
+            deleteAll(builds);
+            deleteAll(probes);
+            throw e;
+        } catch (TransactionAbortedException e) {
+            deleteAll(builds);
+            deleteAll(probes);
+            throw e;
+        }
+        for (int i = 0; i < FANOUT; i++) {
+            if (builds[i].size() > 0 && probes[i].size() > 0) {
+                partitions.add(new Partition(builds[i], probes[i], depth + 1));
+            } else {
+                builds[i].delete();
+                probes[i].delete();
+            }
+        }
+        endPass();
+    }
 
-            return processList();
+    /** Write the rows of batch from row from on to their partitions. */
+    private void spill(TupleBatch batch, int from, int field, SpillFile[] files)
+            throws DbException {
+        for (int r = from; r < batch.size(); r++) {
+            files[partitionOf(batch, field, r, depth)].add(batch, r);
+        }
+    }
 
+    private static void deleteAll(SpillFile[] files) {
+        for (SpillFile f : files) {
+            if (f != null) {
+                f.delete();
+            }
         }
+    }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+    /**
+     * Return the partition the given row belongs to at the given depth; each
+     * depth hashes differently, so that a partition split again spreads out.
+     */
+    private static int partitionOf(TupleBatch batch, int field, int row, int depth) {
+        int[] ints = batch.intColumn(field);
+        int h = ints != null ? ints[row] : batch.getString(field, row).hashCode();
+        h = (h + depth) * 0x9e3779b9;
+        h ^= h >>> 15;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return (h & 0x7fffffff) % FANOUT;
+    }
+
+    /** End the current pass, deleting its inputs if they were spilled. */
+    private void endPass() {
+        if (buildSide instanceof SpillFile) {
+            ((SpillFile) buildSide).delete();
         }
+        if (probeSide instanceof SpillFile) {
+            ((SpillFile) probeSide).delete();
+        }
+        buildSide = null;
+        probeSide = null;
+        build = null;
+        carry = null;
+        probe = null;
+        clearTable();
+    }
 
-        return null;
+    private void clearTable() {
+        intKeys = null;
+        heads = null;
+        stringHeads = null;
+        chain = null;
     }
 
     @Override
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -13,10 +14,12 @@ import java.util.*;
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
  */
-public class HeapFile implements DbFile {
+public class HeapFile implements ReadAheadFile, BatchWriteFile {
 
     private File file;
     private TupleDesc tupleDesc;
+    private final MappedFile mappedFile;
+    private final FreeSpaceMap freeSpace;
     /**
      * Constructs a heap file backed by the specified file.
      *
@@ -28,6 +31,8 @@ public class HeapFile implements DbFile {
         // some code goes here
         this.file = f;
         this.tupleDesc = td;
+        this.mappedFile = new MappedFile(f);
+        this.freeSpace = new FreeSpaceMap(f);
     }
 
     /**
@@ -67,19 +72,15 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
+        int pageSize = BufferPool.getPageSize();
+        byte[] buffer = new byte[pageSize];
         try{
-            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
-            byte[] buffer = new byte[BufferPool.getPageSize()];
-            randomAccessFile.seek(pid.getPageNumber() * BufferPool.getPageSize());
-            if (randomAccessFile.read(buffer) == -1) {
-                throw new IllegalArgumentException();
+            if (mappedFile.read((long) pid.getPageNumber() * pageSize, buffer) <= 0) {
+                throw new IllegalArgumentException("page " + pid.getPageNumber() + " is past the end of " + file);
             }
-            randomAccessFile.close();
             return new HeapPage((HeapPageId)pid, buffer);
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.out.println("readPage :"+pid.getPageNumber()+","+pid.getTableId()+","+numPages()+","+file.length());
-            throw new IllegalArgumentException(e.getMessage());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
         }
     }
 
@@ -87,16 +88,30 @@ public class HeapFile implements DbFile {
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        try {
-            int pageSize = BufferPool.getPageSize();
-            byte[] data = page.getPageData();
-            RandomAccessFile raf = new RandomAccessFile(this.file,"rw");
-            raf.seek(page.getId().getPageNumber()*pageSize);
-            raf.write(data);
-            raf.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+        int pageSize = BufferPool.getPageSize();
+        mappedFile.write((long) page.getId().getPageNumber() * pageSize, page.getPageData());
+    }
+
+    // see BatchWriteFile.java for javadocs
+    public void writePages(List<Page> run) throws IOException {
+        ByteBuffer[] data = new ByteBuffer[run.size()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = ByteBuffer.wrap(run.get(i).getPageData());
         }
+        int pageSize = BufferPool.getPageSize();
+        mappedFile.write((long) run.get(0).getId().getPageNumber() * pageSize, data);
+    }
+
+    // see ReadAheadFile.java for javadocs
+    public PageId pageAfter(PageId pid, int distance) {
+        int pageNo = pid.getPageNumber() + distance;
+        return pageNo < numPages() ? new HeapPageId(getId(), pageNo) : null;
+    }
+
+    // see ReadAheadFile.java for javadocs
+    public void loadPages(PageId first, int count) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        mappedFile.load((long) first.getPageNumber() * pageSize, count * pageSize);
     }
 
     /**
@@ -113,38 +128,80 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         ArrayList<Page> changedPages = new ArrayList();
-        for(int i = 0;i<numPages();i++){
-            HeapPage currentPage = (HeapPage) Database.getBufferPool().getPage(tid,new HeapPageId(getId(),i),Permissions.READ_ONLY);
-            if(currentPage.getNumEmptySlots()!=0){
-                currentPage = (HeapPage) Database.getBufferPool().getPage(tid,new HeapPageId(getId(),i),Permissions.READ_WRITE);
-                currentPage.insertTuple(t);
-                currentPage.markDirty(true,tid);
-                changedPages.add(currentPage);
-                return changedPages;
+        BufferPool bufferPool = Database.getBufferPool();
+        int numPages = numPages();
+        for (int i = freeSpace.findPage(0, numPages); i >= 0; i = freeSpace.findPage(i + 1, numPages)) {
+            HeapPageId pid = new HeapPageId(getId(), i);
+            boolean held = bufferPool.holdsLock(tid, pid);
+            HeapPage currentPage = (HeapPage) bufferPool.getPage(tid, pid, Permissions.READ_WRITE);
+            if (currentPage.getNumEmptySlots() == 0) {
+                // the map was out of date; don't keep a page we never touched locked
+                freeSpace.markFull(i);
+                if (!held) {
+                    bufferPool.releasePage(tid, pid);
+                }
+                continue;
             }
+            insertInto(tid, currentPage, t, changedPages);
+            return changedPages;
         }
         HeapPageId newPageId = new HeapPageId(getId(),numPages());
         writePage(new HeapPage(newPageId,new byte[BufferPool.getPageSize()]));
-        HeapPage currentPage = (HeapPage) Database.getBufferPool().getPage(tid,newPageId,Permissions.READ_WRITE);
-        currentPage.insertTuple(t);
-        currentPage.markDirty(true,tid);
-        changedPages.add(currentPage);
+        HeapPage currentPage = (HeapPage) bufferPool.getPage(tid,newPageId,Permissions.READ_WRITE);
+        insertInto(tid, currentPage, t, changedPages);
         return changedPages;
     }
 
+    private void insertInto(TransactionId tid, HeapPage page, Tuple t, ArrayList<Page> changedPages)
+            throws DbException, IOException {
+        page.insertTuple(t);
+        page.markDirty(true,tid);
+        changedPages.add(page);
+        if (page.getNumEmptySlots() == 0) {
+            freeSpace.markFull(page.getId().getPageNumber());
+        }
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
         ArrayList<Page> changedPages = new ArrayList();
-        HeapPage currentPage = (HeapPage) Database.getBufferPool().getPage(tid,new HeapPageId(getId(),t.getRecordId().getTupleNumber()),Permissions.READ_WRITE);
+        if (t.getRecordId() == null) {
+            throw new DbException("tuple has no record id");
+        }
+        PageId pid = t.getRecordId().getPageId();
+        if (pid.getTableId() != getId()) {
+            throw new DbException("tuple is not a member of this file");
+        }
+        HeapPage currentPage = (HeapPage) Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
         currentPage.deleteTuple(t);
         currentPage.markDirty(true,tid);
         changedPages.add(currentPage);
+        try {
+            freeSpace.markFree(pid.getPageNumber());
+        } catch (IOException e) {
+            // only the hint is lost; the page is still found by a later insert
+            Debug.log("HeapFile: cannot update %s: %s", freeSpace.getFile(), e);
+        }
         return changedPages;
     }
 
+    /**
+     * Note that the changes of an aborted transaction to a page were undone.
+     * The page may have filled up only through those changes, so it is
+     * marked as having room again; if it is full after all, the next insert
+     * to visit it marks it full.
+     */
+    void rolledBack(PageId pid) {
+        try {
+            freeSpace.markFree(pid.getPageNumber());
+        } catch (IOException e) {
+            Debug.log("HeapFile: cannot update %s: %s", freeSpace.getFile(), e);
+        }
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
@@ -153,8 +210,9 @@ public class HeapFile implements DbFile {
             private int numPage = numPages();
             private int pid = 0;
             private BufferPool bufferPool = Database.getBufferPool();
+            private Prefetcher.Stream readAhead;
             private HeapPage heapPage;
-            private Iterator<Tuple> tupleIterator;
+            private HeapPage.SlotIterator tupleIterator;
             private boolean isOpen = false;
             private boolean hasNext = false;
 
@@ -162,6 +220,7 @@ public class HeapFile implements DbFile {
             public void open() throws DbException, TransactionAbortedException {
                 isOpen = true;
                 pid = 0;
+                readAhead = Database.getBufferPool().getPrefetcher().stream(HeapFile.this);
             }
 
             @Override
@@ -180,8 +239,10 @@ public class HeapFile implements DbFile {
                 }
 
                 while (pid < numPages()){
-                    heapPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(),pid), Permissions.READ_ONLY);
-                    tupleIterator = heapPage.iterator();
+                    HeapPageId pageId = new HeapPageId(getId(),pid);
+                    readAhead.access(pageId);
+                    heapPage = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
+                    tupleIterator = (HeapPage.SlotIterator) heapPage.iterator();
                     if(tupleIterator.hasNext()){
                         hasNext = true;
                         return true;
@@ -202,6 +263,15 @@ public class HeapFile implements DbFile {
                 return tupleIterator.next();
             }
 
+            @Override
+            public boolean readBatch(TupleBatch batch) throws DbException, TransactionAbortedException {
+                int before = batch.size();
+                while (!batch.isFull() && hasNext()) {
+                    tupleIterator.readBatch(batch);
+                }
+                return batch.size() > before;
+            }
+
             @Override
             public void rewind() throws DbException, TransactionAbortedException {
                 close();
@@ -213,6 +283,7 @@ public class HeapFile implements DbFile {
                 pid = 0;
                 isOpen = false;
                 hasNext = false;
+                readAhead = null;
                 heapPage = null;
                 tupleIterator = null;
             }
@@ -6,6 +6,18 @@ import java.io.*;
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The serialized page is the source of truth: a HeapPage keeps the bytes
+ * it was read from, does not decode them up front, and applies inserts and
+ * deletes to them directly.  The tuples it hands out are views over those
+ * bytes, and a field is only decoded when it is read.  getPageData() hands
+ * out the bytes themselves.
+ * <p>
+ * Bytes that have been handed out (to tuple views, getPageData() callers or
+ * the before-image) are never changed; the next write copies them first.
+ * The first write after {@link #setBeforeImage} simply keeps the old array
+ * as the before-image.  The page also tracks which byte ranges changed
+ * since then, see {@link #getDirtyRanges}.
  *
  * @see HeapFile
  * @see BufferPool
@@ -15,12 +27,21 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
     final int numSlots;
+    final int headerSize;
 
+    /** The serialized page: the header bytes, then the slots. */
+    private byte[] data;
+    /** True if data has been handed out and must be copied before it changes. */
+    private boolean shared;
+
+    /** The page at the last setBeforeImage(), or null if it has not changed since. */
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    private final Object oldDataLock = new Object();
+    /** LSN of the last log record describing this page; kept in memory only. */
+    private volatile long lsn = 0;
+    /** The bytes changed since the last setBeforeImage(). */
+    private final BitSet dirtyBytes = new BitSet();
 
     TransactionId transactionId;
     boolean dirty;
@@ -37,6 +58,8 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page keeps data rather than a copy of it, so the caller must not
+     * modify data afterwards; the page itself never does.
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -45,22 +68,9 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        this.headerSize = getHeaderSize();
+        this.data = data;
+        this.shared = true;
 
         setBeforeImage();
     }
@@ -91,7 +101,7 @@ public class HeapPage implements Page {
             byte[] oldDataRef = null;
             synchronized(oldDataLock)
             {
-                oldDataRef = oldData;
+                oldDataRef = oldData != null ? oldData : getPageData();
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -105,55 +115,71 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        // the current bytes are the before-image until the next write
+        oldData = null;
+        dirtyBytes.clear();
         }
     }
 
     /**
-     * @return the PageId associated with this page.
+     * Return the byte ranges of the page that changed since the last call
+     * to setBeforeImage(), as pairs of start (inclusive) and end
+     * (exclusive) offsets in the array returned by getPageData().
      */
-    public HeapPageId getId() {
-        // some code goes here
-        return this.pid;
+    public int[] getDirtyRanges() {
+        synchronized(oldDataLock)
+        {
+        int n = 0;
+        int[] ranges = new int[8];
+        for (int start = dirtyBytes.nextSetBit(0); start >= 0;
+                start = dirtyBytes.nextSetBit(ranges[n - 1])) {
+            if (n + 2 > ranges.length) {
+                ranges = Arrays.copyOf(ranges, ranges.length * 2);
+            }
+            ranges[n++] = start;
+            ranges[n++] = dirtyBytes.nextClearBit(start);
+        }
+        return Arrays.copyOf(ranges, n);
+        }
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Prepare to change bytes [from, to) of the page: keep the current
+     * bytes as the before-image if this is the first change since
+     * setBeforeImage(), and stop sharing them.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    private void beginWrite(int from, int to) {
+        synchronized(oldDataLock)
+        {
+        if (oldData == null) {
+            oldData = data;
+            shared = true;
         }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+        dirtyBytes.set(from, to);
+        }
+        if (shared) {
+            data = data.clone();
+            shared = false;
         }
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        // some code goes here
+        return this.pid;
+    }
 
-        return t;
+    /** Return the offset of slot i in the page. */
+    private int slotOffset(int i) {
+        return headerSize + i * td.getSize();
     }
 
     /**
      * Generates a byte array representing the contents of this page.
-     * Used to serialize this page to disk.
+     * Used to serialize this page to disk.  The array must not be
+     * modified.
      * <p>
      * The invariant here is that it should be possible to pass the byte
      * array generated by getPageData to the HeapPage constructor and
@@ -163,64 +189,10 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        // the caller must not modify the bytes, so they can be handed out
+        // as they are; the next write copies them
+        shared = true;
+        return data;
     }
 
     /**
@@ -252,7 +224,11 @@ public class HeapPage implements Page {
         }if(!t.getTupleDesc().equals(td)){
             throw new DbException("tupledesc is mismatch");
         }else{
-            markSlotUsed(t.getRecordId().getTupleNumber(),false);
+            int i = t.getRecordId().getTupleNumber();
+            int offset = slotOffset(i);
+            beginWrite(offset, offset + td.getSize());
+            markSlotUsed(i,false);
+            Arrays.fill(data, offset, offset + td.getSize(), (byte) 0);
         }
     }
 
@@ -271,12 +247,14 @@ public class HeapPage implements Page {
         } if(!t.getTupleDesc().equals(td)){
             throw new DbException("tupledesc is mismatch");
         } else {
-            for(int i = 0;i<getNumTuples();i++){
+            for(int i = 0;i<numSlots;i++){
                 if(!isSlotUsed(i)){
+                    byte[] tuple = serialize(t);
+                    int offset = slotOffset(i);
+                    beginWrite(offset, offset + tuple.length);
+                    System.arraycopy(tuple, 0, data, offset, tuple.length);
                     markSlotUsed(i,true);
-                    tuples[i] = t;
                     t.setRecordId(new RecordId(pid,i));
-                    iterator();
                     return;
                 }
             }
@@ -284,6 +262,20 @@ public class HeapPage implements Page {
 
     }
 
+    private byte[] serialize(Tuple t) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int j=0; j<td.numFields(); j++) {
+            try {
+                t.getField(j).serialize(dos);
+            } catch (IOException e) {
+                // this really shouldn't happen
+                e.printStackTrace();
+            }
+        }
+        return baos.toByteArray();
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -308,18 +300,26 @@ public class HeapPage implements Page {
         }
     }
 
+    public long getLsn() {
+        return lsn;
+    }
+
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
         // some code goes here
         int numOfUsedSlots = 0;
-        for(byte b : this.header){
-            for(int i=0;i<8;i++){
-                numOfUsedSlots += (b>>i & 1);
+        for(int i=0;i<numSlots;i++){
+            if(isSlotUsed(i)){
+                numOfUsedSlots++;
             }
         }
-        return header.length*8 - numOfUsedSlots;
+        return numSlots - numOfUsedSlots;
     }
 
     /**
@@ -327,14 +327,11 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
-        boolean flag = false;
-        try{
-            flag =  ((header[i/8] >> (i%8)) & 1) == 1;
-        }catch (Exception e){
-            System.out.println("isSlotUsed: "+i+","+header.length+","+tuples.length);
-            throw e;
-        }
-        return flag;
+        return isSlotUsed(data, i);
+    }
+
+    private static boolean isSlotUsed(byte[] page, int i) {
+        return ((page[i/8] >> (i%8)) & 1) == 1;
     }
 
     /**
@@ -343,7 +340,8 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
-        header[i/8] = setBit(header[i/8],i%8,value);
+        beginWrite(i/8, i/8 + 1);
+        data[i/8] = setBit(data[i/8],i%8,value);
     }
 
     private byte setBit(byte b,int i,boolean value){
@@ -358,17 +356,61 @@ public class HeapPage implements Page {
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
+     * <p>
+     * The iterator returns the tuples that were on the page when it was
+     * created, as views over the page bytes.
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        List<Tuple> validTuples = new ArrayList<>();
-        for(int i=0;i<header.length*8;i++){
-            if(isSlotUsed(i)){
-                validTuples.add(tuples[i]);
+        return new SlotIterator(getPageData());
+    }
+
+    /**
+     * An iterator over the tuples of the page that can also decode the
+     * remaining ones a batch at a time.
+     */
+    class SlotIterator implements Iterator<Tuple> {
+        private final byte[] page;
+        private int slot;
+
+        SlotIterator(byte[] page) {
+            this.page = page;
+            this.slot = nextUsed(0);
+        }
+
+        private int nextUsed(int i) {
+            while (i < numSlots && !isSlotUsed(page, i)) {
+                i++;
+            }
+            return i;
+        }
+
+        public boolean hasNext() {
+            return slot < numSlots;
+        }
+
+        public Tuple next() {
+            if (slot >= numSlots) {
+                throw new NoSuchElementException();
             }
+            Tuple t = new Tuple(td, page, slotOffset(slot));
+            t.setRecordId(new RecordId(pid, slot));
+            slot = nextUsed(slot + 1);
+            return t;
+        }
+
+        /** Decode the next tuples into batch until it is full or the
+            page is done. */
+        void readBatch(TupleBatch batch) {
+            while (slot < numSlots && !batch.isFull()) {
+                batch.decode(page, slotOffset(slot), pid, slot);
+                slot = nextUsed(slot + 1);
+            }
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
         }
-        return validTuples.iterator();
     }
 
 }
-
@@ -0,0 +1,121 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * IntHashTable assigns ids to int keys: the first key added gets id 0, the
+ * next new key id 1, and so on.  Callers keep whatever they need per key in
+ * their own arrays indexed by id, so neither keys nor values are boxed.
+ * <p>
+ * Keys are kept in an open-addressing table with linear probing, in a slot
+ * array of keys and a parallel slot array of ids.  Ids do not change when
+ * the table grows.
+ */
+class IntHashTable {
+
+    private static final int MIN_CAPACITY = 16;
+
+    /** Key in each slot. */
+    private int[] slotKeys;
+    /** One more than the id of the key in each slot, or 0 if it is empty. */
+    private int[] slotIds;
+    private int mask;
+    /** Key of each id. */
+    private int[] keys;
+    private int size = 0;
+
+    /** Create an empty table. */
+    IntHashTable() {
+        this(MIN_CAPACITY);
+    }
+
+    /** Create an empty table with room for about expected keys. */
+    IntHashTable(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2 * expected) {
+            capacity *= 2;
+        }
+        slotKeys = new int[capacity];
+        slotIds = new int[capacity];
+        mask = capacity - 1;
+        keys = new int[Math.max(expected, MIN_CAPACITY)];
+    }
+
+    /** Return the number of keys in the table. */
+    int size() {
+        return size;
+    }
+
+    /** Return the key with the given id. */
+    int key(int id) {
+        return keys[id];
+    }
+
+    /** Return the id of key, or -1 if it is not in the table. */
+    int get(int key) {
+        for (int s = hash(key) & mask; ; s = (s + 1) & mask) {
+            int id = slotIds[s];
+            if (id == 0) {
+                return -1;
+            }
+            if (slotKeys[s] == key) {
+                return id - 1;
+            }
+        }
+    }
+
+    /**
+     * Return the id of key, adding it if it is not in the table; a new key's
+     * id is the size of the table before it was added.
+     */
+    int add(int key) {
+        int s = hash(key) & mask;
+        for (; slotIds[s] != 0; s = (s + 1) & mask) {
+            if (slotKeys[s] == key) {
+                return slotIds[s] - 1;
+            }
+        }
+        if (2 * (size + 1) > slotIds.length) {
+            grow();
+            s = hash(key) & mask;
+            while (slotIds[s] != 0) {
+                s = (s + 1) & mask;
+            }
+        }
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, 2 * size);
+        }
+        slotKeys[s] = key;
+        slotIds[s] = size + 1;
+        keys[size] = key;
+        return size++;
+    }
+
+    /** Remove every key. */
+    void clear() {
+        Arrays.fill(slotIds, 0);
+        size = 0;
+    }
+
+    /** Double the slot arrays, keeping every key's id. */
+    private void grow() {
+        int capacity = 2 * slotIds.length;
+        slotKeys = new int[capacity];
+        slotIds = new int[capacity];
+        mask = capacity - 1;
+        for (int id = 0; id < size; id++) {
+            int s = hash(keys[id]) & mask;
+            while (slotIds[s] != 0) {
+                s = (s + 1) & mask;
+            }
+            slotKeys[s] = keys[id];
+            slotIds[s] = id + 1;
+        }
+    }
+
+    /** Spread the bits of key, so that runs of keys do not cluster. */
+    private static int hash(int key) {
+        int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
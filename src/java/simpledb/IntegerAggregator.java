@@ -12,8 +12,15 @@ public class IntegerAggregator implements Aggregator {
     private Type groupByFieldType;
     private int aggregateField;
     private Op operator;
-    private HashMap<Field,Integer> aggregateMap;
-    private HashMap<Field,Integer> sizeMap;
+    /** Group ids of int group-by values, or of the one group without grouping. */
+    private IntHashTable intGroups;
+    /** Group ids of other group-by values, and the value of each group. */
+    private HashMap<Field,Integer> fieldGroups;
+    private ArrayList<Field> groupKeys;
+    /** Running aggregate and number of values merged of each group, by id. */
+    private int[] aggregates = new int[16];
+    private int[] counts = new int[16];
+    private int numGroups = 0;
     private TupleDesc tupleDesc;
 
     /**
@@ -37,8 +44,12 @@ public class IntegerAggregator implements Aggregator {
         this.groupByFieldType = gbfieldtype;
         this.aggregateField = afield;
         this.operator = what;
-        this.aggregateMap = new HashMap<>();
-        this.sizeMap = new HashMap<>();
+        if(gbfield==NO_GROUPING || gbfieldtype==Type.INT_TYPE){
+            this.intGroups = new IntHashTable();
+        }else{
+            this.fieldGroups = new HashMap<>();
+            this.groupKeys = new ArrayList<>();
+        }
         if(gbfield==NO_GROUPING){
             this.tupleDesc = new TupleDesc(new Type[]{Type.INT_TYPE});
         }else{
@@ -55,46 +66,114 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        Field key;
+        int group;
         if(this.groupByField==NO_GROUPING){
-            key = new IntField(0);
+            group = group(0);
         }else{
-            key = tup.getField(this.groupByField);
+            group = group(tup.getField(this.groupByField));
         }
         int value =((IntField)tup.getField(this.aggregateField)).getValue();
+        merge(group, 1, value, value, value);
+    }
 
-        if(aggregateMap.containsKey(key)){
-            sizeMap.put(key,sizeMap.get(key)+1);
-            Integer aggregateVal = aggregateMap.get(key);
-            switch (this.operator){
-                case MIN:
-                    aggregateMap.put(key,Math.min(aggregateVal,value));
-                    break;
-                case MAX:
-                    aggregateMap.put(key,Math.max(aggregateVal,value));
-                    break;
-                case SUM :
-                case AVG:
-                    aggregateMap.put(key,aggregateVal+value);
-                    break;
-                case COUNT:
-                    aggregateMap.put(key,aggregateVal+1);
-                    break;
+    /**
+     * Merge every row of a batch into the aggregate.  Without grouping, the
+     * aggregate column is reduced with one loop over its vector first.
+     */
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+        int n = batch.size();
+        int[] values = batch.intColumn(this.aggregateField);
+        if(this.groupByField==NO_GROUPING){
+            if(n == 0){
+                return;
+            }
+            int sum = 0;
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for(int i = 0; i < n; i++){
+                int value = values[i];
+                sum += value;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
             }
-        }else {
-            Integer init = null;
-            switch (this.operator){
-                case MIN:
-                case SUM:
-                case AVG:
-                case MAX:
-                    init = value;
-                    break;
-                case COUNT:
-                    init = 1;
+            merge(group(0), n, sum, min, max);
+        }else if(intGroups != null){
+            int[] keys = batch.intColumn(this.groupByField);
+            for(int i = 0; i < n; i++){
+                int value = values[i];
+                merge(group(keys[i]), 1, value, value, value);
             }
-            aggregateMap.putIfAbsent(key,init);
-            sizeMap.putIfAbsent(key,1);
+        }else{
+            for(int i = 0; i < n; i++){
+                int value = values[i];
+                merge(group(batch.getField(this.groupByField, i)), 1, value, value, value);
+            }
+        }
+    }
+
+    /** Return the id of the group of an int key, creating it if need be. */
+    private int group(int key) {
+        int group = intGroups.add(key);
+        if(group == numGroups){
+            newGroup();
+        }
+        return group;
+    }
+
+    /** Return the id of the group of key, creating it if need be. */
+    private int group(Field key) {
+        if(intGroups != null){
+            return group(((IntField)key).getValue());
+        }
+        Integer group = fieldGroups.get(key);
+        if(group == null){
+            group = numGroups;
+            fieldGroups.put(key, group);
+            groupKeys.add(key);
+            newGroup();
+        }
+        return group;
+    }
+
+    private void newGroup() {
+        if(numGroups == aggregates.length){
+            aggregates = Arrays.copyOf(aggregates, 2 * numGroups);
+            counts = Arrays.copyOf(counts, 2 * numGroups);
+        }
+        switch (this.operator){
+            case MIN:
+                aggregates[numGroups] = Integer.MAX_VALUE;
+                break;
+            case MAX:
+                aggregates[numGroups] = Integer.MIN_VALUE;
+                break;
+            default:
+                aggregates[numGroups] = 0;
+        }
+        counts[numGroups] = 0;
+        numGroups++;
+    }
+
+    /**
+     * Merge count values, with the given sum, minimum and maximum, into the
+     * given group.
+     */
+    private void merge(int group, int count, int sum, int min, int max) {
+        counts[group] += count;
+        switch (this.operator){
+            case MIN:
+                aggregates[group] = Math.min(aggregates[group], min);
+                break;
+            case MAX:
+                aggregates[group] = Math.max(aggregates[group], max);
+                break;
+            case SUM:
+            case AVG:
+                aggregates[group] += sum;
+                break;
+            case COUNT:
+                aggregates[group] += count;
+                break;
         }
     }
 
@@ -113,24 +192,18 @@ public class IntegerAggregator implements Aggregator {
             @Override
             public void open() throws DbException, TransactionAbortedException {
                 ArrayList<Tuple> result = new ArrayList<>();
-                for(Map.Entry<Field,Integer> entry : aggregateMap.entrySet()){
-                    Integer val = null;
-                    switch (operator){
-                        case MIN:
-                        case SUM:
-                        case COUNT:
-                        case MAX:
-                            val = entry.getValue();
-                            break;
-                        case AVG:
-                            val = entry.getValue()/sizeMap.get(entry.getKey());
+                for(int group = 0; group < numGroups; group++){
+                    int val = aggregates[group];
+                    if(operator == Op.AVG){
+                        val /= counts[group];
                     }
                     ArrayList<Field> current = new ArrayList();
                     if(groupByField == NO_GROUPING){
                         current.addAll(Arrays.asList(new Field[]{new IntField(val)}));
                         result.add(new Tuple(tupleDesc).setFields(current));
                     }else{
-                        current.addAll(Arrays.asList(new Field[]{entry.getKey(), new IntField(val)}));
+                        Field key = intGroups != null ? new IntField(intGroups.key(group)) : groupKeys.get(group);
+                        current.addAll(Arrays.asList(new Field[]{key, new IntField(val)}));
                         result.add(new Tuple(tupleDesc).setFields(current));
                     }
                 }
@@ -12,7 +12,29 @@ public class Join extends Operator {
     private OpIterator child1;
     private OpIterator child2;
     private OpIterator[] opIterators;
-    private Tuple currentTuple;
+    /** Default number of outer rows joined with each scan of the inner relation. */
+    public static final int BLOCK_SIZE = 20000;
+    /** System property overriding BLOCK_SIZE. */
+    public static final String BLOCK_PROPERTY = "simpledb.JoinBlockRows";
+    private int blockRows = Integer.getInteger(BLOCK_PROPERTY, BLOCK_SIZE);
+    /**
+     * The B+ tree the inner relation is a scan of, if it is keyed on the
+     * inner join field, so that it can be probed for each outer row instead.
+     */
+    private transient BTreeFile index;
+    private transient TransactionId indexTid;
+    /**
+     * The outer block and the inner batch being joined, and the next row of
+     * each.  With an index, innerBatch holds the matches of outer row
+     * outerRow - 1.
+     */
+    private transient TupleBatch outerBatch;
+    private transient TupleBatch innerBatch;
+    private transient int outerRow;
+    private transient int innerRow;
+    /** The batch fetchNext() is returning tuples from. */
+    private transient TupleBatch current;
+    private transient int currentRow;
 
     /**
      * Constructor. Accepts two children to join and the predicate to join them
@@ -71,9 +93,37 @@ public class Join extends Operator {
         // some code goes here
         child1.open();
         child2.open();
+        index = null;
+        if (child2 instanceof SeqScan && canUseIndex(joinPredicate, child2)) {
+            SeqScan scan = (SeqScan) child2;
+            index = (BTreeFile) Database.getCatalog().getDatabaseFile(scan.getTableId());
+            indexTid = scan.getTransactionId();
+        }
         super.open();
     }
 
+    /**
+     * Return true if a Join of inner with predicate p probes an index on the
+     * inner relation: inner is a scan of a B+ tree keyed on the inner join
+     * field, and the predicate is a comparison the tree can search for.
+     */
+    static boolean canUseIndex(JoinPredicate p, OpIterator inner) {
+        if (!(inner instanceof SeqScan)) {
+            return false;
+        }
+        if (p.getOperator() == Predicate.Op.LIKE
+                || p.getOperator() == Predicate.Op.NOT_EQUALS) {
+            return false;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(((SeqScan) inner).getTableId());
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == p.getField2();
+    }
+
+    /** Set the number of outer rows joined with each scan of the inner relation. */
+    void setBlockRows(int rows) {
+        this.blockRows = rows;
+    }
+
     public void close() {
         // some code goes here
         child1.close();
@@ -85,6 +135,9 @@ public class Join extends Operator {
         // some code goes here
         child1.rewind();
         child2.rewind();
+        outerBatch = null;
+        innerBatch = null;
+        current = null;
     }
 
     /**
@@ -107,32 +160,117 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if(currentTuple==null){
-            if(child1.hasNext()){
-                currentTuple = child1.next();
-            }else{
+        while (current == null || currentRow >= current.size()) {
+            current = fetchNextBatch();
+            currentRow = 0;
+            if (current == null) {
                 return null;
             }
         }
-        Tuple newTuple = null;
-        while(child2.hasNext()){
-            Tuple tuple2 = child2.next();
-            if(joinPredicate.filter(currentTuple,tuple2)){
-                ArrayList<Field> fieldList = new ArrayList();
-                fieldList.addAll(currentTuple.getFields());
-                fieldList.addAll(tuple2.getFields());
-                newTuple = new Tuple(getTupleDesc()).setFields(fieldList);
-                break;
+        return current.getTuple(currentRow++);
+    }
+
+    /**
+     * Returns the next batch of joined tuples.  If the inner relation is a
+     * B+ tree keyed on the inner join field, this is an index nested loops
+     * join that searches the tree once per outer row.  Otherwise it is a
+     * block nested loops join: the outer relation is read in blocks of
+     * blockRows rows, and each block is joined with every batch of the inner
+     * relation, one outer row against a whole inner batch at a time, so that
+     * the inner relation is scanned once per block.
+     *
+     * @see JoinPredicate#filter(TupleBatch, int, TupleBatch, int[])
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException,
+            DbException {
+        if (index != null) {
+            return fetchNextIndexBatch();
+        }
+        TupleBatch out = new TupleBatch(getTupleDesc());
+        int[] selected = null;
+        while (!out.isFull()) {
+            if (outerBatch == null || outerRow >= outerBatch.size()) {
+                // the current blocks are done: next inner block, or next
+                // outer block against the inner relation from the start
+                innerBatch = outerBatch == null ? null : child2.nextBatch();
+                if (innerBatch == null) {
+                    outerBatch = loadBlock();
+                    if (outerBatch == null) {
+                        break;
+                    }
+                    child2.rewind();
+                    innerBatch = child2.nextBatch();
+                    if (innerBatch == null) {
+                        outerBatch = null;
+                        break;
+                    }
+                }
+                outerRow = 0;
+            }
+            if (selected == null || selected.length < innerBatch.size()) {
+                selected = new int[innerBatch.size()];
+            }
+            int n = joinPredicate.filter(outerBatch, outerRow, innerBatch, selected);
+            for (int i = 0; i < n; i++) {
+                out.addJoined(outerBatch, outerRow, innerBatch, selected[i]);
+            }
+            outerRow++;
+        }
+        return out.size() == 0 ? null : out;
+    }
+
+    /** Read the next blockRows or so rows of the outer relation. */
+    private TupleBatch loadBlock() throws DbException, TransactionAbortedException {
+        TupleBatch block = child1.nextBatch();
+        TupleBatch batch;
+        while (block != null && block.size() < blockRows
+                && (batch = child1.nextBatch()) != null) {
+            for (int r = 0; r < batch.size(); r++) {
+                block.addRow(batch, r);
             }
         }
-        if(newTuple!=null){
-            return newTuple;
-        }else{
-            child2.rewind();
-            currentTuple = null;
-            return fetchNext();
+        return block;
+    }
+
+    /** Returns the next batch of joined tuples, probing index for each outer row. */
+    private TupleBatch fetchNextIndexBatch() throws TransactionAbortedException,
+            DbException {
+        TupleBatch out = new TupleBatch(getTupleDesc());
+        while (!out.isFull()) {
+            if (innerBatch == null || innerRow >= innerBatch.size()) {
+                if (outerBatch == null || outerRow >= outerBatch.size()) {
+                    outerBatch = child1.nextBatch();
+                    outerRow = 0;
+                    if (outerBatch == null) {
+                        break;
+                    }
+                }
+                innerBatch = probe(outerBatch.getField(joinPredicate.getField1(), outerRow++));
+                innerRow = 0;
+                continue;
+            }
+            out.addJoined(outerBatch, outerRow - 1, innerBatch, innerRow++);
         }
+        return out.size() == 0 ? null : out;
+    }
 
+    /** Return the rows of index that join with an outer row whose join field is value. */
+    private TupleBatch probe(Field value) throws TransactionAbortedException,
+            DbException {
+        // outer op inner is inner flip(op) outer
+        IndexPredicate ipred = new IndexPredicate(
+                Predicate.flip(joinPredicate.getOperator()), value);
+        DbFileIterator it = index.indexIterator(indexTid, ipred);
+        TupleBatch matches = new TupleBatch(child2.getTupleDesc(), 16);
+        it.open();
+        try {
+            while (it.hasNext()) {
+                matches.add(it.next());
+            }
+        } finally {
+            it.close();
+        }
+        return matches;
     }
 
     @Override
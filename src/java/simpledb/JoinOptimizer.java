@@ -68,12 +68,35 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        boolean subplan = lj instanceof LogicalSubplanJoinNode;
+        if (!subplan && SortMergeJoin.supports(lj.p)
+                && isScan(plan1) && isScan(plan2)
+                && SortMergeJoin.isSorted(plan1, t1id)
+                && SortMergeJoin.isSorted(plan2, t2id)) {
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS && !subplan
+                && !Join.canUseIndex(p, plan2)) {
+            j = new HashEquiJoin(p, plan1, plan2);
+        } else {
+            j = new Join(p, plan1, plan2);
+        }
 
         return j;
 
     }
 
+    /**
+     * Return true if plan reads a table rather than the result of other
+     * joins: a SeqScan, perhaps under Filters.  The cost estimates only know
+     * the order of tables, so only scans are merge joined.
+     */
+    private static boolean isScan(OpIterator plan) {
+        while (plan instanceof Filter) {
+            plan = ((Filter) plan).getChildren()[0];
+        }
+        return plan instanceof SeqScan;
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -102,6 +125,22 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true, true);
+    }
+
+    /**
+     * Estimate the cost of a join, as {@link #estimateJoinCost(LogicalJoinNode,
+     * int, int, double, double)} does, for the algorithm
+     * {@link #instantiateJoin} picks for it.
+     *
+     * @param scan1
+     *            Whether the left-hand side is a scan of its table, rather
+     *            than the result of earlier joins
+     * @param scan2
+     *            Whether the right-hand side is a scan of its table
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean scan1, boolean scan2) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
@@ -111,10 +150,94 @@ public class JoinOptimizer {
             // HINT: You may need to use the variable "j" if you implemented
             // a join algorithm that's more complicated than a basic
             // nested-loops join.
+            if (SortMergeJoin.supports(j.p) && scan1 && scan2
+                    && isKey(j.t1Alias, j.f1PureName)
+                    && isKey(j.t2Alias, j.f2PureName)) {
+                return estimateMergeJoinCost(card1, card2, cost1, cost2);
+            }
+            if (scan2 && isIndexed(j)) {
+                return estimateIndexJoinCost(j, card1, card2, cost1);
+            }
+            if (j.p == Predicate.Op.EQUALS) {
+                return estimateHashJoinCost(card1, card2, cost1, cost2);
+            }
             return cost1+card1*cost2+card1*card2;
         }
     }
 
+    /**
+     * Estimate the cost of a HashEquiJoin: one scan of each side, one hash
+     * table insert or probe per tuple, and, if the left side does not fit in
+     * memory, writing out and reading back both sides once per level of
+     * partitioning.
+     */
+    private double estimateHashJoinCost(int card1, int card2,
+            double cost1, double cost2) {
+        double cost = cost1 + cost2 + card1 + card2;
+        int memoryRows = HashEquiJoin.memoryRows();
+        for (long rows = card1; rows > memoryRows; rows /= HashEquiJoin.FANOUT) {
+            cost += 2 * (cost1 + cost2);
+        }
+        return cost;
+    }
+
+    /**
+     * Estimate the cost of a SortMergeJoin of two inputs that are already
+     * sorted: one scan of each side and one comparison per tuple.
+     */
+    private double estimateMergeJoinCost(int card1, int card2,
+            double cost1, double cost2) {
+        return cost1 + cost2 + card1 + card2;
+    }
+
+    /**
+     * Return true if the right-hand table of j is a B+ tree keyed on the join
+     * field, which a Join probes instead of scanning.  As with
+     * {@link Join#canUseIndex}, the table must be read by a bare SeqScan: a
+     * filter on it is applied to a scan, so the index is not used.
+     */
+    private boolean isIndexed(LogicalJoinNode j) {
+        if (j.p == Predicate.Op.LIKE || j.p == Predicate.Op.NOT_EQUALS) {
+            return false;
+        }
+        return !this.p.hasFilter(j.t2Alias) && isKey(j.t2Alias, j.f2PureName);
+    }
+
+    /**
+     * Return true if the table with the given alias is a B+ tree keyed on
+     * field, so that a scan of it returns its tuples in order of field.
+     */
+    private boolean isKey(String alias, String field) {
+        if (alias == null) {
+            return false;
+        }
+        Integer tableId = this.p.getTableId(alias);
+        if (tableId == null) {
+            return false;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(f instanceof BTreeFile)) {
+            return false;
+        }
+        try {
+            return f.getTupleDesc().fieldNameToIndex(field) == ((BTreeFile) f).keyField();
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Estimate the cost of an index nested loops Join: one scan of the left
+     * side, and for each of its tuples a search down the tree and a read of
+     * the matching tuples (about a third of the table for a range).
+     */
+    private double estimateIndexJoinCost(LogicalJoinNode j, int card1,
+            int card2, double cost1) {
+        double matches = j.p == Predicate.Op.EQUALS ? 1 : card2 * 0.3;
+        double search = Math.log(card2 + 1) / Math.log(2);
+        return cost1 + card1 * (search + matches);
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -319,6 +442,7 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        boolean leftScan = true, rightScan = true;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
@@ -354,6 +478,7 @@ public class JoinOptimizer {
                 // subtree is
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
+                leftScan = false;
 
                 t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateScanCost();
@@ -370,6 +495,7 @@ public class JoinOptimizer {
                 // subtree is
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
+                rightScan = false;
                 t1cost = stats.get(table1Name).estimateScanCost();
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
@@ -383,10 +509,12 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost,
+                leftScan, rightScan);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost,
+                rightScan, leftScan);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -45,6 +45,23 @@ public class JoinPredicate implements Serializable {
         return t1.getField(this.field1).compare(this.op,t2.getField(this.field2));
     }
     
+    /**
+     * Apply the predicate to row r1 of b1 and every row of b2.
+     *
+     * @param selected
+     *            Receives the indexes of the rows of b2 that satisfy the
+     *            predicate; it must have room for b2.size() of them
+     * @return the number of rows of b2 that satisfy the predicate
+     */
+    public int filter(TupleBatch b1, int r1, TupleBatch b2, int[] selected) {
+        int[] ints = b1.intColumn(this.field1);
+        if (ints != null) {
+            return Predicate.select(ints[r1], this.op, b2.intColumn(this.field2), b2.size(), selected);
+        }
+        return Predicate.select(b1.getString(this.field1, r1), this.op,
+                b2.stringColumn(this.field2), b2.size(), selected);
+    }
+
     public int getField1()
     {
         // some code goes here
@@ -0,0 +1,139 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum).  The policy remembers the
+ * times of the last K references to each page and evicts the page whose
+ * K-th most recent reference lies furthest in the past.  Pages that have
+ * been referenced fewer than K times are considered to have an infinite
+ * backward K-distance, so they are evicted first, oldest last reference
+ * first.  A page read once by a scan therefore never displaces a page that
+ * has been referenced K times.
+ * <p>
+ * The reference history of evicted pages is retained for a bounded number of
+ * pages, so a page that is re-read shortly after being evicted regains its
+ * earlier standing.
+ */
+public class LRUKEvictionPolicy implements EvictionPolicy {
+
+    /** K used by the no-argument constructor. */
+    public static final int DEFAULT_K = 2;
+
+    /** Number of non-resident page histories kept by default. */
+    public static final int DEFAULT_RETAINED = 1024;
+
+    private class Entry implements Comparable<Entry> {
+        final PageId pid;
+        final long[] history; // history[0] is the most recent reference
+        int refs;
+
+        Entry(PageId pid) {
+            this.pid = pid;
+            this.history = new long[k];
+        }
+
+        void reference(long time) {
+            System.arraycopy(history, 0, history, 1, k - 1);
+            history[0] = time;
+            if (refs < k) {
+                refs++;
+            }
+        }
+
+        long kthReference() {
+            return refs < k ? Long.MIN_VALUE : history[k - 1];
+        }
+
+        public int compareTo(Entry o) {
+            int c = Long.compare(kthReference(), o.kthReference());
+            if (c != 0) {
+                return c;
+            }
+            // history[0] is unique per entry since every reference
+            // gets its own timestamp
+            return Long.compare(history[0], o.history[0]);
+        }
+    }
+
+    private final int k;
+    private final HashMap<PageId, Entry> resident = new HashMap<PageId, Entry>();
+    private final TreeSet<Entry> order = new TreeSet<Entry>();
+    private final LinkedHashMap<PageId, Entry> retained;
+    private long clock = 0;
+
+    public LRUKEvictionPolicy() {
+        this(DEFAULT_K, DEFAULT_RETAINED);
+    }
+
+    /**
+     * @param k the number of references remembered per page
+     * @param retained the number of evicted pages whose history is kept
+     */
+    public LRUKEvictionPolicy(int k, final int retained) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        this.k = k;
+        this.retained = new LinkedHashMap<PageId, Entry>() {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<PageId, Entry> eldest) {
+                return size() > retained;
+            }
+        };
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        Entry e = resident.get(pid);
+        if (e == null) {
+            e = retained.remove(pid);
+            if (e == null) {
+                e = new Entry(pid);
+            }
+            resident.put(pid, e);
+        } else {
+            order.remove(e);
+        }
+        e.reference(++clock);
+        order.add(e);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        Entry e = resident.get(pid);
+        if (e != null) {
+            order.remove(e);
+            e.reference(++clock);
+            order.add(e);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Entry e = resident.remove(pid);
+        if (e != null) {
+            order.remove(e);
+        }
+    }
+
+    public void capacityChanged(int numPages) {
+        // the ordering does not depend on the pool size
+    }
+
+    public synchronized PageId evict(Evictable evictable) {
+        Iterator<Entry> it = order.iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (evictable.canEvict(e.pid)) {
+                it.remove();
+                resident.remove(e.pid);
+                retained.put(e.pid, e);
+                return e.pid;
+            }
+        }
+        return null;
+    }
+}
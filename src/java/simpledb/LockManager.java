@@ -1,202 +1,750 @@
 package simpledb;
 
-import java.security.acl.Permission;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * LockManager keeps the locks taken by transactions under strict two-phase
+ * locking, at two granularities: tables (DbFiles) and their pages.
+ * <p>
+ * A transaction locks a page by first taking an intention lock on the page's
+ * table (IS to read, IX to write) and then a shared or exclusive lock on the
+ * page.  A table can also be locked as a whole, in S, X or SIX (shared, plus
+ * the intention to write some pages) mode, which covers all of its pages.
+ * Once a transaction holds {@link #DEFAULT_ESCALATION} page locks on one
+ * table (or as set by the <tt>simpledb.LockEscalationPages</tt> system
+ * property), its locks are escalated: it takes an S or X lock on the table,
+ * if that can be granted without waiting, and gives up its page locks there.
+ * Bulk operations thus hold a handful of locks instead of one per page.
+ * <p>
+ * Each locked page or table has a {@link LockHead} with its own latch, the
+ * transactions holding the lock and a FIFO queue of waiting requests, so
+ * requests on different pages never contend.  A request that cannot be
+ * granted, or that would overtake a waiting request, joins the queue and
+ * sleeps on its own condition.  When the lock is released the queue is
+ * granted from the front, as long as the requests are compatible with the
+ * holders, and only the transactions that were granted are woken up.  A
+ * holder upgrading its lock goes to the front of the queue, so new readers
+ * cannot starve it.
+ * <p>
+ * Shared locks on pages that nobody is writing take a fast path that never
+ * touches the latch: a lock head keeps a count of fast-path readers next to a
+ * closed bit, and a reader is granted its lock by incrementing the count with
+ * a compare-and-set as long as the bit is clear.  The slow path closes the
+ * head while it has an exclusive holder or any waiting request, and an
+ * exclusive request is only granted once the fast readers have drained; the
+ * last one to leave hands the lock on to the queue.
+ * <p>
+ * Deadlocks are found with a wait-for graph: a waiting request waits for the
+ * conflicting holders of its page or table and the conflicting requests
+ * queued ahead of it.  Before a transaction starts to wait, the graph is
+ * searched for a cycle through it; if there is one, the youngest transaction
+ * on the cycle (the one with the highest id, which has usually done the least
+ * work) is aborted.  Transactions that wait without being deadlocked are
+ * never aborted, however long they wait.
+ *
+ * @Threadsafe
+ */
 public class LockManager {
-    public ConcurrentHashMap<PageId,PageLock> pageIdLockMap;
-    public ConcurrentHashMap<TransactionId,ArrayList<PageId>> transactionPageIdMap ;
 
-    private final int MIN_TIME = 100, MAX_TIME = 1000;
-    private final Random rand = new Random();
+    /** System property holding the number of page locks that triggers escalation. */
+    public static final String ESCALATION_PROPERTY = "simpledb.LockEscalationPages";
 
+    /** Page locks on one table after which they are escalated, when the property is not set. */
+    public static final int DEFAULT_ESCALATION = 512;
 
+    /** Lock modes; pages are only locked in S and X. */
     enum LockType{
-        SLock, XLock;
+        IS, IX, S, SIX, X;
+
+        private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+        };
+
+        boolean compatible(LockType other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** Return true if holding this lock grants everything other does. */
+        boolean covers(LockType other) {
+            switch (this) {
+            case X:
+                return true;
+            case SIX:
+                return other != X;
+            case S:
+                return other == IS || other == S;
+            case IX:
+                return other == IS || other == IX;
+            default:
+                return other == IS;
+            }
+        }
+
+        /** Return the weakest lock that grants both this one and other. */
+        LockType combine(LockType other) {
+            if (covers(other)) {
+                return this;
+            }
+            if (other.covers(this)) {
+                return other;
+            }
+            return SIX; // S and IX
+        }
+    }
+
+    /** Bit of LockHead.state set while shared locks must take the slow path. */
+    private static final int CLOSED = 1 << 30;
+
+    /** One transaction's request for a lock, waiting in a LockHead's queue. */
+    private static class Request {
+        final TransactionId tid;
+        final LockType type;
+        final LockHead head;
+        final Condition ready;
+        boolean granted = false;
+        boolean aborted = false;
+
+        Request(TransactionId tid, LockType type, LockHead head) {
+            this.tid = tid;
+            this.type = type;
+            this.head = head;
+            this.ready = head.latch.newCondition();
+        }
+    }
+
+    /**
+     * The lock on one page or table.  All fields but state are guarded by
+     * latch.
+     */
+    private static class LockHead {
+        final Object resource; // a PageId, or an Integer table id
+        final ReentrantLock latch = new ReentrantLock();
+        /** The number of fast-path shared holders, plus CLOSED. */
+        final AtomicInteger state = new AtomicInteger(0);
+        final HashMap<TransactionId,LockType> holders = new HashMap<>();
+        final LinkedList<Request> waiters = new LinkedList<>();
+        boolean removed = false; // dropped from the lock table; look it up again
+
+        LockHead(Object resource) {
+            this.resource = resource;
+        }
+
+        int fastReaders() {
+            return state.get() & ~CLOSED;
+        }
+    }
+
+    /** The locks one transaction holds. */
+    private static class Held {
+        /** Locked pages, mapped to true for fast-path shared locks. */
+        final ConcurrentHashMap<PageId,Boolean> pages = new ConcurrentHashMap<>();
+        /** Table locks, by table id. */
+        final ConcurrentHashMap<Integer,LockType> tables = new ConcurrentHashMap<>();
+        /** The number of entries of pages on each table. */
+        final ConcurrentHashMap<Integer,AtomicInteger> pageCounts = new ConcurrentHashMap<>();
+
+        void addPage(PageId pid, boolean fast) {
+            if (pages.put(pid, fast) == null) {
+                pageCount(pid.getTableId()).incrementAndGet();
+            }
+        }
+
+        Boolean removePage(PageId pid) {
+            Boolean fast = pages.remove(pid);
+            if (fast != null) {
+                pageCount(pid.getTableId()).decrementAndGet();
+            }
+            return fast;
+        }
+
+        AtomicInteger pageCount(int tableId) {
+            AtomicInteger count = pageCounts.get(tableId);
+            if (count == null) {
+                AtomicInteger created = new AtomicInteger(0);
+                count = pageCounts.putIfAbsent(tableId, created);
+                if (count == null) {
+                    count = created;
+                }
+            }
+            return count;
+        }
+    }
+
+    /** Lock heads by resource: page ids and Integer table ids. */
+    private final ConcurrentHashMap<Object,LockHead> lockTable;
+    private final ConcurrentHashMap<TransactionId,Held> transactionLocks;
+    private volatile int escalationThreshold;
+
+    /** The request each blocked transaction is waiting on. */
+    private final ConcurrentHashMap<TransactionId,Request> waiting = new ConcurrentHashMap<>();
+    /** Serializes deadlock detection, so that no cycle is closed unseen. */
+    private final Object detector = new Object();
+
+    public LockManager(int lockTabCap, int transTabCap) {
+        this.lockTable = new ConcurrentHashMap<>(lockTabCap);
+        this.transactionLocks = new ConcurrentHashMap<>(transTabCap);
+        this.escalationThreshold = Math.max(0, Integer.getInteger(ESCALATION_PROPERTY, DEFAULT_ESCALATION));
+    }
+
+    /**
+     * Set the number of page locks on one table after which a transaction's
+     * locks are escalated to a table lock.
+     *
+     * @param pages the threshold; 0 turns escalation off
+     */
+    void setEscalationThreshold(int pages) {
+        if (pages < 0) {
+            throw new IllegalArgumentException("escalation threshold cannot be negative");
+        }
+        escalationThreshold = pages;
     }
 
-    public class PageLock{
+    /**
+     * Return true if tid holds a lock on pid, or a lock on pid's table that
+     * lets it read every page.
+     */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        Held held = transactionLocks.get(tid);
+        if (held == null) {
+            return false;
+        }
+        LockType table = held.tables.get(pid.getTableId());
+        return held.pages.containsKey(pid) || (table != null && table.covers(LockType.S));
+    }
 
-        final PageId pageId;
-        LockType lockType;
-        ArrayList<TransactionId> transactionIds;
-        final Permissions permissions;
+    /**
+     * Return true if tid holds an exclusive lock on pid, or on pid's table,
+     * so that it may have changed the page.
+     */
+    public boolean holdsExclusiveLock(TransactionId tid, PageId pid) {
+        Held held = transactionLocks.get(tid);
+        if (held == null) {
+            return false;
+        }
+        if (held.tables.get(pid.getTableId()) == LockType.X) {
+            return true;
+        }
+        Boolean fast = held.pages.get(pid);
+        LockHead head = lockTable.get(pid);
+        if (fast == null || fast || head == null) {
+            return false;
+        }
+        head.latch.lock();
+        try {
+            return head.holders.get(tid) == LockType.X;
+        } finally {
+            head.latch.unlock();
+        }
+    }
+
+    /**
+     * Return true if tid holds a lock on some page, or on a whole table.
+     * Intention locks alone do not count, since they let a transaction
+     * neither read nor write anything.
+     */
+    public boolean holdsLocks(TransactionId tid) {
+        Held held = transactionLocks.get(tid);
+        return held != null && (!held.pages.isEmpty() || !getTableLocks(tid).isEmpty());
+    }
 
-        public PageLock(PageId pageId, Permissions permissions, ArrayList<TransactionId> transactionIds){
-            this.pageId = pageId;
-            this.permissions = permissions;
-            this.transactionIds = transactionIds;
-            if(permissions.equals(Permissions.READ_ONLY)){
-                this.lockType = LockType.SLock;
-            }else{
-                this.lockType = LockType.XLock;
+    private Held heldBy(TransactionId tid) {
+        Held held = transactionLocks.get(tid);
+        if (held == null) {
+            Held created = new Held();
+            held = transactionLocks.putIfAbsent(tid, created);
+            if (held == null) {
+                held = created;
             }
         }
+        return held;
+    }
 
-        public void setType(Permission permission) {
-            if(permission.equals(Permissions.READ_ONLY)){
-                this.lockType = LockType.SLock;
-            }else{
-                this.lockType = LockType.XLock;
+    private LockHead lookupHead(Object resource) {
+        LockHead head = lockTable.get(resource);
+        if (head == null) {
+            LockHead created = new LockHead(resource);
+            head = lockTable.putIfAbsent(resource, created);
+            if (head == null) {
+                head = created;
             }
         }
+        return head;
+    }
 
-        public LockType getType() {
-            return lockType;
+    /** Return the lock head for resource, latched. */
+    private LockHead latchHead(Object resource) {
+        while (true) {
+            LockHead head = lookupHead(resource);
+            head.latch.lock();
+            if (!head.removed) {
+                return head;
+            }
+            head.latch.unlock();
         }
+    }
 
-        public PageId getPageId() {
-            return pageId;
+    /**
+     * Release head's latch, first closing the fast path if the head has a
+     * holder or waiting request that conflicts with readers and opening it
+     * otherwise.
+     */
+    private void unlatch(LockHead head) {
+        boolean closed = head.removed || !head.waiters.isEmpty();
+        for (LockType type : head.holders.values()) {
+            closed |= !type.compatible(LockType.S);
         }
+        setClosed(head, closed);
+        head.latch.unlock();
+    }
 
-        public ArrayList<TransactionId> getTransactionIds() {
-            return transactionIds;
+    private void setClosed(LockHead head, boolean closed) {
+        while (true) {
+            int s = head.state.get();
+            int next = closed ? s | CLOSED : s & ~CLOSED;
+            if (s == next || head.state.compareAndSet(s, next)) {
+                return;
+            }
         }
+    }
+
+    /** Drop head from the lock table once nobody holds or waits for it. */
+    private void removeIfUnused(LockHead head) {
+        if (head.holders.isEmpty() && head.waiters.isEmpty()) {
+            int s = head.state.get();
+            // closing the head for good turns late fast-path readers away
+            if ((s & ~CLOSED) == 0 && head.state.compareAndSet(s, CLOSED)) {
+                head.removed = true;
+                lockTable.remove(head.resource, head);
+            }
+        }
+    }
 
-        public boolean tryUpgradeLock(TransactionId tid) {
-            if (lockType == LockType.SLock && transactionIds.size() == 1 && transactionIds.get(0).equals(tid)) {
-                lockType = LockType.XLock;
+    /**
+     * Try to take a shared lock on pageId on the fast path.
+     *
+     * @return false if the head is closed and the slow path must be used
+     */
+    private boolean tryFastShared(PageId pageId, Held held) {
+        if (held.pages.containsKey(pageId)) {
+            return true;
+        }
+        LockHead head = lookupHead(pageId);
+        // record the lock first, so deadlock detection can always see it
+        held.addPage(pageId, true);
+        while (true) {
+            int s = head.state.get();
+            if ((s & CLOSED) != 0) {
+                break;
+            }
+            if (head.state.compareAndSet(s, s + 1)) {
                 return true;
             }
+        }
+        held.removePage(pageId);
+        return false;
+    }
+
+    private void releaseFastShared(LockHead head) {
+        int s = head.state.decrementAndGet();
+        if (s == CLOSED) {
+            // the last fast reader is gone; an exclusive request may be waiting for it
+            head.latch.lock();
+            try {
+                grantWaiters(head);
+                removeIfUnused(head);
+            } finally {
+                unlatch(head);
+            }
+        } else if (s == 0 && head.latch.tryLock()) {
+            try {
+                removeIfUnused(head);
+            } finally {
+                unlatch(head);
+            }
+        }
+    }
+
+    /** Turn tid's fast-path shared lock on head, if any, into a regular holder. */
+    private void leaveFastPath(LockHead head, TransactionId tid) {
+        Held held = heldBy(tid);
+        if (Boolean.TRUE.equals(held.pages.get(head.resource))) {
+            head.state.decrementAndGet();
+            head.holders.put(tid, LockType.S);
+            held.pages.put((PageId) head.resource, Boolean.FALSE);
+        }
+    }
+
+    /**
+     * Return true if tid can be granted a lock of the given type on head
+     * right away: it conflicts with no other holder and, unless it is an
+     * upgrade, does not overtake a waiting request.
+     */
+    private boolean grantable(LockHead head, TransactionId tid, LockType type) {
+        boolean upgrade = head.holders.containsKey(tid);
+        if (!upgrade && !head.waiters.isEmpty()) {
             return false;
         }
+        return compatibleWithHolders(head, tid, type);
+    }
 
-        public TransactionId addHolder(TransactionId tid) {
-            if (lockType == LockType.SLock) {
-                if (!transactionIds.contains(tid)) {
-                    transactionIds.add(tid);
-                }
-                return tid;
+    private boolean compatibleWithHolders(LockHead head, TransactionId tid, LockType type) {
+        if (!type.compatible(LockType.S) && head.fastReaders() > 0) {
+            return false;
+        }
+        for (Map.Entry<TransactionId,LockType> holder : head.holders.entrySet()) {
+            if (!holder.getKey().equals(tid) && !type.compatible(holder.getValue())) {
+                return false;
             }
-            return null;
         }
+        return true;
+    }
 
+    private void grant(LockHead head, TransactionId tid, LockType type) {
+        head.holders.put(tid, type);
+        Held held = heldBy(tid);
+        if (head.resource instanceof PageId) {
+            held.addPage((PageId) head.resource, false);
+        } else {
+            held.tables.put((Integer) head.resource, type);
+        }
     }
 
-    public LockManager(int lockTabCap, int transTabCap) {
-        this.pageIdLockMap = new ConcurrentHashMap<>(lockTabCap);
-        this.transactionPageIdMap = new ConcurrentHashMap<>(transTabCap);
+    /** Grant the requests at the front of head's queue that have become compatible. */
+    private void grantWaiters(LockHead head) {
+        Iterator<Request> it = head.waiters.iterator();
+        while (it.hasNext()) {
+            Request r = it.next();
+            if (r.aborted) {
+                continue;
+            }
+            if (!compatibleWithHolders(head, r.tid, r.type)) {
+                return;
+            }
+            grant(head, r.tid, r.type);
+            r.granted = true;
+            it.remove();
+            r.ready.signal();
+        }
     }
 
-    public synchronized boolean holdsLock(TransactionId tid, PageId pid) {
-        ArrayList<PageId> lockList = getLockList(tid);
-        return lockList != null && lockList.contains(pid);
+    public void acquireLock(PageId pageId,TransactionId transactionId,Permissions permission) throws TransactionAbortedException{
+        LockType type = permission == Permissions.READ_ONLY ? LockType.S : LockType.X;
+        Integer tableId = pageId.getTableId();
+        Held held = heldBy(transactionId);
+        LockType tableLock = held.tables.get(tableId);
+        if (tableLock != null && tableLock.covers(type)) {
+            return;
+        }
+        LockType intention = type == LockType.S ? LockType.IS : LockType.IX;
+        if (tableLock == null || !tableLock.covers(intention)) {
+            lock(tableId, transactionId, intention, true);
+        }
+        if (type == LockType.X || !tryFastShared(pageId, held)) {
+            lock(pageId, transactionId, type, true);
+        }
+        escalate(transactionId, held, tableId);
+    }
+
+    /**
+     * Acquire a shared lock on pageId if it can be granted without waiting.
+     *
+     * @return false if the lock would have to wait
+     */
+    public boolean tryAcquireSharedLock(PageId pageId, TransactionId transactionId) {
+        Integer tableId = pageId.getTableId();
+        Held held = heldBy(transactionId);
+        try {
+            LockType tableLock = held.tables.get(tableId);
+            if (tableLock == null && !lock(tableId, transactionId, LockType.IS, false)) {
+                return false;
+            }
+            return tryFastShared(pageId, held) || lock(pageId, transactionId, LockType.S, false);
+        } catch (TransactionAbortedException e) {
+            return false; // cannot happen without waiting
+        } finally {
+            if (held.pages.isEmpty() && held.tables.isEmpty()) {
+                transactionLocks.remove(transactionId, held);
+            }
+        }
     }
 
-    private synchronized void block(PageId pageId, long start, long timeout)
+    /**
+     * Lock resource in the given mode, or in the mode combining it with the
+     * lock transactionId already holds there.
+     *
+     * @param wait whether to wait if the lock cannot be granted right away
+     * @return false if the lock was not granted without waiting
+     */
+    private boolean lock(Object resource, TransactionId transactionId, LockType type, boolean wait)
             throws TransactionAbortedException {
-        // activate blocking
-        if (System.currentTimeMillis() - start > timeout) {
-            throw new TransactionAbortedException();
+        Request request;
+        LockHead head = latchHead(resource);
+        try {
+            if (resource instanceof PageId) {
+                leaveFastPath(head, transactionId);
+            }
+            LockType held = head.holders.get(transactionId);
+            LockType wanted = held == null ? type : held.combine(type);
+            if (wanted == held) {
+                return true;
+            }
+            if (!wanted.compatible(LockType.S)) {
+                // no new fast readers from here on, so the count can only drop
+                setClosed(head, true);
+            }
+            if (grantable(head, transactionId, wanted)) {
+                grant(head, transactionId, wanted);
+                return true;
+            }
+            if (!wait) {
+                removeIfUnused(head);
+                return false;
+            }
+            request = new Request(transactionId, wanted, head);
+            if (held != null) {
+                // upgrades go first; readers queued behind would wait for us anyway
+                head.waiters.addFirst(request);
+            } else {
+                head.waiters.addLast(request);
+            }
+        } finally {
+            unlatch(head);
+        }
+
+        waiting.put(transactionId, request);
+        try {
+            synchronized (detector) {
+                breakDeadlock(transactionId);
+            }
+            awaitGrant(request);
+        } finally {
+            waiting.remove(transactionId);
+        }
+        return true;
+    }
+
+    /**
+     * Escalate transactionId's page locks on a table to a lock on the whole
+     * table, if it holds enough of them and the table lock can be granted
+     * without waiting.  Otherwise escalation is tried again once the
+     * transaction holds another threshold's worth of page locks.
+     */
+    private void escalate(TransactionId transactionId, Held held, Integer tableId)
+            throws TransactionAbortedException {
+        int threshold = escalationThreshold;
+        int pages = held.pageCount(tableId).get();
+        if (threshold == 0 || pages < threshold || pages % threshold != 0) {
+            return;
+        }
+        LockType tableLock = held.tables.get(tableId);
+        LockType target = tableLock == LockType.IS ? LockType.S : LockType.X;
+        if (!lock(tableId, transactionId, target, false)) {
+            return;
         }
+        for (PageId pid : held.pages.keySet().toArray(new PageId[0])) {
+            if (pid.getTableId() == tableId) {
+                releaseLock(transactionId, pid);
+            }
+        }
+    }
+
+    /** Sleep until request is granted, or abort if it is chosen as a deadlock victim. */
+    private void awaitGrant(Request request) throws TransactionAbortedException {
+        LockHead head = request.head;
+        head.latch.lock();
         try {
-            wait(timeout);
-            if (System.currentTimeMillis() - start > timeout) {
+            while (!request.granted && !request.aborted) {
+                try {
+                    request.ready.await();
+                } catch (InterruptedException e) {
+                    request.aborted = true;
+                }
+            }
+            if (!request.granted) {
+                head.waiters.remove(request);
+                // requests queued behind us may be grantable now
+                grantWaiters(head);
+                removeIfUnused(head);
                 throw new TransactionAbortedException();
             }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        } finally {
+            unlatch(head);
         }
     }
 
-    private synchronized void updateTransactionTable(TransactionId transactionId, PageId pageId) {
-        if (transactionPageIdMap.containsKey(transactionId)) {
-            if (!transactionPageIdMap.get(transactionId).contains(pageId)) {
-                transactionPageIdMap.get(transactionId).add(pageId);
+    /** Return the transactions the waiting transactionId waits for. */
+    private Set<TransactionId> waitsFor(TransactionId transactionId) {
+        Request request = waiting.get(transactionId);
+        if (request == null) {
+            return Collections.emptySet();
+        }
+        LockHead head = request.head;
+        HashSet<TransactionId> blockers = new HashSet<>();
+        head.latch.lock();
+        try {
+            if (request.granted || request.aborted) {
+                return blockers;
             }
-        } else {
-            // no entry tid
-            ArrayList<PageId> lockList = new ArrayList<PageId>();
-            lockList.add(pageId);
-            transactionPageIdMap.put(transactionId, lockList);
-        }
-    }
-
-    public synchronized void acquireLock(PageId pageId,TransactionId transactionId,Permissions permission) throws TransactionAbortedException{
-        long start = System.currentTimeMillis();
-        long maxTime = MIN_TIME + rand.nextInt(MAX_TIME - MIN_TIME);
-        while(true){
-            if (pageIdLockMap.containsKey(pageId)) {
-                // page is locked by some transaction
-                if (pageIdLockMap.get(pageId).getType() == LockType.SLock) {
-                    if (permission == Permissions.READ_ONLY) {
-                        //rr
-                        updateTransactionTable(transactionId, pageId);
-                        assert pageIdLockMap.get(pageId).addHolder(transactionId) != null;
-                        return;
-                    } else {
-                        //rw
-                        if (transactionPageIdMap.containsKey(transactionId) && transactionPageIdMap.get(transactionId).contains(pageId)
-                                && pageIdLockMap.get(pageId).getTransactionIds().size() == 1) {
-                            // if only this transaction read this page and now need write it, upgrade it.
-                            assert pageIdLockMap.get(pageId).getTransactionIds().get(0) == transactionId;
-                            // this is a combined case when lock on pid hold only by one trans (which is exactly tid)
-                            pageIdLockMap.get(pageId).tryUpgradeLock(transactionId);
-                            // isAcquired = true;
-                            return;
-                        } else {
-                            // all need to do is just blocking
-                            block(pageId, start, maxTime);
-                        }
+            for (Map.Entry<TransactionId,LockType> holder : head.holders.entrySet()) {
+                if (!request.type.compatible(holder.getValue())) {
+                    blockers.add(holder.getKey());
+                }
+            }
+            if (!request.type.compatible(LockType.S) && head.fastReaders() > 0) {
+                // fast-path readers are only known to their transactions
+                for (Map.Entry<TransactionId,Held> e : transactionLocks.entrySet()) {
+                    if (Boolean.TRUE.equals(e.getValue().pages.get(head.resource))) {
+                        blockers.add(e.getKey());
                     }
-                } else {
-                    // already get a Xlock on pid
-                    if (pageIdLockMap.get(pageId).getTransactionIds().get(0) == transactionId) {
-                        // Xlock means only one holder
-                        // request xlock or slock on the pid with that tid
-                        // sanity check
-                        assert pageIdLockMap.get(pageId).getTransactionIds().size() == 1;
-                        // isAcquired = true;
-                        return;
-                    } else {
-                        // otherwise block
-                        block(pageId, start, maxTime);
+                }
+            }
+            for (Request ahead : head.waiters) {
+                if (ahead == request) {
+                    break;
+                }
+                if (!ahead.aborted && !request.type.compatible(ahead.type)) {
+                    blockers.add(ahead.tid);
+                }
+            }
+        } finally {
+            head.latch.unlock();
+        }
+        blockers.remove(transactionId);
+        return blockers;
+    }
+
+    /**
+     * Abort the youngest transaction on each cycle of the wait-for graph
+     * through start.  The graph has no other cycles, since each one is
+     * broken as soon as it is closed; but start may have closed several at
+     * once, say by waiting to upgrade a lock that many others also hold.
+     */
+    private void breakDeadlock(TransactionId start) {
+        while (true) {
+            ArrayList<TransactionId> path = new ArrayList<>();
+            path.add(start);
+            if (!findCycle(start, path, new HashSet<TransactionId>())) {
+                return;
+            }
+            TransactionId victim = start;
+            for (TransactionId t : path) {
+                if (t.getId() > victim.getId()) {
+                    victim = t;
+                }
+            }
+            // an aborted or granted request waits for nobody, so the
+            // next search no longer finds the cycle through victim
+            Request request = waiting.get(victim);
+            if (request != null) {
+                request.head.latch.lock();
+                try {
+                    if (!request.granted) {
+                        request.aborted = true;
+                        request.ready.signal();
                     }
+                } finally {
+                    request.head.latch.unlock();
                 }
-            } else {
-                // this page has not been held by any transaction
-                ArrayList<TransactionId> transactionIds = new ArrayList<>();
-                transactionIds.add(transactionId);
-                pageIdLockMap.put(pageId, new PageLock(pageId, permission,transactionIds));
-                updateTransactionTable(transactionId, pageId);
+            }
+            if (victim.equals(start)) {
                 return;
             }
         }
     }
 
-    public synchronized void releaseLock(TransactionId tid, PageId pid) {
-        // remove from trans table
-        if (transactionPageIdMap.containsKey(tid)) {
-            transactionPageIdMap.get(tid).remove(pid);
-            if (transactionPageIdMap.get(tid).size() == 0) {
-                transactionPageIdMap.remove(tid);
+    private boolean findCycle(TransactionId start, ArrayList<TransactionId> path, HashSet<TransactionId> visited) {
+        for (TransactionId next : waitsFor(path.get(path.size() - 1))) {
+            if (next.equals(start)) {
+                return true;
+            }
+            if (visited.add(next)) {
+                path.add(next);
+                if (findCycle(start, path, visited)) {
+                    return true;
+                }
+                path.remove(path.size() - 1);
             }
         }
+        return false;
+    }
 
-        // remove from locktable
-        if (pageIdLockMap.containsKey(pid)) {
-            pageIdLockMap.get(pid).getTransactionIds().remove(tid);
-            if (pageIdLockMap.get(pid).getTransactionIds().size() == 0) {
-                pageIdLockMap.remove(pid);
-            } else {
-                notifyAll();
-            }
+    public void releaseLock(TransactionId tid, PageId pid) {
+        Held held = transactionLocks.get(tid);
+        if (held == null) {
+            return;
+        }
+        Boolean fast = held.removePage(pid);
+        LockHead head = lockTable.get(pid);
+        if (fast == null || head == null) {
+            return;
         }
+        if (fast) {
+            releaseFastShared(head);
+            return;
+        }
+        release(head, tid);
     }
 
-    public synchronized void releaseLocksOnTransaction(TransactionId tid) {
-        if (transactionPageIdMap.containsKey(tid)) {
-            PageId[] pidArr = new PageId[transactionPageIdMap.get(tid).size()];
-            PageId[] toRelease = transactionPageIdMap.get(tid).toArray(pidArr);
-            for (PageId pid : toRelease) {
-                releaseLock(tid, pid);
+    private void release(LockHead head, TransactionId tid) {
+        head.latch.lock();
+        try {
+            if (!head.removed && head.holders.remove(tid) != null) {
+                grantWaiters(head);
+                removeIfUnused(head);
             }
+        } finally {
+            unlatch(head);
+        }
+    }
 
+    public void releaseLocksOnTransaction(TransactionId tid) {
+        Held held = transactionLocks.get(tid);
+        if (held == null) {
+            return;
+        }
+        for (PageId pid : held.pages.keySet().toArray(new PageId[0])) {
+            releaseLock(tid, pid);
+        }
+        for (Integer tableId : held.tables.keySet().toArray(new Integer[0])) {
+            held.tables.remove(tableId);
+            LockHead head = lockTable.get(tableId);
+            if (head != null) {
+                release(head, tid);
+            }
         }
+        transactionLocks.remove(tid, held);
     }
 
-    public synchronized ArrayList<PageId> getLockList(TransactionId tid) {
-        return transactionPageIdMap.getOrDefault(tid, null);
+    /** Return the pages tid holds locks on, or null if it holds no locks. */
+    public ArrayList<PageId> getLockList(TransactionId tid) {
+        Held held = transactionLocks.get(tid);
+        return held == null ? null : new ArrayList<PageId>(held.pages.keySet());
+    }
+
+    /**
+     * Return the tables tid has locked as a whole (in S, SIX or X mode).  It
+     * may have read or written any page of these tables without holding a
+     * lock on the page.
+     */
+    public ArrayList<Integer> getTableLocks(TransactionId tid) {
+        ArrayList<Integer> tables = new ArrayList<Integer>();
+        Held held = transactionLocks.get(tid);
+        if (held != null) {
+            for (Map.Entry<Integer,LockType> e : held.tables.entrySet()) {
+                if (e.getValue().covers(LockType.S)) {
+                    tables.add(e.getKey());
+                }
+            }
+        }
+        return tables;
     }
 }
@@ -0,0 +1,80 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * LogBuffer collects the bytes appended to the log in memory and writes
+ * them to the log file in large chunks: when the buffer fills up, and when
+ * {@link #flush} is called before the log is forced or read back.
+ * <p>
+ * The bytes are written at explicit positions of the file, so the file
+ * pointer of the RandomAccessFile the channel belongs to, which LogFile
+ * reads the log with, is left alone.
+ *
+ * @NotThreadsafe, LogFile only uses it under its monitor
+ */
+class LogBuffer extends OutputStream {
+
+    /** Bytes buffered before they are written out. */
+    static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private final ByteBuffer buf;
+    private FileChannel channel;
+    /** The position in the file of the first buffered byte. */
+    private long fileOffset;
+
+    LogBuffer(FileChannel channel, long position, int capacity) {
+        this.buf = ByteBuffer.allocate(capacity);
+        this.channel = channel;
+        this.fileOffset = position;
+    }
+
+    /** Return the position in the file the next byte will be written at. */
+    long position() {
+        return fileOffset + buf.position();
+    }
+
+    /**
+     * Drop whatever is buffered and continue appending at the given position
+     * of the given channel, e.g. after the log file was truncated.
+     */
+    void reset(FileChannel channel, long position) {
+        buf.clear();
+        this.channel = channel;
+        this.fileOffset = position;
+    }
+
+    public void write(int b) throws IOException {
+        if (!buf.hasRemaining()) {
+            flush();
+        }
+        buf.put((byte) b);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!buf.hasRemaining()) {
+                flush();
+            }
+            int n = Math.min(len, buf.remaining());
+            buf.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** Write the buffered bytes to the file, without forcing it. */
+    public void flush() throws IOException {
+        buf.flip();
+        try {
+            while (buf.hasRemaining()) {
+                fileOffset += channel.write(buf, fileOffset);
+            }
+        } finally {
+            buf.compact();
+        }
+    }
+}
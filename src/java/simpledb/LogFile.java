@@ -2,8 +2,9 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -15,16 +16,16 @@ two-phase locking discipline are followed.  <p>
 <p>
 
 Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
+writes from happening.)  BufferPool itself is not: it writes log records
+(when pages are written out) without holding any of its locks, and then
+writes the pages under its write lock ({@link BufferPool#getWriteLock}.)
+Rollback and recovery undo updates on disk and drop the pages from the
+BufferPool; so that no page write can interleave with them, they begin
+with a block like:
 
 <p>
 <pre>
-    synchronized (Database.getBufferPool()) {
+    synchronized (Database.getBufferPool().getWriteLock()) {
        synchronized (this) {
 
        ..
@@ -32,49 +33,118 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+The BufferPool never calls into the log while it holds the write lock, so
+taking the two in this order cannot deadlock.  Checkpoints have the
+BufferPool write pages back before they take the monitor.
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> Log records are appended to segment files named after the log file
+with the LSN of their first record as a suffix, e.g. log.0, log.16777234
+(see <u>Segments</u> below.)
+
+<li> The log file itself holds a single long integer: the LSN of the
+last checkpoint record, or -1 if there are no checkpoints.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> Log records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN of the position in the
+log where the record began.
 
 <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
 CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>UPDATE RECORDS consist of a {@link PageDelta}: the byte ranges of
+one page that the transaction changed, with their contents before and
+after the change.  Undo and redo patch the page in its file with the
+before or after bytes.  See LogFile.print() for an example.
 
-<li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+<li> CHECKPOINT records consist of the active transactions at the time
+the checkpoint was taken and the dirty page table.  The format of the
+record is an integer count of the number of transactions, as well as a
+long integer transaction id and a long integer first record LSN for
+each active transaction, followed by an integer count of dirty pages,
+and an integer table id, an integer page number and a long integer
+recovery LSN for each of them.
 
 </ul>
 
+<p> <u> Appending: </u>
+<p>
+
+Records are appended to an in-memory {@link LogBuffer}, which writes
+them to the current segment in large chunks; the log is written out
+before it is forced and before it is read back.  Each record appended
+gets a log sequence number (LSN), its position in the log: the number
+of bytes appended to the log since it was created, up to the end of the
+record.  logWrite() stamps the page it logs with the LSN of its record
+(see {@link Page#getLsn}), and the BufferPool forces the log up to a
+page's LSN before writing the page, as write-ahead logging needs.
+
+<p> <u> Segments: </u>
+<p>
+
+Once the current segment grows past the segment size (see
+{@link #SEGMENT_SIZE_PROPERTY}) it is forced and closed, and records go
+to a new one.  Records never span segments, and LSNs are never
+rewritten, so truncating the log only deletes the segments that
+recovery no longer needs.
+
+<p> <u> Checkpoints: </u>
+<p>
+
+Checkpoints are fuzzy: they do not write out the buffer pool, and hold
+the LogFile monitor only while they append their record.  Instead the
+record lists, next to the active transactions, the dirty page table of
+the BufferPool: each page whose logged updates may not be on disk yet,
+with the LSN the log was at when it was first logged (its recovery
+LSN.)  Recovery starts at the oldest of the checkpoint, the first
+records of its active transactions and the recovery LSNs of its dirty
+pages, and everything before that point can be truncated.  A checkpoint
+hands the pages of completed transactions to the BufferPool's write
+behind first, so that the dirty page table and the log stay short.
+
+<p> <u> Group commit: </u>
+<p>
+
+Forcing the log waits
+until everything up to the current LSN is durable.  The first thread to
+wait becomes the flusher: it forces the file for every record appended
+so far, outside the LogFile monitor, while the threads arriving after it
+append their records and queue up.  When the force completes, every
+waiter up to the durable LSN returns, and one of the others forces the
+next batch.  logCommit() does not hold the monitor while it waits, so
+concurrent commits share one force instead of taking one each.
+
 */
 
 public class LogFile {
 
+    /** System property holding the size of log segments, in bytes. */
+    public static final String SEGMENT_SIZE_PROPERTY = "simpledb.LogSegmentSize";
+
+    /** Segment size when the property is not set. */
+    static final long DEFAULT_SEGMENT_SIZE = 16L << 20;
+
     final File logFile;
+    /** logFile, which holds the LSN of the last checkpoint. */
+    private final RandomAccessFile control;
+    /** The segment being appended to, starting at LSN segmentBase. */
     private RandomAccessFile raf;
+    private long segmentBase;
+    /** The segment files by the LSN of their first record. */
+    private final TreeMap<Long,File> segments = new TreeMap<Long,File>();
+    private volatile long segmentSize;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -90,8 +160,29 @@ public class LogFile {
     long currentOffset = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
+    /** LSN of the last checkpoint, as recorded in logFile. */
+    private long lastCheckpoint = NO_CHECKPOINT_ID; //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    /**
+     * For each running transaction, the bytes its UPDATE records covered on
+     * pages that do not track their changes (see PageDelta#of).
+     */
+    private final HashMap<Long,HashMap<PageId,BitSet>> loggedBytes =
+        new HashMap<Long,HashMap<PageId,BitSet>>(); //protected by this
+
+    /** The channel of raf, for forcing the log outside the monitor. */
+    private volatile FileChannel channel;
+    /** Records being appended, not yet written to the segment. */
+    private final LogBuffer buffer;
+    private final DataOutputStream out;
+    /** LSN of the end of the last record appended. */
+    private volatile long appendedLsn = 0;
+    /** Guards durableLsn, flushing and forceCount. */
+    private final Object durability = new Object();
+    private long durableLsn = 0;
+    private boolean flushing = false;
+    private long forceCount = 0;
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -106,7 +197,24 @@ public class LogFile {
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        control = new RandomAccessFile(f, "rw");
+        segmentSize = Math.max(1, Long.getLong(SEGMENT_SIZE_PROPERTY, DEFAULT_SEGMENT_SIZE));
+        File dir = f.getAbsoluteFile().getParentFile();
+        String prefix = f.getName() + ".";
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(prefix)) {
+                    try {
+                        segments.put(Long.parseLong(name.substring(prefix.length())), new File(dir, name));
+                    } catch (NumberFormatException e) {
+                        // not a segment
+                    }
+                }
+            }
+        }
+        buffer = new LogBuffer(null, 0, LogBuffer.DEFAULT_CAPACITY);
+        out = new DataOutputStream(buffer);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,27 +235,127 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            for (File segment : segments.values()) {
+                segment.delete();
+            }
+            segments.clear();
+            control.setLength(0);
+            writeCheckpointLsn(NO_CHECKPOINT_ID);
+            openSegment(0, 0);
+            currentOffset = 0;
+            appendedLsn = 0;
         }
     }
 
+    /** Set the size past which the log moves on to a new segment. */
+    void setSegmentSize(long bytes) {
+        segmentSize = Math.max(1, bytes);
+    }
+
+    /** Return the number of segment files of the log. */
+    synchronized int numSegments() {
+        return segments.size();
+    }
+
+    /** Return the number of bytes of the log written to its segments. */
+    synchronized long bytesOnDisk() {
+        long n = 0;
+        for (File segment : segments.values()) {
+            n += segment.length();
+        }
+        return n;
+    }
+
+    /** Return the LSN of the end of the last record appended. */
+    long getAppendedLsn() {
+        return appendedLsn;
+    }
+
+    /**
+     * Append to the segment starting at LSN base from now on, creating it
+     * if needed, at the given LSN, dropping anything after it.
+     */
+    private void openSegment(long base, long lsn) throws IOException {
+        File file = new File(logFile.getAbsoluteFile().getParentFile(), logFile.getName() + "." + base);
+        RandomAccessFile segment = new RandomAccessFile(file, "rw");
+        segment.setLength(lsn - base);
+        RandomAccessFile old = raf;
+        raf = segment;
+        segmentBase = base;
+        segments.put(base, file);
+        channel = raf.getChannel();
+        buffer.reset(channel, lsn - base);
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /** Write out the buffer and read the log from the given LSN. */
+    private LogReader reader(long lsn) throws IOException {
+        buffer.flush();
+        return new LogReader(segments, lsn);
+    }
+
+    private long readCheckpointLsn() throws IOException {
+        if (control.length() < LONG_SIZE) {
+            return NO_CHECKPOINT_ID;
+        }
+        control.seek(0);
+        return control.readLong();
+    }
+
+    private void writeCheckpointLsn(long lsn) throws IOException {
+        control.seek(0);
+        control.writeLong(lsn);
+        control.getChannel().force(false);
+        lastCheckpoint = lsn;
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** Finish appending a record: advance the current offset and LSN,
+        and move on to a new segment if this one is full. */
+    private void endRecord() throws IOException {
+        currentOffset = segmentBase + buffer.position();
+        appendedLsn = currentOffset;
+        if (currentOffset - segmentBase >= segmentSize) {
+            // the old segment is closed, so it is forced here rather than
+            // by the next flusher
+            buffer.flush();
+            channel.force(false);
+            openSegment(currentOffset, currentOffset);
+            synchronized (durability) {
+                durableLsn = Math.max(durableLsn, currentOffset);
+                durability.notifyAll();
+            }
+        }
+    }
+
+    /** Return the LSN the log is durable up to. */
+    long getDurableLsn() {
+        synchronized (durability) {
+            return durableLsn;
+        }
+    }
+
+    /** Return the number of times the log file has been forced. */
+    long getForceCount() {
+        synchronized (durability) {
+            return forceCount;
+        }
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
+        // must have the buffer pool's write lock before proceeding,
+        // since this calls rollback
 
-        synchronized (Database.getBufferPool()) {
+        synchronized (Database.getBufferPool().getWriteLock()) {
 
             synchronized(this) {
                 preAppend();
@@ -158,141 +366,85 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid.getId());
+                out.writeLong(currentOffset);
+                endRecord();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                loggedBytes.remove(tid.getId());
             }
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  The force is shared with the
+        transactions committing at the same time.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            endRecord();
+            lsn = appendedLsn;
+            tidToFirstLogRecord.remove(tid.getId());
+            loggedBytes.remove(tid.getId());
+        }
+        forceTo(lsn);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  The after
+        image is stamped with the LSN of the record; it is durable once
+        the log is forced up to that LSN.
         @param tid The transaction performing the write
-        @param before The before image of the page
-        @param after The after image of the page
+        @param before The committed version of the page
+        @param after The page as it is about to be written
 
         @see simpledb.Page#getBeforeImage
     */
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + buffer.position());
         preAppend();
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           changed bytes, before and after (see PageDelta)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-
-        Debug.log("WRITE OFFSET = " + currentOffset);
-    }
-
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
-    }
-
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
+        out.writeInt(UPDATE_RECORD);
+        out.writeLong(tid.getId());
+
+        BitSet bytes = null;
+        if (!(after instanceof HeapPage)) {
+            HashMap<PageId,BitSet> logged = loggedBytes.get(tid.getId());
+            if (logged == null) {
+                logged = new HashMap<PageId,BitSet>();
+                loggedBytes.put(tid.getId(), logged);
+            }
+            bytes = logged.get(after.getId());
+            if (bytes == null) {
+                bytes = new BitSet();
+                logged.put(after.getId(), bytes);
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
         }
-        return newPage;
+        PageDelta.of(before, after, bytes).write(out);
+        out.writeLong(currentOffset);
+        endRecord();
+        after.setLsn(appendedLsn);
 
+        Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,150 +459,118 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        endRecord();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
     /** Checkpoint the log and write a checkpoint record. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        // outside the monitors: pages of running transactions are skipped
+        Database.getBufferPool().writeBehind();
+        long startCpOffset;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + currentOffset);
+            preAppend();
+            // taken under the monitor: a page logged after this is logged
+            // after the checkpoint record too
+            Map<PageId,Long> dirty = Database.getBufferPool().getDirtyPageTable();
+            startCpOffset = currentOffset;
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            out.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long,Long> active : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + active.getKey());
+                out.writeLong(active.getKey());
+                out.writeLong(active.getValue());
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //and the dirty page table
+            out.writeInt(dirty.size());
+            for (Map.Entry<PageId,Long> page : dirty.entrySet()) {
+                out.writeInt(page.getKey().getTableId());
+                out.writeInt(page.getKey().getPageNumber());
+                out.writeLong(page.getValue());
             }
+            out.writeLong(currentOffset);
+            endRecord();
+        }
+
+        // the force is shared with concurrent commits
+        force();
+        synchronized (this) {
+            //once the CP is durable, make sure the CP location in the log
+            // file is updated, unless a later checkpoint got there first
+            if (startCpOffset > lastCheckpoint) {
+                writeCheckpointLsn(startCpOffset);
+            }
+            //Debug.log("CP OFFSET = " + startCpOffset);
         }
 
         logTruncate();
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
+    /**
+     * Return the LSN recovery starts at for the checkpoint record at
+     * cpLoc: the oldest of the checkpoint, the first records of the
+     * transactions active then and the recovery LSNs of dirty pages.
+     */
+    private long recoveryStart(long cpLoc) throws IOException {
+        LogReader reader = reader(cpLoc);
+        try {
+            DataInputStream in = reader.data;
+            int cpType = in.readInt();
+            in.readLong();
             if (cpType != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
-
-            int numOutstanding = raf.readInt();
-
+            long start = cpLoc;
+            int numOutstanding = in.readInt();
             for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+                in.readLong();
+                start = Math.min(start, in.readLong());
+            }
+            int numDirty = in.readInt();
+            for (int i = 0; i < numDirty; i++) {
+                in.readInt();
+                in.readInt();
+                start = Math.min(start, in.readLong());
             }
+            return start;
+        } finally {
+            reader.close();
         }
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption.  Segments wholly before the point recovery starts
+        at are deleted; the others are left as they are. */
+    public synchronized void logTruncate() throws IOException {
+        preAppend();
+        long cpLoc = readCheckpointLsn();
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return;
+        }
+        long minLogRecord = recoveryStart(cpLoc);
 
-            } catch (EOFException e) {
+        // a segment is needed until the next one starts after minLogRecord
+        while (segments.size() > 1) {
+            Long first = segments.firstKey();
+            if (segments.higherKey(first) > minLogRecord) {
                 break;
             }
+            File segment = segments.remove(first);
+            Debug.log("TRUNCATING LOG; DELETING " + segment + " BEFORE " + minLogRecord);
+            if (!segment.delete()) {
+                throw new IOException("could not delete log segment " + segment);
+            }
         }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -460,17 +580,63 @@ public class LogFile {
         be enforced by this method.)
 
         @param tid The transaction to rollback
+        @throws NoSuchElementException if tid is not a live transaction
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
+        synchronized (Database.getBufferPool().getWriteLock()) {
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstRecord == null) {
+                    throw new NoSuchElementException("no live transaction " + tid.getId());
+                }
+                ArrayList<PageDelta> updates = new ArrayList<PageDelta>();
+                LogReader reader = reader(firstRecord);
+                try {
+                    DataInputStream in = reader.data;
+                    while (reader.hasNext()) {
+                        int type = in.readInt();
+                        long recordTid = in.readLong();
+                        if (type == UPDATE_RECORD) {
+                            PageDelta delta = PageDelta.read(in);
+                            if (recordTid == tid.getId()) {
+                                updates.add(delta);
+                            }
+                        } else if (type == CHECKPOINT_RECORD) {
+                            skipCheckpointData(in);
+                        }
+                        in.readLong();
+                    }
+                } finally {
+                    reader.close();
+                }
+                undo(updates);
             }
         }
     }
 
+    /** Undo the given updates, newest first, on disk, and drop the
+        pages from the buffer pool. */
+    private void undo(List<PageDelta> updates) throws IOException {
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            updates.get(i).undo();
+        }
+    }
+
+    private void skipCheckpointData(DataInput in) throws IOException {
+        int numXactions = in.readInt();
+        in.readFully(new byte[2 * numXactions * LONG_SIZE]);
+        int numDirty = in.readInt();
+        in.readFully(new byte[numDirty * (2 * INT_SIZE + LONG_SIZE)]);
+    }
+
+    /** Return true if tid has a BEGIN record and has not committed or
+        aborted yet. */
+    public synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
@@ -478,7 +644,10 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            if (raf != null) {
+                raf.close();
+            }
+            control.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -488,23 +657,251 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery replays the log from the last checkpoint, or from the
+        oldest first record of a transaction active at that checkpoint
+        or recovery LSN of a page dirty at it: it redoes every update in
+        log order, and when it reaches an ABORT record it rolls that
+        transaction back, just as logAbort() did.  Transactions that
+        neither committed nor aborted are then rolled back, and ABORT
+        records are appended for them so that a later recovery treats
+        them the same way.  A record torn by the crash at the end of the
+        log is dropped.
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
+        synchronized (Database.getBufferPool().getWriteLock()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                if (segments.isEmpty()) {
+                    writeCheckpointLsn(NO_CHECKPOINT_ID);
+                    openSegment(0, 0);
+                    currentOffset = 0;
+                    appendedLsn = 0;
+                    return;
+                }
+                long cpLoc = readCheckpointLsn();
+                lastCheckpoint = cpLoc;
+                long start = cpLoc == NO_CHECKPOINT_ID ? segments.firstKey() : recoveryStart(cpLoc);
+
+                // redo, rolling back aborted transactions where they aborted
+                LinkedHashMap<Long,ArrayList<PageDelta>> live = new LinkedHashMap<Long,ArrayList<PageDelta>>();
+                long end = start;
+                LogReader reader = new LogReader(segments, start);
+                try {
+                    DataInputStream in = reader.data;
+                    while (reader.hasNext()) {
+                        int type = in.readInt();
+                        long recordTid = in.readLong();
+                        switch (type) {
+                        case BEGIN_RECORD:
+                            live.put(recordTid, new ArrayList<PageDelta>());
+                            break;
+                        case UPDATE_RECORD:
+                            PageDelta delta = PageDelta.read(in);
+                            delta.redo();
+                            ArrayList<PageDelta> updates = live.get(recordTid);
+                            if (updates == null) {
+                                updates = new ArrayList<PageDelta>();
+                                live.put(recordTid, updates);
+                            }
+                            updates.add(delta);
+                            break;
+                        case COMMIT_RECORD:
+                            live.remove(recordTid);
+                            break;
+                        case ABORT_RECORD:
+                            ArrayList<PageDelta> aborted = live.remove(recordTid);
+                            if (aborted != null) {
+                                undo(aborted);
+                            }
+                            break;
+                        case CHECKPOINT_RECORD:
+                            skipCheckpointData(in);
+                            break;
+                        default:
+                            throw new EOFException("bad log record type " + type);
+                        }
+                        in.readLong();
+                        end = reader.position();
+                    }
+                } catch (EOFException e) {
+                    // the end of the log, or a record torn by the crash
+                } finally {
+                    reader.close();
+                }
+
+                // drop the torn tail, and continue appending after it
+                long base = segments.floorKey(end);
+                while (segments.lastKey() > base) {
+                    segments.remove(segments.lastKey()).delete();
+                }
+                openSegment(base, end);
+                currentOffset = end;
+                appendedLsn = end;
+
+                // undo the transactions that were running at the crash
+                for (Map.Entry<Long,ArrayList<PageDelta>> loser : live.entrySet()) {
+                    Debug.log("RECOVERY: ROLLING BACK " + loser.getKey());
+                    undo(loser.getValue());
+                    out.writeInt(ABORT_RECORD);
+                    out.writeLong(loser.getKey());
+                    out.writeLong(currentOffset);
+                    endRecord();
+                }
+                tidToFirstLogRecord.clear();
+                loggedBytes.clear();
+                force();
             }
          }
     }
 
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
-        // some code goes here
+        synchronized (this) {
+            long cpLoc = readCheckpointLsn();
+            System.out.println("LAST CHECKPOINT: "
+                    + (cpLoc == NO_CHECKPOINT_ID ? "none" : String.valueOf(cpLoc)));
+            if (segments.isEmpty()) {
+                return;
+            }
+            LogReader reader = reader(segments.firstKey());
+            try {
+                DataInputStream in = reader.data;
+                while (reader.hasNext()) {
+                    long offset = reader.position();
+                    int type = in.readInt();
+                    long recordTid = in.readLong();
+                    StringBuilder line = new StringBuilder();
+                    line.append(offset).append(": ");
+                    switch (type) {
+                    case ABORT_RECORD:
+                        line.append("ABORT tid=").append(recordTid);
+                        break;
+                    case COMMIT_RECORD:
+                        line.append("COMMIT tid=").append(recordTid);
+                        break;
+                    case BEGIN_RECORD:
+                        line.append("BEGIN tid=").append(recordTid);
+                        break;
+                    case UPDATE_RECORD:
+                        PageDelta delta = PageDelta.read(in);
+                        line.append("UPDATE tid=").append(recordTid)
+                            .append(" table=").append(delta.getPageId().getTableId())
+                            .append(" page=").append(delta.getPageId().getPageNumber())
+                            .append(" bytes=").append(delta.numBytes());
+                        break;
+                    case CHECKPOINT_RECORD:
+                        line.append("CHECKPOINT active=[");
+                        int numXactions = in.readInt();
+                        for (int i = 0; i < numXactions; i++) {
+                            long xid = in.readLong();
+                            long firstRecord = in.readLong();
+                            line.append(i == 0 ? "" : ", ").append(xid).append("@").append(firstRecord);
+                        }
+                        line.append("] dirty=[");
+                        int numDirty = in.readInt();
+                        for (int i = 0; i < numDirty; i++) {
+                            int table = in.readInt();
+                            int page = in.readInt();
+                            long recLsn = in.readLong();
+                            line.append(i == 0 ? "" : ", ").append(table).append(":").append(page)
+                                .append("@").append(recLsn);
+                        }
+                        line.append("]");
+                        break;
+                    default:
+                        line.append("UNKNOWN type=").append(type);
+                        System.out.println(line);
+                        return;
+                    }
+                    line.append(" start=").append(in.readLong());
+                    System.out.println(line);
+                }
+            } catch (EOFException e) {
+                // a torn record at the end of the log
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /** Force every record appended so far to disk. */
+    public void force() throws IOException {
+        forceTo(appendedLsn);
+    }
+
+    /**
+     * Wait until the log is durable up to lsn, forcing it unless another
+     * thread is already doing so.
+     */
+    void forceTo(long lsn) throws IOException {
+        // a page stamped by an earlier LogFile needs nothing from this one
+        lsn = Math.min(lsn, appendedLsn);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                synchronized (durability) {
+                    while (durableLsn < lsn && flushing) {
+                        try {
+                            durability.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (durableLsn >= lsn) {
+                        return;
+                    }
+                }
+                // everything appended by now goes out with this force; the
+                // monitor is taken before, never while, waiting as flusher
+                long target;
+                synchronized (this) {
+                    buffer.flush();
+                    target = appendedLsn;
+                }
+                synchronized (durability) {
+                    if (flushing) {
+                        // another thread got there first
+                        continue;
+                    }
+                    flushing = true;
+                }
+                boolean forced = false;
+                try {
+                    forceChannel();
+                    forced = true;
+                } finally {
+                    synchronized (durability) {
+                        flushing = false;
+                        if (forced) {
+                            durableLsn = Math.max(durableLsn, target);
+                            forceCount++;
+                        }
+                        durability.notifyAll();
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    private void forceChannel() throws IOException {
+        while (true) {
+            FileChannel ch = channel;
+            try {
+                // the file's length is forced along with the data
+                ch.force(false);
+                return;
+            } catch (ClosedChannelException e) {
+                if (ch == channel) {
+                    throw e;
+                }
+                // the log moved on to a new segment; force that one
+            }
+        }
     }
 
 }
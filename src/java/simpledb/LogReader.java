@@ -0,0 +1,99 @@
+package simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * LogReader reads the log sequentially from a given LSN, across the segment
+ * files the log is split into.  Records never span segments, so a record
+ * running past the end of its segment was torn by a crash, and reading it
+ * fails with an EOFException just like reading past the end of the log.
+ * <p>
+ * The segments are read as they are on disk; LogFile writes out its
+ * {@link LogBuffer} before reading.
+ */
+class LogReader extends InputStream {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Iterator<Map.Entry<Long, File>> segments;
+    private InputStream in;
+    private long position;
+    /** LSN of the end of the segment being read. */
+    private long segmentEnd;
+    /** Record fields are read through this. */
+    final DataInputStream data;
+
+    /**
+     * @param segments the segment files by the LSN they start at
+     * @param from the LSN to start reading at
+     * @throws IOException if no segment holds from, e.g. it was truncated
+     */
+    LogReader(NavigableMap<Long, File> segments, long from) throws IOException {
+        Map.Entry<Long, File> first = segments.floorEntry(from);
+        if (first == null) {
+            throw new IOException("log truncated before LSN " + from);
+        }
+        this.segments = segments.tailMap(first.getKey(), false).entrySet().iterator();
+        open(first.getKey(), first.getValue(), from);
+        data = new DataInputStream(this);
+    }
+
+    private void open(long base, File file, long from) throws IOException {
+        if (in != null) {
+            in.close();
+        }
+        FileInputStream fin = new FileInputStream(file);
+        fin.getChannel().position(from - base);
+        in = new BufferedInputStream(fin, BUFFER_SIZE);
+        position = from;
+        segmentEnd = base + file.length();
+    }
+
+    /** Return the LSN of the next byte to be read. */
+    long position() {
+        return position;
+    }
+
+    /**
+     * Return true if there is more log to read, moving on to the next
+     * segment at the end of this one.
+     */
+    boolean hasNext() throws IOException {
+        while (position >= segmentEnd) {
+            if (!segments.hasNext()) {
+                return false;
+            }
+            Map.Entry<Long, File> next = segments.next();
+            open(next.getKey(), next.getValue(), next.getKey());
+        }
+        return true;
+    }
+
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            position++;
+        }
+        return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0) {
+            position += n;
+        }
+        return n;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
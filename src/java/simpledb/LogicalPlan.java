@@ -81,6 +81,18 @@ public class LogicalPlan {
         return this.tableMap;
     }
 
+    /** Return true if a filter added via {@link #addFilter} ranges over the table with the given alias.
+
+        @param alias the table alias to look for
+     */
+    public boolean hasFilter(String alias) {
+        for (LogicalFilterNode lf : filters) {
+            if (lf.tableAlias.equals(alias))
+                return true;
+        }
+        return false;
+    }
+
     /** Add a new filter to the logical plan
      *   @param field The name of the over which the filter applies;
      *   this can be a fully qualified field (tablename.field or
@@ -474,7 +486,10 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
+        // a plan already in ascending order, e.g. from a merge join or a
+        // B+ tree scan, needs no sort
+        if (hasOrderBy && !(oByAsc && SortMergeJoin.isSorted(node,
+                node.getTupleDesc().fieldNameToIndex(oByField)))) {
             node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
         }
 
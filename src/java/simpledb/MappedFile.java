@@ -0,0 +1,204 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * MappedFile gives a DbFile page-granularity access to its backing file
+ * through the file's long-lived FileChannel, kept in the database's
+ * {@link FileHandleCache}, and a read-only memory mapping of the file.  The
+ * mapping lives outside the Java heap, so reading a page is a single copy out
+ * of the OS page cache with no system call and no temporary buffers.
+ * <p>
+ * The file is mapped in chunks of up to {@link #CHUNK_SIZE} bytes, which
+ * lifts the 2GB limit of a single mapping.  Files grow while they are open;
+ * bytes past the end of the current mapping are read with positional channel
+ * reads, and the mapping is only rebuilt once the file has grown by a
+ * sizeable fraction, so appends do not cause a remap per page.
+ * <p>
+ * Writes go through the channel with positional writes.  The mapping is
+ * shared with the file, so it sees them immediately, and it stays valid
+ * when the cache closes the channel.
+ */
+class MappedFile {
+
+    /** Bytes covered by one mapped chunk. */
+    static final long CHUNK_SIZE = 1L << 30;
+
+    /** Granularity at which the OS pages mapped files in. */
+    private static final int OS_PAGE_SIZE = 4096;
+
+    /** Minimum growth, in bytes, before the mapping is rebuilt. */
+    static final long REMAP_THRESHOLD = 1L << 16;
+
+    /** The chunks mapped so far and the number of bytes they cover. */
+    private static class Mapping {
+        final MappedByteBuffer[] chunks;
+        final long size;
+
+        Mapping(MappedByteBuffer[] chunks, long size) {
+            this.chunks = chunks;
+            this.size = size;
+        }
+    }
+
+    private final File file;
+    private volatile Mapping mapping = new Mapping(new MappedByteBuffer[0], 0);
+
+    MappedFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Read up to dst.length bytes starting at offset.
+     *
+     * @return the number of bytes read, less than dst.length only when the
+     *         end of the file was reached
+     */
+    int read(long offset, byte[] dst) throws IOException {
+        int len = dst.length;
+        Mapping m = mapping;
+        if (offset + len > m.size) {
+            remapIfGrown();
+            m = mapping;
+        }
+        if (offset + len <= m.size) {
+            int done = 0;
+            while (done < len) {
+                long pos = offset + done;
+                ByteBuffer chunk = m.chunks[(int) (pos / CHUNK_SIZE)].duplicate();
+                int start = (int) (pos % CHUNK_SIZE);
+                int n = Math.min(len - done, chunk.limit() - start);
+                chunk.position(start);
+                chunk.get(dst, done, n);
+                done += n;
+            }
+            return len;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(dst);
+        FileHandleCache handles = Database.getFileHandles();
+        FileChannel ch = handles.acquire(file);
+        try {
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, offset + buf.position()) < 0) {
+                    break;
+                }
+            }
+        } finally {
+            handles.release(ch);
+        }
+        return buf.position();
+    }
+
+    /**
+     * Bring len bytes starting at offset into memory, so that later reads of
+     * the range are served without waiting for the disk.  The mapped part of
+     * the range is touched once per OS page; the rest is fetched with a
+     * single positional read.
+     */
+    void load(long offset, int len) throws IOException {
+        Mapping m = mapping;
+        if (offset + len > m.size) {
+            remapIfGrown();
+            m = mapping;
+        }
+        long end = offset + len;
+        long pos = offset;
+        for (; pos < Math.min(end, m.size); pos += OS_PAGE_SIZE) {
+            m.chunks[(int) (pos / CHUNK_SIZE)].get((int) (pos % CHUNK_SIZE));
+        }
+        pos = Math.max(offset, m.size);
+        if (pos < end) {
+            read(pos, new byte[(int) (end - pos)]);
+        }
+    }
+
+    /** Write data at offset, creating or growing the file if needed. */
+    void write(long offset, byte[] data) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        FileHandleCache handles = Database.getFileHandles();
+        FileChannel ch = handles.acquireForWrite(file);
+        try {
+            while (buf.hasRemaining()) {
+                ch.write(buf, offset + buf.position());
+            }
+        } finally {
+            handles.release(ch);
+        }
+    }
+
+    /**
+     * Write the buffers one after another starting at offset, with a single
+     * gathering write where the OS allows it.  The channel's position is
+     * only used here, and only under the channel's monitor; all other I/O on
+     * it is positional.
+     */
+    void write(long offset, ByteBuffer[] data) throws IOException {
+        FileHandleCache handles = Database.getFileHandles();
+        FileChannel ch = handles.acquireForWrite(file);
+        try {
+            long remaining = 0;
+            for (ByteBuffer b : data) {
+                remaining += b.remaining();
+            }
+            synchronized (ch) {
+                ch.position(offset);
+                while (remaining > 0) {
+                    remaining -= ch.write(data);
+                }
+            }
+        } finally {
+            handles.release(ch);
+        }
+    }
+
+    /** Return the current size of the file. */
+    long size() throws IOException {
+        FileHandleCache handles = Database.getFileHandles();
+        FileChannel ch = handles.acquire(file);
+        try {
+            return ch.size();
+        } finally {
+            handles.release(ch);
+        }
+    }
+
+    /** Close the file's channel if it is idle; the mapping stays valid. */
+    void close() throws IOException {
+        Database.getFileHandles().close(file);
+    }
+
+    private synchronized void remapIfGrown() throws IOException {
+        FileHandleCache handles = Database.getFileHandles();
+        FileChannel ch = handles.acquire(file);
+        try {
+            remap(ch);
+        } finally {
+            handles.release(ch);
+        }
+    }
+
+    private void remap(FileChannel ch) throws IOException {
+        long size = ch.size();
+        Mapping m = mapping;
+        if (size - m.size < Math.max(REMAP_THRESHOLD, m.size / 8)) {
+            return;
+        }
+        int n = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        MappedByteBuffer[] old = m.chunks;
+        MappedByteBuffer[] remapped = new MappedByteBuffer[n];
+        for (int i = 0; i < n; i++) {
+            long start = i * CHUNK_SIZE;
+            long len = Math.min(CHUNK_SIZE, size - start);
+            if (i < old.length && old[i].capacity() == len) {
+                remapped[i] = old[i];
+            } else {
+                remapped[i] = ch.map(FileChannel.MapMode.READ_ONLY, start, len);
+            }
+        }
+        mapping = new Mapping(remapped, size);
+    }
+}
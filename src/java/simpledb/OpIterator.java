@@ -34,6 +34,28 @@ public interface OpIterator extends Serializable{
    */
   public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException;
 
+  /**
+   * Returns the next rows from the operator, column by column.  Operators
+   * that can work on whole columns override this; the default collects up
+   * to TupleBatch.DEFAULT_SIZE tuples from next().  A consumer should read
+   * an iterator either a tuple or a batch at a time between rewinds.
+   *
+   * @return the next batch of rows, which is never empty, or null if there
+   *         are no more tuples.
+   * @throws IllegalStateException If the iterator has not been opened
+   * @see TupleBatch
+   */
+  public default TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+      if (!hasNext()) {
+          return null;
+      }
+      TupleBatch batch = new TupleBatch(getTupleDesc());
+      while (!batch.isFull() && hasNext()) {
+          batch.add(next());
+      }
+      return batch;
+  }
+
   /**
    * Resets the iterator to the start.
    * @throws DbException when rewind is unsupported.
@@ -4,8 +4,10 @@ import java.util.NoSuchElementException;
 
 /**
  * Abstract class for implementing operators. It handles <code>close</code>,
- * <code>next</code> and <code>hasNext</code>. Subclasses only need to implement
- * <code>open</code> and <code>readNext</code>.
+ * <code>next</code>, <code>hasNext</code> and <code>nextBatch</code>.
+ * Subclasses only need to implement <code>open</code> and
+ * <code>readNext</code>, and can implement <code>fetchNextBatch</code> to
+ * work on whole columns.
  */
 public abstract class Operator implements OpIterator {
 
@@ -44,6 +46,44 @@ public abstract class Operator implements OpIterator {
     protected abstract Tuple fetchNext() throws DbException,
             TransactionAbortedException;
 
+    /**
+     * Returns the next batch of rows.  A tuple hasNext() has fetched
+     * already is returned first, in a batch of its own.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!this.open)
+            throw new IllegalStateException("Operator not yet open");
+
+        if (next != null) {
+            TupleBatch batch = new TupleBatch(getTupleDesc(), 1);
+            batch.add(next);
+            next = null;
+            return batch;
+        }
+        return fetchNextBatch();
+    }
+
+    /**
+     * Returns the next batch of rows, never an empty one, or null if the
+     * iteration is finished.  Operator uses this to implement
+     * <code>nextBatch</code>; the default collects tuples from
+     * <code>fetchNext</code>.
+     */
+    protected TupleBatch fetchNextBatch() throws DbException,
+            TransactionAbortedException {
+        Tuple t = fetchNext();
+        if (t == null)
+            return null;
+        TupleBatch batch = new TupleBatch(getTupleDesc());
+        while (t != null) {
+            batch.add(t);
+            if (batch.isFull())
+                break;
+            t = fetchNext();
+        }
+        return batch;
+    }
+
     /**
      * Closes this iterator. If overridden by a subclass, they should call
      * super.close() in order for Operator's internal state to be consistent.
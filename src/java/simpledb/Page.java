@@ -56,4 +56,18 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Return the log sequence number of the last log record describing a
+     * change to this page, or 0 if none was logged since the page was read.
+     * The page may only be written out once the log is durable up to it.
+     *
+     * @see LogFile#logWrite
+     */
+    public long getLsn();
+
+    /** Set the log sequence number of the last log record describing a
+        change to this page.
+    */
+    public void setLsn(long lsn);
 }
@@ -0,0 +1,237 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * PageDelta is the body of an UPDATE log record: the byte ranges of a page
+ * that a transaction changed, with their contents before and after.  Redo
+ * installs the after bytes on the page in its file, undo the before bytes.
+ * <p>
+ * For a {@link HeapPage} the ranges are those it tracks as changed since
+ * its last committed version or since it was read, whichever is later (see
+ * {@link HeapPage#getDirtyRanges}); since every page write is logged, they
+ * cover every byte that differs from what the log last recorded, and
+ * applying deltas in log order rebuilds the page.  Other pages do not track
+ * their changes, so their ranges are found by comparing the page with its
+ * committed version.  A byte can change and then change back, so the bytes
+ * covered by the earlier records of the same transaction are passed in and
+ * covered again; ranges a few bytes apart are merged.
+ * <p>
+ * On disk a delta is the page class name, the page id class name and its
+ * serialized fields, the page length, and the number of ranges, followed by
+ * the start, length, before bytes and after bytes of each range.
+ */
+class PageDelta {
+
+    private final String pageClassName;
+    private final PageId pid;
+    private final int pageLength;
+    /** Pairs of start offset and length. */
+    private final int[] ranges;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(String pageClassName, PageId pid, int pageLength,
+                      int[] ranges, byte[][] before, byte[][] after) {
+        this.pageClassName = pageClassName;
+        this.pid = pid;
+        this.pageLength = pageLength;
+        this.ranges = ranges;
+        this.before = before;
+        this.after = after;
+    }
+
+    /** Ranges closer than this are logged as one; each range costs 8 bytes. */
+    private static final int MIN_GAP = 8;
+
+    /**
+     * Return the delta that takes a page from its committed version to its
+     * current contents.
+     *
+     * @param committed the committed version of the page
+     * @param current the page as it is about to be written
+     * @param logged the bytes that earlier deltas of the page by the same
+     *        transaction covered, to which the bytes that differ from the
+     *        committed version are added; unused for a HeapPage
+     */
+    static PageDelta of(Page committed, Page current, BitSet logged) {
+        byte[] oldData = committed.getPageData();
+        byte[] newData = current.getPageData();
+        int[] changed;
+        if (current instanceof HeapPage) {
+            int[] dirty = ((HeapPage) current).getDirtyRanges();
+            changed = new int[dirty.length];
+            for (int i = 0; i < dirty.length; i += 2) {
+                changed[i] = dirty[i];
+                changed[i + 1] = dirty[i + 1] - dirty[i];
+            }
+        } else {
+            for (int i = 0; i < newData.length; i++) {
+                if (oldData[i] != newData[i]) {
+                    logged.set(i);
+                }
+            }
+            changed = ranges(logged);
+        }
+        int n = changed.length / 2;
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            int start = changed[2 * i];
+            int end = start + changed[2 * i + 1];
+            before[i] = Arrays.copyOfRange(oldData, start, end);
+            after[i] = Arrays.copyOfRange(newData, start, end);
+        }
+        return new PageDelta(current.getClass().getName(), current.getId(),
+                newData.length, changed, before, after);
+    }
+
+    /** Return the set bits of bytes as pairs of start offset and length. */
+    private static int[] ranges(BitSet bytes) {
+        int n = 0;
+        int[] ranges = new int[8];
+        int start = bytes.nextSetBit(0);
+        while (start >= 0) {
+            int end = bytes.nextClearBit(start);
+            int next = bytes.nextSetBit(end);
+            while (next >= 0 && next - end < MIN_GAP) {
+                end = bytes.nextClearBit(next);
+                next = bytes.nextSetBit(end);
+            }
+            if (n + 2 > ranges.length) {
+                ranges = Arrays.copyOf(ranges, ranges.length * 2);
+            }
+            ranges[n++] = start;
+            ranges[n++] = end - start;
+            start = next;
+        }
+        return Arrays.copyOf(ranges, n);
+    }
+
+    PageId getPageId() {
+        return pid;
+    }
+
+    /** Return the number of bytes the delta changes. */
+    int numBytes() {
+        int n = 0;
+        for (int i = 1; i < ranges.length; i += 2) {
+            n += ranges[i];
+        }
+        return n;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeUTF(pageClassName);
+        out.writeUTF(pid.getClass().getName());
+        int[] pageInfo = pid.serialize();
+        out.writeInt(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++) {
+            out.writeInt(pageInfo[i]);
+        }
+        out.writeInt(pageLength);
+        out.writeInt(ranges.length / 2);
+        for (int i = 0; i < before.length; i++) {
+            out.writeInt(ranges[2 * i]);
+            out.writeInt(ranges[2 * i + 1]);
+            out.write(before[i]);
+            out.write(after[i]);
+        }
+    }
+
+    static PageDelta read(DataInput in) throws IOException {
+        String pageClassName = in.readUTF();
+        String idClassName = in.readUTF();
+        int numIdArgs = in.readInt();
+        Object[] idArgs = new Object[numIdArgs];
+        for (int i = 0; i < numIdArgs; i++) {
+            idArgs[i] = Integer.valueOf(in.readInt());
+        }
+        PageId pid;
+        try {
+            Constructor<?>[] idConsts = Class.forName(idClassName).getDeclaredConstructors();
+            pid = (PageId) idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        } catch (InstantiationException e) {
+            throw new IOException(e);
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        } catch (InvocationTargetException e) {
+            throw new IOException(e);
+        }
+        int pageLength = in.readInt();
+        int n = in.readInt();
+        int[] ranges = new int[2 * n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            ranges[2 * i] = in.readInt();
+            ranges[2 * i + 1] = in.readInt();
+            before[i] = new byte[ranges[2 * i + 1]];
+            in.readFully(before[i]);
+            after[i] = new byte[ranges[2 * i + 1]];
+            in.readFully(after[i]);
+        }
+        return new PageDelta(pageClassName, pid, pageLength, ranges, before, after);
+    }
+
+    /** Install the after bytes on the page in its file. */
+    void redo() throws IOException {
+        install(after);
+    }
+
+    /** Install the before bytes on the page in its file. */
+    void undo() throws IOException {
+        install(before);
+        BufferPool.rolledBack(pid);
+    }
+
+    /**
+     * Patch the page in its file with the given bytes, and drop any cached
+     * copy of it from the buffer pool.
+     */
+    private void install(byte[][] images) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        byte[] data;
+        try {
+            data = file.readPage(pid).getPageData();
+        } catch (RuntimeException e) {
+            // past the end of the file
+            data = new byte[pageLength];
+        }
+        for (int i = 0; i < images.length; i++) {
+            System.arraycopy(images[i], 0, data, ranges[2 * i], ranges[2 * i + 1]);
+        }
+        file.writePage(newPage(file, data));
+        Database.getBufferPool().discardPage(pid);
+    }
+
+    /**
+     * Build a page of the logged class, see the note on {@link Page}.  B+
+     * tree leaf and internal pages also take the key field of their file.
+     */
+    private Page newPage(DbFile file, byte[] data) throws IOException {
+        try {
+            Constructor<?>[] pageConsts = Class.forName(pageClassName).getDeclaredConstructors();
+            if (pageConsts[0].getParameterTypes().length == 3) {
+                return (Page) pageConsts[0].newInstance(pid, data, ((BTreeFile) file).keyField());
+            }
+            return (Page) pageConsts[0].newInstance(pid, data);
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        } catch (InstantiationException e) {
+            throw new IOException(e);
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        } catch (InvocationTargetException e) {
+            throw new IOException(e);
+        }
+    }
+}
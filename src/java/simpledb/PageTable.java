@@ -0,0 +1,240 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PageTable maps the ids of the pages cached by the BufferPool to the frames
+ * holding them.  The table is split into hash stripes, each guarded by its
+ * own latch, so threads working on pages that fall into different stripes
+ * never wait for each other.  Latches are held only for the map lookup or
+ * update itself, never across I/O.
+ * <p>
+ * Each frame carries a pin count.  A pinned frame is in use by some thread
+ * (being handed out, or being flushed) and is never removed by
+ * {@link #removeIfEvictable}.
+ * <p>
+ * The table also counts reserved frames so that concurrent loads cannot push
+ * the BufferPool over its capacity: a thread must {@link #tryReserve} a frame
+ * before it reads a page from disk and {@link #insert}s it.
+ */
+class PageTable {
+
+    /** A buffer pool frame: a cached page plus its pin count. */
+    static class Frame {
+        final PageId pid;
+        volatile Page page;
+        final AtomicInteger pins = new AtomicInteger(0);
+        /** Set while a page read ahead by the Prefetcher is still unused. */
+        volatile boolean prefetched = false;
+
+        Frame(PageId pid, Page page) {
+            this.pid = pid;
+            this.page = page;
+        }
+
+        void unpin() {
+            pins.decrementAndGet();
+        }
+    }
+
+    private static class Stripe {
+        final ReentrantLock latch = new ReentrantLock();
+        final HashMap<PageId, Frame> frames = new HashMap<PageId, Frame>();
+    }
+
+    private final Stripe[] stripes;
+    private final int mask;
+    private final AtomicInteger reserved = new AtomicInteger(0);
+
+    /**
+     * @param minStripes the minimum number of stripes; rounded up to a
+     *        power of two
+     */
+    PageTable(int minStripes) {
+        int n = 1;
+        while (n < minStripes) {
+            n <<= 1;
+        }
+        stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new Stripe();
+        }
+        mask = n - 1;
+    }
+
+    private Stripe stripeFor(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & mask];
+    }
+
+    /** Return the frame holding pid, pinned, or null if pid is not cached. */
+    Frame pin(PageId pid) {
+        Stripe s = stripeFor(pid);
+        s.latch.lock();
+        try {
+            Frame f = s.frames.get(pid);
+            if (f != null) {
+                f.pins.incrementAndGet();
+            }
+            return f;
+        } finally {
+            s.latch.unlock();
+        }
+    }
+
+    /** Return the page cached under pid, or null. */
+    Page get(PageId pid) {
+        Stripe s = stripeFor(pid);
+        s.latch.lock();
+        try {
+            Frame f = s.frames.get(pid);
+            return f == null ? null : f.page;
+        } finally {
+            s.latch.unlock();
+        }
+    }
+
+    /**
+     * Cache page in a frame previously obtained with {@link #tryReserve}.
+     * If another thread cached the same page first, the reservation is
+     * given back and the existing frame is returned instead.
+     *
+     * @return the pinned frame now holding pid
+     */
+    Frame insert(PageId pid, Page page) {
+        Stripe s = stripeFor(pid);
+        s.latch.lock();
+        try {
+            Frame f = s.frames.get(pid);
+            if (f != null) {
+                reserved.decrementAndGet();
+            } else {
+                f = new Frame(pid, page);
+                s.frames.put(pid, f);
+            }
+            f.pins.incrementAndGet();
+            return f;
+        } finally {
+            s.latch.unlock();
+        }
+    }
+
+    /**
+     * Replace the page held by the frame for pid.
+     *
+     * @return false if pid is not cached
+     */
+    boolean replace(PageId pid, Page page) {
+        Stripe s = stripeFor(pid);
+        s.latch.lock();
+        try {
+            Frame f = s.frames.get(pid);
+            if (f == null) {
+                return false;
+            }
+            f.page = page;
+            return true;
+        } finally {
+            s.latch.unlock();
+        }
+    }
+
+    /**
+     * Drop pid from the table regardless of its state.
+     *
+     * @return true if pid was cached
+     */
+    boolean remove(PageId pid) {
+        Stripe s = stripeFor(pid);
+        s.latch.lock();
+        try {
+            if (s.frames.remove(pid) == null) {
+                return false;
+            }
+            reserved.decrementAndGet();
+            return true;
+        } finally {
+            s.latch.unlock();
+        }
+    }
+
+    /**
+     * Drop pid from the table if its frame is unpinned and its page clean.
+     *
+     * @return true if the frame was removed
+     */
+    boolean removeIfEvictable(PageId pid) {
+        Stripe s = stripeFor(pid);
+        s.latch.lock();
+        try {
+            Frame f = s.frames.get(pid);
+            if (f == null || f.pins.get() != 0 || f.page.isDirty() != null) {
+                return false;
+            }
+            s.frames.remove(pid);
+            reserved.decrementAndGet();
+            return true;
+        } finally {
+            s.latch.unlock();
+        }
+    }
+
+    /** Return true if pid is cached in an unpinned frame holding a clean page. */
+    boolean isEvictable(PageId pid) {
+        Stripe s = stripeFor(pid);
+        s.latch.lock();
+        try {
+            Frame f = s.frames.get(pid);
+            return f != null && f.pins.get() == 0 && f.page.isDirty() == null;
+        } finally {
+            s.latch.unlock();
+        }
+    }
+
+    /**
+     * Reserve a frame for a page about to be inserted.
+     *
+     * @param capacity the maximum number of frames
+     * @return false if all frames are taken
+     */
+    boolean tryReserve(int capacity) {
+        while (true) {
+            int n = reserved.get();
+            if (n >= capacity) {
+                return false;
+            }
+            if (reserved.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /** Give back a reservation that will not be used. */
+    void unreserve() {
+        reserved.decrementAndGet();
+    }
+
+    /** Return the number of frames in use or reserved. */
+    int size() {
+        return reserved.get();
+    }
+
+    /** Return a snapshot of the ids of all cached pages. */
+    List<PageId> pageIds() {
+        ArrayList<PageId> ids = new ArrayList<PageId>();
+        for (Stripe s : stripes) {
+            s.latch.lock();
+            try {
+                ids.addAll(s.frames.keySet());
+            } finally {
+                s.latch.unlock();
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,69 @@
+package simpledb;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * PageWriter is the BufferPool's background writer.  It wakes up every
+ * {@link #DEFAULT_INTERVAL} milliseconds (or as set by the
+ * <tt>simpledb.PageWriterInterval</tt> system property) and has the pool
+ * write back dirty pages whose transactions have completed, so that those
+ * pages are clean by the time a checkpoint or an eviction needs them.  It
+ * also drops the page versions no snapshot transaction can read any more.
+ * <p>
+ * The writer only holds a weak reference to its BufferPool and stops once
+ * the pool has been dropped, e.g. by {@link Database#resetBufferPool}.
+ *
+ * @see BufferPool#writeBehind
+ */
+class PageWriter extends Thread {
+
+    /** System property holding the writer's interval, in milliseconds. */
+    static final String INTERVAL_PROPERTY = "simpledb.PageWriterInterval";
+
+    /** Milliseconds between rounds when the property is not set. */
+    static final int DEFAULT_INTERVAL = 100;
+
+    private final WeakReference<BufferPool> pool;
+    private final long interval;
+
+    PageWriter(BufferPool bufferPool) {
+        super("simpledb-page-writer");
+        setDaemon(true);
+        this.pool = new WeakReference<BufferPool>(bufferPool);
+        this.interval = Math.max(1, Integer.getInteger(INTERVAL_PROPERTY, DEFAULT_INTERVAL));
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (!writeRound()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Run one round of writes; kept out of run() so that the pool is not
+     * referenced from its stack while the writer sleeps.
+     *
+     * @return false if the pool is gone
+     */
+    private boolean writeRound() {
+        BufferPool bp = pool.get();
+        if (bp == null) {
+            return false;
+        }
+        try {
+            bp.writeBehind();
+            bp.getVersions().collectGarbage();
+        } catch (Exception e) {
+            // a failed write leaves the page dirty; the next round retries
+            Debug.log("PageWriter: %s", e);
+        }
+        return true;
+    }
+}
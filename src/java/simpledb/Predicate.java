@@ -107,6 +107,121 @@ public class Predicate implements Serializable {
         return t.getField(this.field).compare(this.op,this.operand);
     }
 
+    /**
+     * Applies the predicate to every row of batch, a column at a time.
+     *
+     * @param batch
+     *            The rows to compare against
+     * @param selected
+     *            Receives the indexes of the rows for which the comparison
+     *            is true; it must have room for batch.size() of them
+     * @return the number of rows for which the comparison is true
+     */
+    public int filter(TupleBatch batch, int[] selected) {
+        if (this.operand instanceof IntField) {
+            return select(((IntField) this.operand).getValue(), flip(this.op),
+                    batch.intColumn(this.field), batch.size(), selected);
+        }
+        String v = ((StringField) this.operand).getValue();
+        String[] column = batch.stringColumn(this.field);
+        if (this.op == Op.LIKE) {
+            int k = 0;
+            for (int j = 0; j < batch.size(); j++) {
+                if (column[j].indexOf(v) >= 0) {
+                    selected[k++] = j;
+                }
+            }
+            return k;
+        }
+        return select(v, flip(this.op), column, batch.size(), selected);
+    }
+
+    /**
+     * Return the operator that compares b to a as op compares a to b.  LIKE
+     * is left alone, which is only right for ints.
+     */
+    static Op flip(Op op) {
+        switch (op) {
+        case GREATER_THAN:
+            return Op.LESS_THAN;
+        case LESS_THAN:
+            return Op.GREATER_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Op.LESS_THAN_OR_EQ;
+        case LESS_THAN_OR_EQ:
+            return Op.GREATER_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+
+    /**
+     * Find the first n rows j of column for which <code>v op column[j]</code>
+     * holds, with the semantics of {@link IntField#compare}.  The operator
+     * is dispatched on once, not per row.
+     *
+     * @return the number of rows found, whose indexes are stored in selected
+     */
+    static int select(int v, Op op, int[] column, int n, int[] selected) {
+        int k = 0;
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            for (int j = 0; j < n; j++) {
+                selected[k] = j;
+                k += v == column[j] ? 1 : 0;
+            }
+            break;
+        case NOT_EQUALS:
+            for (int j = 0; j < n; j++) {
+                selected[k] = j;
+                k += v != column[j] ? 1 : 0;
+            }
+            break;
+        case GREATER_THAN:
+            for (int j = 0; j < n; j++) {
+                selected[k] = j;
+                k += v > column[j] ? 1 : 0;
+            }
+            break;
+        case GREATER_THAN_OR_EQ:
+            for (int j = 0; j < n; j++) {
+                selected[k] = j;
+                k += v >= column[j] ? 1 : 0;
+            }
+            break;
+        case LESS_THAN:
+            for (int j = 0; j < n; j++) {
+                selected[k] = j;
+                k += v < column[j] ? 1 : 0;
+            }
+            break;
+        case LESS_THAN_OR_EQ:
+            for (int j = 0; j < n; j++) {
+                selected[k] = j;
+                k += v <= column[j] ? 1 : 0;
+            }
+            break;
+        }
+        return k;
+    }
+
+    /**
+     * Find the first n rows j of column for which <code>v op column[j]</code>
+     * holds, with the semantics of {@link StringField#compare}.
+     *
+     * @return the number of rows found, whose indexes are stored in selected
+     */
+    static int select(String v, Op op, String[] column, int n, int[] selected) {
+        int k = 0;
+        for (int j = 0; j < n; j++) {
+            if (StringField.compare(v, op, column[j])) {
+                selected[k++] = j;
+            }
+        }
+        return k;
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
@@ -0,0 +1,230 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prefetcher reads pages into the BufferPool ahead of sequential scans, so a
+ * scan finds the next pages already cached instead of waiting for the disk
+ * one page at a time.
+ * <p>
+ * Scans report the pages they visit to a {@link Stream}.  Once a stream has
+ * visited {@link #SEQUENTIAL_RUN} consecutive pages of a {@link ReadAheadFile}
+ * it asks a background thread to load the next window of pages: the run is
+ * pulled off disk with one large read and the pages are then installed in
+ * the BufferPool.  A new window is requested whenever the scan has consumed
+ * half of the previous one.
+ * <p>
+ * The window defaults to {@link #DEFAULT_WINDOW} pages and can be set with
+ * the <tt>simpledb.ReadAheadPages</tt> system property or
+ * {@link #setWindow}; a window of 0 turns read-ahead off.  It never exceeds
+ * a quarter of the BufferPool, so read-ahead cannot flush the pool.  Pages
+ * that are already cached, or being loaded by another thread, are skipped.
+ * Read-ahead requests are dropped, not queued, when the background thread
+ * falls behind.
+ *
+ * @see BufferPool#getPrefetcher
+ * @Threadsafe
+ */
+public class Prefetcher {
+
+    /** System property holding the read-ahead window, in pages. */
+    public static final String WINDOW_PROPERTY = "simpledb.ReadAheadPages";
+
+    /** Read-ahead window used when the property is not set. */
+    public static final int DEFAULT_WINDOW = 16;
+
+    /** Consecutive pages a stream must visit before it is read ahead. */
+    public static final int SEQUENTIAL_RUN = 2;
+
+    /** Read-ahead requests waiting for the background thread. */
+    private static final int MAX_QUEUED = 64;
+
+    private final BufferPool bufferPool;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private volatile int window;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong pagesRead = new AtomicLong(0);
+
+    Prefetcher(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        this.window = Math.max(0, Integer.getInteger(WINDOW_PROPERTY, DEFAULT_WINDOW));
+        this.executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "simpledb-prefetch");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+                        // too far behind; the scan reads the pages itself
+                        pending.decrementAndGet();
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Return the configured read-ahead window, in pages. */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Set the number of pages read ahead of a sequential scan.
+     *
+     * @param pages the window size; 0 turns read-ahead off
+     */
+    public void setWindow(int pages) {
+        if (pages < 0) {
+            throw new IllegalArgumentException("read-ahead window cannot be negative");
+        }
+        window = pages;
+    }
+
+    /** Return the number of page requests served by a read-ahead page. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Return the number of page requests that had to read from disk. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Return the number of pages installed by read-ahead. */
+    public long getPagesRead() {
+        return pagesRead.get();
+    }
+
+    void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     * Return a new stream for a scan over f.  Files that do not implement
+     * {@link ReadAheadFile} get a stream that never reads ahead.
+     */
+    public Stream stream(DbFile f) {
+        return new Stream(f instanceof ReadAheadFile ? (ReadAheadFile) f : null);
+    }
+
+    /**
+     * Tracks the pages visited by one scan and reads ahead once the scan
+     * turns out to be sequential.  A stream belongs to a single scan and is
+     * not threadsafe.
+     */
+    public class Stream {
+        private final ReadAheadFile file;
+        private PageId last = null;
+        private int run = 0;
+        private int ahead = 0; // pages requested beyond last
+
+        private Stream(ReadAheadFile file) {
+            this.file = file;
+        }
+
+        /**
+         * Report that the scan is about to read pid.
+         *
+         * @param pid the page the scan visits next
+         */
+        public void access(PageId pid) {
+            if (file == null) {
+                return;
+            }
+            if (last != null && pid.equals(file.pageAfter(last, 1))) {
+                run++;
+                if (ahead > 0) {
+                    ahead--;
+                }
+            } else {
+                run = 1;
+                ahead = 0;
+            }
+            last = pid;
+
+            int w = effectiveWindow();
+            if (w > 0 && run >= SEQUENTIAL_RUN && ahead <= w / 2) {
+                PageId first = file.pageAfter(pid, ahead + 1);
+                if (first != null) {
+                    request(file, first, w - ahead);
+                }
+                ahead = w;
+            }
+        }
+    }
+
+    /** Return the window actually used, capped by the BufferPool size. */
+    int effectiveWindow() {
+        return Math.min(window, bufferPool.getNumPages() / 4);
+    }
+
+    /** Wait until the background thread has no read-ahead left to do. */
+    void awaitIdle() throws InterruptedException {
+        while (pending.get() > 0) {
+            Thread.sleep(1);
+        }
+    }
+
+    private void request(final ReadAheadFile file, final PageId first, final int count) {
+        pending.incrementAndGet();
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    readAhead(file, first, count);
+                } finally {
+                    pending.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    private void readAhead(ReadAheadFile file, PageId first, int count) {
+        // only load the span that is not cached yet
+        ArrayList<PageId> pids = new ArrayList<PageId>();
+        int firstMissing = -1;
+        int lastMissing = -1;
+        PageId pid = first;
+        for (int i = 0; i < count && pid != null; i++) {
+            pids.add(pid);
+            if (!bufferPool.isCached(pid)) {
+                if (firstMissing < 0) {
+                    firstMissing = i;
+                }
+                lastMissing = i;
+            }
+            pid = file.pageAfter(first, i + 1);
+        }
+        if (firstMissing < 0) {
+            return;
+        }
+
+        try {
+            file.loadPages(pids.get(firstMissing), lastMissing - firstMissing + 1);
+        } catch (IOException e) {
+            return;
+        }
+        for (int i = firstMissing; i <= lastMissing; i++) {
+            if (bufferPool.prefetchPage(file, pids.get(i))) {
+                pagesRead.incrementAndGet();
+            }
+        }
+    }
+}
@@ -80,6 +80,23 @@ public class Project extends Operator {
         return null;
     }
 
+    /**
+     * Projects out the fields of batches from the child operator, which
+     * only picks their column vectors.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException,
+            DbException {
+        TupleBatch batch = child.nextBatch();
+        if (batch == null) {
+            return null;
+        }
+        int[] fields = new int[outFieldIds.size()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = outFieldIds.get(i);
+        }
+        return batch.project(td, fields);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[] { this.child };
@@ -0,0 +1,34 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * A DbFile whose pages can be read ahead of a sequential scan.  The
+ * {@link Prefetcher} uses it to find the pages that follow the one being
+ * scanned and to pull a run of them off disk in a single read.
+ *
+ * @see Prefetcher
+ */
+public interface ReadAheadFile extends DbFile {
+
+    /**
+     * Returns the id of the page stored distance pages after pid in this
+     * file, in the order a scan of pid's kind of page visits them.
+     *
+     * @param pid a page of this file
+     * @param distance the number of pages to skip, at least one
+     * @return the page id, or null if there is no such page or pages of this
+     *         kind are not read ahead
+     */
+    public PageId pageAfter(PageId pid, int distance);
+
+    /**
+     * Bring count consecutive pages, starting at first, into memory with as
+     * few reads as possible, so that readPage() on them does not wait for
+     * the disk.
+     *
+     * @param first the first page to load
+     * @param count the number of pages to load
+     */
+    public void loadPages(PageId first, int count) throws IOException;
+}
@@ -53,6 +53,20 @@ public class SeqScan implements OpIterator {
         return Database.getCatalog().getTableName(this.tableid);
     }
 
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return this.tableid;
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return this.transactionId;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -127,6 +141,15 @@ public class SeqScan implements OpIterator {
         return this.dbFileIterator.next();
     }
 
+    /**
+     * Returns the next tuples of the table, decoded straight from the pages
+     * into column vectors where the file supports it.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch = new TupleBatch(getTupleDesc());
+        return this.dbFileIterator.readBatch(batch) ? batch : null;
+    }
+
     public void close() {
         // some code goes here
         this.dbFileIterator.close();
@@ -0,0 +1,323 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two inputs sorted on their join fields by reading them
+ * in step, with equality or a range comparison as the predicate.  An input
+ * that is already in order, like the scan of a B+ tree keyed on the join
+ * field, is streamed as it is; any other input is sorted first by an
+ * {@link ExternalSort}.
+ * <p>
+ * For an equality predicate only the right rows with the current key are
+ * held in memory.  For a range predicate one input drives the join a row at
+ * a time, and the rows of the other input below the driving row, which all
+ * join with it, are held: the right rows under each left row for &gt; and
+ * &gt;=, and the left rows under each right row for &lt; and &lt;=.  Either
+ * way the output is in order of the driving input's join field.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate pred;
+    private OpIterator child1, child2;
+    private TupleDesc comboTD;
+
+    /** An input being read in order, and its next row. */
+    private static class Cursor {
+        final OpIterator input;
+        final int field;
+        TupleBatch batch;
+        int row;
+        boolean done;
+
+        Cursor(OpIterator input, int field) {
+            this.input = input;
+            this.field = field;
+        }
+
+        /** Return false if the input is used up, else make row a row of batch. */
+        boolean fill() throws DbException, TransactionAbortedException {
+            while (!done && (batch == null || row >= batch.size())) {
+                batch = input.nextBatch();
+                row = 0;
+                done = batch == null;
+            }
+            return !done;
+        }
+    }
+
+    /** The sorted inputs: the children, or ExternalSorts of them. */
+    transient private OpIterator sorted1, sorted2;
+    /** The input read a row at a time, and the input whose rows are held. */
+    transient private Cursor driver, other;
+    transient private boolean driverIsLeft;
+    /**
+     * The held rows of the other input that join with the driving row.
+     * Whether held rows with equal keys count is set by the predicate.
+     */
+    transient private TupleBatch held;
+    transient private boolean holdEqual;
+    /** Whether the driving row is being joined with held, and the next held row. */
+    transient private boolean matching;
+    transient private int heldRow;
+    /** The batch fetchNext() is returning tuples from. */
+    transient private TupleBatch current;
+    transient private int currentRow;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator must
+     *            be one that {@link #supports} accepts
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!supports(p.getOperator())) {
+            throw new IllegalArgumentException("no merge join for " + p.getOperator());
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /** Return true if a SortMergeJoin can join on op. */
+    public static boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.LIKE && op != Predicate.Op.NOT_EQUALS;
+    }
+
+    /**
+     * Return true if the tuples of it come in ascending order of field
+     * without being sorted: it is a scan of a B+ tree keyed on field, an
+     * ascending sort on field, a merge join whose output is ordered on it,
+     * or a Filter of one of these.
+     */
+    public static boolean isSorted(OpIterator it, int field) {
+        if (it instanceof SeqScan) {
+            return isKey(((SeqScan) it).getTableId(), field);
+        }
+        if (it instanceof BTreeScan) {
+            return isKey(((BTreeScan) it).getTableId(), field);
+        }
+        if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            return o.isASC() && o.getOrderByField() == field;
+        }
+        if (it instanceof ExternalSort) {
+            return ((ExternalSort) it).getSortField() == field;
+        }
+        if (it instanceof SortMergeJoin) {
+            return ((SortMergeJoin) it).isSortedOn(field);
+        }
+        if (it instanceof Filter) {
+            OpIterator[] children = ((Filter) it).getChildren();
+            return children != null && isSorted(children[0], field);
+        }
+        return false;
+    }
+
+    /** Return true if tableId is a B+ tree keyed on field. */
+    private static boolean isKey(int tableId, int field) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    /** Return true if this join's output is in ascending order of field. */
+    private boolean isSortedOn(int field) {
+        int left = pred.getField1();
+        int right = child1.getTupleDesc().numFields() + pred.getField2();
+        switch (pred.getOperator()) {
+        case EQUALS:
+            return field == left || field == right;
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            return field == left;
+        default:
+            return field == right;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        sorted1 = isSorted(child1, pred.getField1())
+                ? child1 : new ExternalSort(child1, pred.getField1());
+        sorted2 = isSorted(child2, pred.getField2())
+                ? child2 : new ExternalSort(child2, pred.getField2());
+        sorted1.open();
+        sorted2.open();
+        reset();
+        super.open();
+    }
+
+    /**
+     * Return the ExternalSort this join put in front of child i (0 or 1), or
+     * null if it reads the child as it is.
+     */
+    ExternalSort getSort(int i) {
+        OpIterator sorted = i == 0 ? sorted1 : sorted2;
+        OpIterator child = i == 0 ? child1 : child2;
+        return sorted != child ? (ExternalSort) sorted : null;
+    }
+
+    /** Start the merge over from the first row of each input. */
+    private void reset() {
+        Cursor left = new Cursor(sorted1, pred.getField1());
+        Cursor right = new Cursor(sorted2, pred.getField2());
+        Predicate.Op op = pred.getOperator();
+        driverIsLeft = op != Predicate.Op.LESS_THAN
+                && op != Predicate.Op.LESS_THAN_OR_EQ;
+        driver = driverIsLeft ? left : right;
+        other = driverIsLeft ? right : left;
+        holdEqual = op == Predicate.Op.GREATER_THAN_OR_EQ
+                || op == Predicate.Op.LESS_THAN_OR_EQ;
+        held = new TupleBatch(other.input.getTupleDesc());
+        matching = false;
+        current = null;
+    }
+
+    public void close() {
+        super.close();
+        sorted2.close();
+        sorted1.close();
+        driver = null;
+        other = null;
+        held = null;
+        current = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        sorted1.rewind();
+        sorted2.rewind();
+        reset();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples.  As with Join, it is the concatenation of a left tuple and
+     * a right tuple that satisfy the join predicate.
+     *
+     * @return The next matching tuple.
+     * @see #fetchNextBatch
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (current == null || currentRow >= current.size()) {
+            current = fetchNextBatch();
+            currentRow = 0;
+            if (current == null) {
+                return null;
+            }
+        }
+        return current.getTuple(currentRow++);
+    }
+
+    /**
+     * Returns the next batch of joined tuples: each driving row in turn,
+     * joined with every held row once the rows of the other input that join
+     * with it have been read.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException,
+            DbException {
+        TupleBatch out = new TupleBatch(getTupleDesc());
+        while (!out.isFull()) {
+            if (matching) {
+                if (heldRow < held.size()) {
+                    if (driverIsLeft) {
+                        out.addJoined(driver.batch, driver.row, held, heldRow++);
+                    } else {
+                        out.addJoined(held, heldRow++, driver.batch, driver.row);
+                    }
+                    continue;
+                }
+                driver.row++;
+                matching = false;
+            }
+            if (!driver.fill()) {
+                break;
+            }
+            if (pred.getOperator() == Predicate.Op.EQUALS) {
+                holdEqualKeys();
+            } else {
+                holdLowerKeys();
+            }
+            matching = true;
+            heldRow = 0;
+        }
+        return out.size() == 0 ? null : out;
+    }
+
+    /** Hold the rows of the other input with the driving row's key. */
+    private void holdEqualKeys() throws TransactionAbortedException, DbException {
+        if (held.size() > 0 && compareHeld(0) == 0) {
+            // a run of equal driving keys joins with the same rows
+            return;
+        }
+        held = new TupleBatch(held.getTupleDesc());
+        int c;
+        while (other.fill() && (c = compareOther()) <= 0) {
+            if (c == 0) {
+                held.addRow(other.batch, other.row);
+            }
+            other.row++;
+        }
+    }
+
+    /**
+     * Add to the held rows those of the other input below the driving row's
+     * key, and equal to it if holdEqual.  The driving keys only go up, so
+     * the rows held for one driving row join with every later one too.
+     */
+    private void holdLowerKeys() throws TransactionAbortedException, DbException {
+        int c;
+        while (other.fill() && ((c = compareOther()) < 0 || (holdEqual && c == 0))) {
+            held.addRow(other.batch, other.row);
+            other.row++;
+        }
+    }
+
+    /** Compare the other input's next row with the driving row, on their join fields. */
+    private int compareOther() {
+        return TupleBatch.compare(other.batch, other.field, other.row,
+                driver.batch, driver.field, driver.row);
+    }
+
+    /** Compare held row r with the driving row, on their join fields. */
+    private int compareHeld(int r) {
+        return TupleBatch.compare(held, other.field, r,
+                driver.batch, driver.field, driver.row);
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+}
@@ -0,0 +1,151 @@
+package simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is a temporary file of rows that an operator writes out when its
+ * input does not fit in memory, and reads back later, as often as it likes.
+ * Rows are stored in the same fixed-size format as on a heap page.
+ * <p>
+ * Rows are appended with {@link #add} until the file is opened; after that
+ * it is read like any other OpIterator.  {@link #delete} removes the file.
+ */
+class SpillFile implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final TupleDesc td;
+    private final int rowSize;
+    private final File file;
+    private transient DataOutputStream out;
+    private transient DataInputStream in;
+    private transient byte[] row;
+    private int rows = 0;
+    private int read = 0;
+
+    /** Create an empty spill file for rows of schema td. */
+    SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        this.rowSize = td.getSize();
+        try {
+            file = File.createTempFile("spill", ".dat");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), BUFFER_SIZE));
+        } catch (IOException e) {
+            throw new DbException("cannot create spill file: " + e);
+        }
+    }
+
+    /** Return the number of rows in the file. */
+    int size() {
+        return rows;
+    }
+
+    /** Append row r of batch, which has this file's schema. */
+    void add(TupleBatch batch, int r) throws DbException {
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                int[] ints = batch.intColumn(i);
+                if (ints != null) {
+                    out.writeInt(ints[r]);
+                } else {
+                    new StringField(batch.getString(i, r), Type.STRING_LEN).serialize(out);
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("cannot write spill file: " + e);
+        }
+        rows++;
+    }
+
+    public void open() throws DbException {
+        try {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            if (in != null) {
+                in.close();
+            }
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), BUFFER_SIZE));
+        } catch (IOException e) {
+            throw new DbException("cannot read spill file: " + e);
+        }
+        row = new byte[rowSize];
+        read = 0;
+    }
+
+    public boolean hasNext() {
+        return in != null && read < rows;
+    }
+
+    public Tuple next() throws DbException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        TupleBatch batch = new TupleBatch(td, 1);
+        readRow(batch);
+        return batch.getTuple(0);
+    }
+
+    public TupleBatch nextBatch() throws DbException {
+        if (!hasNext()) {
+            return null;
+        }
+        TupleBatch batch = new TupleBatch(td);
+        while (!batch.isFull() && hasNext()) {
+            readRow(batch);
+        }
+        return batch;
+    }
+
+    private void readRow(TupleBatch batch) throws DbException {
+        try {
+            in.readFully(row);
+        } catch (IOException e) {
+            throw new DbException("cannot read spill file: " + e);
+        }
+        batch.decode(row, 0, null, 0);
+        read++;
+    }
+
+    public void rewind() throws DbException {
+        open();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void close() {
+        try {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+        } catch (IOException e) {
+            // nothing left to lose; the file is deleted anyway
+        }
+    }
+
+    /** Close the file and remove it from disk. */
+    void delete() {
+        close();
+        file.delete();
+    }
+}
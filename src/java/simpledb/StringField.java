@@ -77,7 +77,14 @@ public class StringField implements Field {
 	public boolean compare(Predicate.Op op, Field val) {
 
 		StringField iVal = (StringField) val;
-		int cmpVal = value.compareTo(iVal.value);
+		return compare(value, op, iVal.value);
+	}
+
+	/**
+	 * Compare two string values the way compare() compares their fields.
+	 */
+	static boolean compare(String value, Predicate.Op op, String other) {
+		int cmpVal = value.compareTo(other);
 
 		switch (op) {
 		case EQUALS:
@@ -99,7 +106,7 @@ public class StringField implements Field {
 			return cmpVal <= 0;
 
 		case LIKE:
-			return value.indexOf(iVal.value) >= 0;
+			return value.indexOf(other) >= 0;
 		}
 
 		return false;
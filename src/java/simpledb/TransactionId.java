@@ -12,15 +12,41 @@ public class TransactionId implements Serializable {
 
     static AtomicLong counter = new AtomicLong(0);
     final long myid;
+    private final boolean snapshot;
+    private final long startTimestamp;
 
     public TransactionId() {
+        this(false);
+    }
+
+    /**
+     * Create a new transaction id.
+     *
+     * @param snapshot true for a read-only transaction that reads the
+     *        database as it was committed when the transaction began, without
+     *        taking locks; it must be completed like any other transaction
+     * @see VersionStore
+     */
+    public TransactionId(boolean snapshot) {
         myid = counter.getAndIncrement();
+        this.snapshot = snapshot;
+        this.startTimestamp = snapshot ? VersionStore.beginSnapshot(this) : VersionStore.now();
     }
 
     public long getId() {
         return myid;
     }
 
+    /** Return true if this is a read-only snapshot transaction. */
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    /** Return the commit timestamp this transaction began at. */
+    public long getStartTimestamp() {
+        return startTimestamp;
+    }
+
     @Override
 	public boolean equals(Object obj) {
 		if (this == obj)
@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -10,14 +12,24 @@ import java.util.List;
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * A tuple read from a page can be a view over the page's bytes: its fields
+ * are only decoded, one at a time, when they are first read.
  */
 public class Tuple implements Serializable {
 
     private static final long serialVersionUID = 1L;
     private TupleDesc tupleDesc;
+    /** Decoded fields; for a view, null until a field is read. */
     private ArrayList<Field> fieldArrayList;
     private simpledb.RecordId recordId;
 
+    /** For a view, the bytes holding the serialized tuple, else null. */
+    private transient byte[] source;
+    private transient int sourceOffset;
+    /** The layout of the tuple in source. */
+    private transient TupleDesc sourceDesc;
+
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -28,7 +40,25 @@ public class Tuple implements Serializable {
     public Tuple(TupleDesc td) {
         // some code goes here
         this.tupleDesc = td;
-        this.fieldArrayList = new ArrayList<>(td.getSize());
+        this.fieldArrayList = new ArrayList<>(td.numFields());
+    }
+
+    /**
+     * Create a tuple that is a view over a serialized tuple.  The bytes are
+     * not copied, so they must not change while the view is in use.
+     *
+     * @param td
+     *            the schema of this tuple and the layout of the bytes
+     * @param data
+     *            the bytes holding the tuple
+     * @param offset
+     *            the position of the tuple in data
+     */
+    Tuple(TupleDesc td, byte[] data, int offset) {
+        this.tupleDesc = td;
+        this.source = data;
+        this.sourceOffset = offset;
+        this.sourceDesc = td;
     }
 
     /**
@@ -69,7 +99,12 @@ public class Tuple implements Serializable {
      */
     public void setField(int i, Field f) {
         // some code goes here
-        this.fieldArrayList.add(i,f);
+        materialize();
+        if (i < this.fieldArrayList.size()) {
+            this.fieldArrayList.set(i, f);
+        } else {
+            this.fieldArrayList.add(i, f);
+        }
     }
 
     /**
@@ -80,7 +115,42 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        return this.fieldArrayList.get(i);
+        if (source == null) {
+            return this.fieldArrayList.get(i);
+        }
+        if (this.fieldArrayList == null) {
+            int n = sourceDesc.numFields();
+            this.fieldArrayList = new ArrayList<>(n);
+            for (int j = 0; j < n; j++) {
+                this.fieldArrayList.add(null);
+            }
+        }
+        Field f = this.fieldArrayList.get(i);
+        if (f == null) {
+            f = sourceDesc.getFieldType(i).parse(source, sourceOffset + sourceDesc.getFieldOffset(i));
+            this.fieldArrayList.set(i, f);
+        }
+        return f;
+    }
+
+    /** Decode all fields of a view and detach it from its bytes. */
+    private void materialize() {
+        if (source == null) {
+            return;
+        }
+        for (int i = 0; i < sourceDesc.numFields(); i++) {
+            getField(i);
+        }
+        source = null;
+        sourceDesc = null;
+    }
+
+    /**
+     * Return true if this tuple is still a view over the serialized tuple
+     * at offset in data.
+     */
+    boolean isViewOf(byte[] data, int offset) {
+        return source == data && sourceOffset == offset;
     }
 
     /**
@@ -93,6 +163,7 @@ public class Tuple implements Serializable {
      */
     public String toString() {
         // some code goes here
+        materialize();
         StringBuffer stringBuffer = new StringBuffer();
         for(Field field : this.fieldArrayList){
             stringBuffer.append(field.toString());
@@ -108,6 +179,7 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
+        materialize();
         return this.fieldArrayList.iterator();
     }
 
@@ -121,11 +193,19 @@ public class Tuple implements Serializable {
     }
 
     public Tuple setFields(ArrayList<Field> fields){
+        this.source = null;
+        this.sourceDesc = null;
         this.fieldArrayList = fields;
         return this;
     }
 
     public ArrayList<Field> getFields(){
+        materialize();
         return this.fieldArrayList;
     }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        materialize();
+        out.defaultWriteObject();
+    }
 }
@@ -0,0 +1,289 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * TupleBatch holds a batch of rows column by column: an int vector for each
+ * INT_TYPE field and a String vector for each STRING_TYPE field.  Operators
+ * pass batches to each other through {@link OpIterator#nextBatch}, so that
+ * they can work on a column with a tight loop over primitives instead of
+ * dispatching on, and allocating, one Tuple at a time.
+ * <p>
+ * A batch returned by nextBatch() belongs to the caller; the operator that
+ * produced it does not touch it again.  Batches can share column vectors
+ * (see {@link #project}), so a batch that is handed on is not changed in
+ * place.  A batch starts with room for {@link #DEFAULT_SIZE} rows and grows
+ * when more are appended.
+ */
+public class TupleBatch {
+
+    /** Number of rows an operator puts in a batch. */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final TupleDesc td;
+    /** Column vectors; ints[i] is null unless field i is an int. */
+    private int[][] ints;
+    /** Column vectors; strings[i] is null unless field i is a string. */
+    private String[][] strings;
+    /** Where the rows came from, if known: page and slot of each row. */
+    private PageId[] pids;
+    private int[] slots;
+    private int size = 0;
+    private int capacity;
+    /** Offset of each field in a serialized tuple, once decode() needs it. */
+    private int[] fieldOffsets;
+
+    /** Create an empty batch with room for DEFAULT_SIZE rows of schema td. */
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_SIZE);
+    }
+
+    /** Create an empty batch with room for capacity rows of schema td. */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = Math.max(1, capacity);
+        int n = td.numFields();
+        this.ints = new int[n][];
+        this.strings = new String[n][];
+        for (int i = 0; i < n; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                ints[i] = new int[this.capacity];
+            } else {
+                strings[i] = new String[this.capacity];
+            }
+        }
+    }
+
+    private TupleBatch(TupleDesc td, int[][] ints, String[][] strings,
+                       PageId[] pids, int[] slots, int size) {
+        this.td = td;
+        this.ints = ints;
+        this.strings = strings;
+        this.pids = pids;
+        this.slots = slots;
+        this.size = size;
+        this.capacity = size;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** Return the number of rows in the batch. */
+    public int size() {
+        return size;
+    }
+
+    /** Return true if the batch has as many rows as it was created for. */
+    public boolean isFull() {
+        return size >= capacity;
+    }
+
+    /** Return the vector of int field i; only the first size() are rows. */
+    public int[] intColumn(int i) {
+        return ints[i];
+    }
+
+    /** Return the vector of string field i; only the first size() are rows. */
+    public String[] stringColumn(int i) {
+        return strings[i];
+    }
+
+    public int getInt(int field, int row) {
+        return ints[field][row];
+    }
+
+    public String getString(int field, int row) {
+        return strings[field][row];
+    }
+
+    /**
+     * Compare field fa of row ra of a with field fb of row rb of b, which has
+     * the same type, in the order Field.compare puts them; return a negative
+     * number, zero or a positive number as the first is less than, equal to
+     * or greater than the second.
+     */
+    public static int compare(TupleBatch a, int fa, int ra, TupleBatch b, int fb, int rb) {
+        int[] ints = a.ints[fa];
+        if (ints != null) {
+            return Integer.compare(ints[ra], b.ints[fb][rb]);
+        }
+        return a.strings[fa][ra].compareTo(b.strings[fb][rb]);
+    }
+
+    /** Return field i of the given row as a Field. */
+    public Field getField(int field, int row) {
+        if (ints[field] != null) {
+            return new IntField(ints[field][row]);
+        }
+        return new StringField(strings[field][row], Type.STRING_LEN);
+    }
+
+    /** Return the given row as a Tuple, with its RecordId if it is known. */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < ints.length; i++) {
+            t.setField(i, getField(i, row));
+        }
+        if (pids != null && pids[row] != null) {
+            t.setRecordId(new RecordId(pids[row], slots[row]));
+        }
+        return t;
+    }
+
+    /** Make room for one more row. */
+    private void ensureRoom() {
+        if (size < capacity) {
+            return;
+        }
+        int newCapacity = Math.max(size + 1, 2 * capacity);
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null) {
+                ints[i] = Arrays.copyOf(ints[i], newCapacity);
+            } else {
+                strings[i] = Arrays.copyOf(strings[i], newCapacity);
+            }
+        }
+        if (pids != null) {
+            pids = Arrays.copyOf(pids, newCapacity);
+            slots = Arrays.copyOf(slots, newCapacity);
+        }
+        capacity = newCapacity;
+    }
+
+    /** Append t as a row. */
+    public void add(Tuple t) {
+        ensureRoom();
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null) {
+                ints[i][size] = ((IntField) t.getField(i)).getValue();
+            } else {
+                strings[i][size] = ((StringField) t.getField(i)).getValue();
+            }
+        }
+        RecordId rid = t.getRecordId();
+        if (rid != null) {
+            setSource(rid.getPageId(), rid.getTupleNumber());
+        }
+        size++;
+    }
+
+    /**
+     * Append the serialized tuple at offset in data, laid out as td
+     * describes, as a row read from the given page and slot; pid is null if
+     * the row is not from a page.
+     */
+    void decode(byte[] data, int offset, PageId pid, int slot) {
+        ensureRoom();
+        if (fieldOffsets == null) {
+            fieldOffsets = new int[ints.length];
+            for (int i = 0; i < ints.length; i++) {
+                fieldOffsets[i] = td.getFieldOffset(i);
+            }
+        }
+        for (int i = 0; i < ints.length; i++) {
+            int at = offset + fieldOffsets[i];
+            if (ints[i] != null) {
+                ints[i][size] = Type.readInt(data, at);
+            } else {
+                strings[i][size] = new String(data, at + 4, Type.readInt(data, at));
+            }
+        }
+        if (pid != null) {
+            setSource(pid, slot);
+        }
+        size++;
+    }
+
+    /**
+     * Append the concatenation of row r1 of b1 and row r2 of b2, whose
+     * schemas together make up this batch's.
+     */
+    public void addJoined(TupleBatch b1, int r1, TupleBatch b2, int r2) {
+        ensureRoom();
+        int n1 = b1.ints.length;
+        copyFields(b1, r1, 0);
+        copyFields(b2, r2, n1);
+        size++;
+    }
+
+    /** Append row r of b, which has the same schema. */
+    public void addRow(TupleBatch b, int r) {
+        ensureRoom();
+        copyFields(b, r, 0);
+        if (b.pids != null && b.pids[r] != null) {
+            setSource(b.pids[r], b.slots[r]);
+        }
+        size++;
+    }
+
+    private void copyFields(TupleBatch b, int r, int to) {
+        for (int i = 0; i < b.ints.length; i++) {
+            if (b.ints[i] != null) {
+                ints[to + i][size] = b.ints[i][r];
+            } else {
+                strings[to + i][size] = b.strings[i][r];
+            }
+        }
+    }
+
+    private void setSource(PageId pid, int slot) {
+        if (pids == null) {
+            pids = new PageId[capacity];
+            slots = new int[capacity];
+        }
+        pids[size] = pid;
+        slots[size] = slot;
+    }
+
+    /**
+     * Return a new batch of the first n rows listed in selected, in that
+     * order.
+     */
+    public TupleBatch select(int[] selected, int n) {
+        int[][] newInts = new int[ints.length][];
+        String[][] newStrings = new String[strings.length][];
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null) {
+                int[] from = ints[i];
+                int[] to = new int[n];
+                for (int j = 0; j < n; j++) {
+                    to[j] = from[selected[j]];
+                }
+                newInts[i] = to;
+            } else {
+                String[] from = strings[i];
+                String[] to = new String[n];
+                for (int j = 0; j < n; j++) {
+                    to[j] = from[selected[j]];
+                }
+                newStrings[i] = to;
+            }
+        }
+        PageId[] newPids = null;
+        int[] newSlots = null;
+        if (pids != null) {
+            newPids = new PageId[n];
+            newSlots = new int[n];
+            for (int j = 0; j < n; j++) {
+                newPids[j] = pids[selected[j]];
+                newSlots[j] = slots[selected[j]];
+            }
+        }
+        return new TupleBatch(td, newInts, newStrings, newPids, newSlots, n);
+    }
+
+    /**
+     * Return a batch of schema newTd holding the given fields of this batch.
+     * The column vectors are shared, not copied.
+     */
+    public TupleBatch project(TupleDesc newTd, int[] fields) {
+        int[][] newInts = new int[fields.length][];
+        String[][] newStrings = new String[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            newInts[i] = ints[fields[i]];
+            newStrings[i] = strings[fields[i]];
+        }
+        return new TupleBatch(newTd, newInts, newStrings, pids, slots, size);
+    }
+}
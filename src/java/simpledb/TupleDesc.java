@@ -37,6 +37,9 @@ public class TupleDesc implements Serializable {
 
     private ArrayList<TDItem> tdItems;
 
+    /** Byte offset of each field in a serialized tuple, then the tuple size. */
+    private transient volatile int[] offsets;
+
     /**
      * @return
      *        An iterator which iterates over all the field TDItems
@@ -156,11 +159,29 @@ public class TupleDesc implements Serializable {
      */
     public int getSize() {
         // some code goes here
-        int length = 0;
-        for(TDItem tdItem : this.tdItems){
-            length += tdItem.fieldType.getLen();
+        return offsets()[numFields()];
+    }
+
+    /**
+     * @return the offset, in bytes, of the ith field from the start of a
+     *         serialized tuple
+     * @param i
+     *            index of the field. It must be a valid index.
+     */
+    public int getFieldOffset(int i) {
+        return offsets()[i];
+    }
+
+    private int[] offsets() {
+        int[] o = offsets;
+        if (o == null) {
+            o = new int[tdItems.size() + 1];
+            for (int i = 0; i < tdItems.size(); i++) {
+                o[i + 1] = o[i] + tdItems.get(i).fieldType.getLen();
+            }
+            offsets = o;
         }
-        return length;
+        return o;
     }
 
     /**
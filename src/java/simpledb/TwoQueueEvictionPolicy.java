@@ -0,0 +1,107 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * 2Q replacement (Johnson and Shasha).  Newly loaded pages enter a FIFO queue,
+ * A1in, and are evicted from it without ever reaching the main LRU queue, Am,
+ * unless they are referenced again after having been evicted.  Ids of pages
+ * evicted from A1in are remembered in a ghost queue, A1out; a page found
+ * there when it is loaded again is promoted straight into Am.
+ * <p>
+ * A sequential scan therefore only cycles through A1in and cannot flush the
+ * hot pages held in Am.
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<PageId>();
+    private final LinkedHashMap<PageId, Boolean> am =
+            new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+    private int kin;
+    private int kout;
+
+    /**
+     * @param capacity the number of pages held by the buffer pool; A1in is
+     *        sized to a quarter and A1out to half of it
+     */
+    public TwoQueueEvictionPolicy(int capacity) {
+        this.kin = Math.max(1, capacity / 4);
+        this.kout = Math.max(1, capacity / 2);
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (am.containsKey(pid)) {
+            am.get(pid);
+            return;
+        }
+        if (a1in.contains(pid)) {
+            return;
+        }
+        if (a1out.remove(pid)) {
+            am.put(pid, Boolean.TRUE);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        // a hit in A1in is treated as a correlated reference and ignored;
+        // a hit in Am moves the page to the MRU end
+        am.get(pid);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if (!a1in.remove(pid)) {
+            am.remove(pid);
+        }
+    }
+
+    public synchronized void capacityChanged(int numPages) {
+        this.kin = Math.max(1, numPages / 4);
+        this.kout = Math.max(1, numPages / 2);
+        trimGhosts();
+    }
+
+    public synchronized PageId evict(Evictable evictable) {
+        PageId victim = null;
+        if (a1in.size() > kin || am.isEmpty()) {
+            victim = evictFrom(a1in.iterator(), evictable);
+            if (victim != null) {
+                a1out.add(victim);
+                trimGhosts();
+                return victim;
+            }
+        }
+        victim = evictFrom(am.keySet().iterator(), evictable);
+        if (victim == null) {
+            victim = evictFrom(a1in.iterator(), evictable);
+            if (victim != null) {
+                a1out.add(victim);
+                trimGhosts();
+            }
+        }
+        return victim;
+    }
+
+    private void trimGhosts() {
+        Iterator<PageId> it = a1out.iterator();
+        while (a1out.size() > kout) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private PageId evictFrom(Iterator<PageId> it, Evictable evictable) {
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.canEvict(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+}
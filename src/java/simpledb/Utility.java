@@ -107,6 +107,7 @@ public class Utility {
         FileOutputStream fos = new FileOutputStream(f);
         fos.write(new byte[0]);
         fos.close();
+        FreeSpaceMap.reset(f);
 
         HeapFile hf = openHeapFile(cols, f);
         HeapPageId pid = new HeapPageId(hf.getId(), 0);
@@ -123,6 +124,16 @@ public class Utility {
         return hf;
     }
 
+    /**
+     * Arrange for a heap file, and the free space map kept next to it, to
+     * be deleted when the VM exits, as File.deleteOnExit() does for a
+     * single file.
+     */
+    public static void deleteOnExit(File heapFile) {
+        heapFile.deleteOnExit();
+        FreeSpaceMap.sideFile(heapFile).deleteOnExit();
+    }
+
     /** Opens a HeapFile and adds it to the catalog.
      *
      * @param cols number of columns in the table.
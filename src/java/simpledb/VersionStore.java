@@ -0,0 +1,253 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * VersionStore keeps the old committed versions of pages that snapshot
+ * transactions may still read, so that they see the database as of the
+ * moment they began without taking any locks.
+ * <p>
+ * Every commit is stamped with the next value of a global clock, and every
+ * transaction records the clock when it begins.  The committed version of a
+ * cached page is its before-image (see {@link Page#getBeforeImage}), which
+ * stays untouched while another transaction modifies the page.  When a
+ * transaction commits, the previous committed version of each page it wrote
+ * is kept here, tagged with the range of timestamps it was current for, as
+ * long as some snapshot transaction is running.  A snapshot transaction
+ * reading a page gets the current committed version if it was committed
+ * before the snapshot began, and the kept version that was current at the
+ * snapshot otherwise.
+ * <p>
+ * A page written to disk before its transaction commits (stolen, see
+ * {@link BufferPool#setSteal}) may be evicted and read back with the
+ * uncommitted bytes as its before-image, so its committed version is kept
+ * here until the transaction completes.
+ * <p>
+ * Versions are garbage collected once every snapshot that could read them
+ * has completed; {@link BufferPool}'s background writer runs the collector
+ * in each round.
+ *
+ * @see TransactionId#isSnapshot
+ * @Threadsafe
+ */
+class VersionStore {
+
+    /** The timestamp of the last commit. */
+    private static final AtomicLong clock = new AtomicLong(0);
+
+    /** Running snapshot transactions, mapped to their start timestamps. */
+    private static final ConcurrentHashMap<TransactionId,Long> snapshots = new ConcurrentHashMap<>();
+
+    /** Orders commits against snapshots starting. */
+    private static final Object commitLock = new Object();
+
+    /** A committed version of a page and the timestamps it was current for. */
+    private static class Version {
+        final Page image;
+        final long from; // inclusive
+        final long to;   // exclusive
+
+        Version(Page image, long from, long to) {
+            this.image = image;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /** The versions of one page, newest first. */
+    private static class Chain {
+        long committed = 0; // timestamp of the current committed version
+        final ArrayList<Version> versions = new ArrayList<>();
+    }
+
+    private static final int STRIPES = 64;
+
+    private final ConcurrentHashMap<PageId,Chain> chains = new ConcurrentHashMap<>();
+    /** Committed versions of pages written out by running transactions. */
+    private final ConcurrentHashMap<PageId,Page> stolen = new ConcurrentHashMap<>();
+    private final Object[] stripes = new Object[STRIPES];
+
+    VersionStore() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    /** Return the current value of the commit clock. */
+    static long now() {
+        return clock.get();
+    }
+
+    /**
+     * Register a snapshot transaction that is beginning.
+     *
+     * @return its start timestamp
+     */
+    static long beginSnapshot(TransactionId tid) {
+        synchronized (commitLock) {
+            long ts = clock.get();
+            snapshots.put(tid, ts);
+            return ts;
+        }
+    }
+
+    /** Unregister a snapshot transaction that has completed. */
+    static void endSnapshot(TransactionId tid) {
+        snapshots.remove(tid);
+    }
+
+    private Object stripe(PageId pid) {
+        return stripes[(pid.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    /**
+     * Record that a page is being written to disk while the transaction
+     * that dirtied it is still running, keeping its committed version.
+     */
+    void steal(Page page) {
+        PageId pid = page.getId();
+        if (!stolen.containsKey(pid)) {
+            stolen.putIfAbsent(pid, page.getBeforeImage());
+        }
+    }
+
+    /** Return true if pid was written out by a transaction still running. */
+    boolean isStolen(PageId pid) {
+        return stolen.containsKey(pid);
+    }
+
+    /** Forget the committed version of a stolen page, once it is rolled back. */
+    void forget(PageId pid) {
+        stolen.remove(pid);
+    }
+
+    /** Return the committed version of a cached page. */
+    Page committedImage(Page current) {
+        Page image = stolen.get(current.getId());
+        return image != null ? image : current.getBeforeImage();
+    }
+
+    /**
+     * Stamp the commit of the given pages and make their current contents
+     * the committed versions, keeping the previous ones for running
+     * snapshots.
+     *
+     * @param pages the pages written by the committing transaction
+     * @param evicted the pages it wrote out that are no longer cached; their
+     *            committed versions were kept when they were stolen
+     */
+    void commit(Iterable<Page> pages, Iterable<PageId> evicted) {
+        synchronized (commitLock) {
+            long ts = clock.get() + 1;
+            boolean keep = !snapshots.isEmpty();
+            for (Page page : pages) {
+                PageId pid = page.getId();
+                synchronized (stripe(pid)) {
+                    stamp(pid, keep ? committedImage(page) : null, ts);
+                    page.setBeforeImage();
+                    stolen.remove(pid);
+                }
+            }
+            for (PageId pid : evicted) {
+                synchronized (stripe(pid)) {
+                    Page image = stolen.remove(pid);
+                    if (image != null) {
+                        stamp(pid, keep ? image : null, ts);
+                    }
+                }
+            }
+            // snapshots only see the commit once all of its pages are stamped
+            clock.set(ts);
+        }
+    }
+
+    /**
+     * Record a commit of pid at ts, keeping image, the version it replaces,
+     * or dropping pid's versions if image is null since no snapshot runs.
+     */
+    private void stamp(PageId pid, Page image, long ts) {
+        if (image == null) {
+            chains.remove(pid);
+            return;
+        }
+        Chain chain = chains.get(pid);
+        if (chain == null) {
+            chain = new Chain();
+            chains.put(pid, chain);
+        }
+        chain.versions.add(0, new Version(image, chain.committed, ts));
+        chain.committed = ts;
+    }
+
+    /**
+     * Return the version of a page that a snapshot taken at ts reads.
+     *
+     * @param current the page as cached in the BufferPool
+     * @param ts the snapshot's start timestamp
+     * @throws DbException if the version was collected too early
+     */
+    Page read(Page current, long ts) throws DbException {
+        PageId pid = current.getId();
+        synchronized (stripe(pid)) {
+            Chain chain = chains.get(pid);
+            if (chain == null || chain.committed <= ts) {
+                return committedImage(current);
+            }
+            for (Version v : chain.versions) {
+                if (v.from <= ts && ts < v.to) {
+                    return v.image;
+                }
+            }
+        }
+        throw new DbException("no version of " + pid + " as of " + ts);
+    }
+
+    /**
+     * Drop the versions that no running snapshot can read.
+     *
+     * @return the number of versions dropped
+     */
+    int collectGarbage() {
+        long oldest = Long.MAX_VALUE;
+        for (Long ts : snapshots.values()) {
+            oldest = Math.min(oldest, ts);
+        }
+        int dropped = 0;
+        for (PageId pid : chains.keySet()) {
+            synchronized (stripe(pid)) {
+                Chain chain = chains.get(pid);
+                if (chain == null) {
+                    continue;
+                }
+                if (chain.committed <= oldest) {
+                    // every snapshot reads the current version
+                    dropped += chain.versions.size();
+                    chains.remove(pid);
+                    continue;
+                }
+                for (Iterator<Version> it = chain.versions.iterator(); it.hasNext(); ) {
+                    if (it.next().to <= oldest) {
+                        it.remove();
+                        dropped++;
+                    }
+                }
+            }
+        }
+        return dropped;
+    }
+
+    /** Return the number of old versions kept. */
+    int numVersions() {
+        int n = 0;
+        for (PageId pid : chains.keySet()) {
+            synchronized (stripe(pid)) {
+                Chain chain = chains.get(pid);
+                n += chain == null ? 0 : chain.versions.size();
+            }
+        }
+        return n;
+    }
+}
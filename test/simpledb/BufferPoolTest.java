@@ -0,0 +1,242 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolTest extends SimpleDbTestBase {
+
+    private static final int TABLE_PAGES = 100;
+
+    private HeapFile hf;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+        tid = new TransactionId();
+    }
+
+    private void readAllPages(BufferPool bp) throws Exception {
+        for (int i = 0; i < hf.numPages(); i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+    }
+
+    /**
+     * Unit test for BufferPool honoring the numPages constructor argument
+     */
+    @Test public void holdsNumPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2 * BufferPool.DEFAULT_PAGES);
+        readAllPages(bp);
+        assertEquals(2 * BufferPool.DEFAULT_PAGES, bp.numCachedPages());
+    }
+
+    /**
+     * Unit test for BufferPool.resize()
+     */
+    @Test public void resize() throws Exception {
+        BufferPool bp = Database.resetBufferPool(80);
+        readAllPages(bp);
+        assertEquals(80, bp.numCachedPages());
+
+        bp.resize(20);
+        assertEquals(20, bp.getNumPages());
+        assertEquals(20, bp.numCachedPages());
+
+        bp.resize(60);
+        readAllPages(bp);
+        assertEquals(60, bp.numCachedPages());
+    }
+
+    /**
+     * Unit test for BufferPool.setMemoryBudget()
+     */
+    @Test public void memoryBudget() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setMemoryBudget(30L * BufferPool.getPageSize() + 1);
+        assertEquals(30, bp.getNumPages());
+        assertEquals(30L * BufferPool.getPageSize(), bp.getMemoryBudget());
+        readAllPages(bp);
+        assertEquals(30, bp.numCachedPages());
+    }
+
+    /**
+     * Runs the given number of threads and rethrows the first failure.
+     */
+    private static void runThreads(int n, final ThreadBody body) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < n; i++) {
+            final int id = i;
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        body.run(id);
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (!errors.isEmpty()) {
+            throw new RuntimeException(errors.get(0));
+        }
+    }
+
+    private interface ThreadBody {
+        void run(int id) throws Exception;
+    }
+
+    /**
+     * Unit test for concurrent BufferPool.getPage() calls on different pages
+     */
+    @Test public void concurrentReaders() throws Exception {
+        final BufferPool bp = Database.resetBufferPool(40);
+        runThreads(8, new ThreadBody() {
+            public void run(int id) throws Exception {
+                Random rand = new Random(id);
+                TransactionId reader = new TransactionId();
+                for (int i = 0; i < 2000; i++) {
+                    HeapPageId pid = new HeapPageId(hf.getId(), rand.nextInt(TABLE_PAGES));
+                    Page p = bp.getPage(reader, pid, Permissions.READ_ONLY);
+                    assertEquals(pid, p.getId());
+                    assertTrue(bp.numCachedPages() <= 40);
+                }
+                bp.transactionComplete(reader);
+            }
+        });
+        assertEquals(40, bp.numCachedPages());
+    }
+
+    /**
+     * Unit test for concurrent misses on the same page sharing one frame
+     */
+    @Test public void concurrentLoadsShareFrame() throws Exception {
+        final BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        final HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        final Page[] seen = new Page[8];
+        runThreads(seen.length, new ThreadBody() {
+            public void run(int id) throws Exception {
+                seen[id] = bp.getPage(new TransactionId(), pid, Permissions.READ_ONLY);
+            }
+        });
+        for (Page p : seen) {
+            assertSame(seen[0], p);
+        }
+        assertEquals(1, bp.numCachedPages());
+    }
+
+    /** Records the page numbers of each write, one list per write. */
+    private static class RecordingHeapFile extends HeapFile {
+        final List<List<Integer>> writes = new ArrayList<List<Integer>>();
+
+        RecordingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public void writePage(Page page) throws IOException {
+            writes.add(Arrays.asList(page.getId().getPageNumber()));
+            super.writePage(page);
+        }
+
+        @Override
+        public void writePages(List<Page> run) throws IOException {
+            List<Integer> pages = new ArrayList<Integer>();
+            for (Page p : run) {
+                pages.add(p.getId().getPageNumber());
+            }
+            writes.add(pages);
+            super.writePages(run);
+        }
+    }
+
+    private RecordingHeapFile recordingFile() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * 10, 1000, null, null);
+        RecordingHeapFile rf = new RecordingHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(rf, SystemTestUtil.getUUID());
+        return rf;
+    }
+
+    /**
+     * Unit test for BufferPool.flushPages() writing runs of adjacent pages
+     * with one write each, in page order
+     */
+    @Test public void flushCoalescesAdjacentPages() throws Exception {
+        RecordingHeapFile rf = recordingFile();
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        for (int n : new int[] { 5, 2, 9, 3, 4 }) {
+            bp.getPage(tid, new HeapPageId(rf.getId(), n), Permissions.READ_WRITE).markDirty(true, tid);
+        }
+        bp.getPage(tid, new HeapPageId(rf.getId(), 7), Permissions.READ_ONLY);
+
+        bp.flushPages(tid);
+        assertEquals(Arrays.asList(Arrays.asList(2, 3, 4, 5), Arrays.asList(9)), rf.writes);
+        for (int n : new int[] { 2, 3, 4, 5, 9 }) {
+            assertNull(bp.getPage(tid, new HeapPageId(rf.getId(), n), Permissions.READ_ONLY).isDirty());
+        }
+    }
+
+    /**
+     * Unit test for the background writer only writing pages of completed
+     * transactions
+     */
+    @Test public void writeBehindSkipsRunningTransactions() throws Exception {
+        RecordingHeapFile rf = recordingFile();
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId running = new TransactionId();
+        TransactionId done = new TransactionId();
+        HeapPageId p0 = new HeapPageId(rf.getId(), 0);
+        HeapPageId p1 = new HeapPageId(rf.getId(), 1);
+        Page running0 = bp.getPage(running, p0, Permissions.READ_WRITE);
+        running0.markDirty(true, running);
+        Page done1 = bp.getPage(done, p1, Permissions.READ_WRITE);
+        done1.markDirty(true, done);
+        // finish the transaction without the commit flush
+        bp.releasePage(done, p1);
+
+        assertEquals(1, bp.writeBehind());
+        assertEquals(Arrays.asList(Arrays.asList(1)), rf.writes);
+        assertNull(done1.isDirty());
+        assertEquals(running, running0.isDirty());
+        bp.transactionComplete(running, false);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
@@ -7,6 +7,8 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -211,6 +213,46 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * Unit test for a transaction waiting on a lock without a deadlock: it
+   * must keep waiting, however long, rather than be aborted.
+   */
+  @Test public void testWaitWithoutDeadlock() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    LockGrabber lg2 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+
+    Thread.sleep(10 * POLL_INTERVAL);
+    assertFalse(lg2.acquired());
+    assertNull(lg2.getError());
+
+    bp.transactionComplete(tid1);
+    Thread.sleep(POLL_INTERVAL);
+    assertTrue(lg2.acquired());
+    assertNull(lg2.getError());
+  }
+
+  /**
+   * Unit test for a deadlock being broken right away by aborting its
+   * youngest transaction.
+   */
+  @Test public void testYoungestIsAborted() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+
+    LockGrabber lg1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg1.acquired());
+
+    LockGrabber lg2 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    lg2.join(POLL_INTERVAL);
+    assertTrue(lg2.getError() instanceof TransactionAbortedException);
+
+    // the aborted transaction's locks are released by its grabber
+    Thread.sleep(POLL_INTERVAL);
+    assertTrue(lg1.acquired());
+    assertNull(lg1.getError());
+  }
+
   /**
    * JUnit suite target
    */
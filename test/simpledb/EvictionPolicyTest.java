@@ -0,0 +1,175 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static final int CAPACITY = 10;
+    private static final int HOT_PAGES = 4;
+    private static final int TABLE = 1;
+
+    private static final EvictionPolicy.Evictable ALL = new EvictionPolicy.Evictable() {
+        public boolean canEvict(PageId pid) {
+            return true;
+        }
+    };
+
+    /**
+     * Simulates a buffer pool of CAPACITY pages driven by the policy.
+     * @return true if the reference was a hit
+     */
+    private static boolean reference(EvictionPolicy policy, Set<PageId> resident, PageId pid) {
+        if (resident.contains(pid)) {
+            policy.pageAccessed(pid);
+            return true;
+        }
+        if (resident.size() == CAPACITY) {
+            PageId victim = policy.evict(ALL);
+            assertTrue(resident.remove(victim));
+        }
+        resident.add(pid);
+        policy.pageAdded(pid);
+        return false;
+    }
+
+    /**
+     * Interleaves a long scan with a small set of hot pages that is
+     * referenced round-robin, and returns the hit rate on the hot pages.
+     * The reuse distance of each hot page is larger than the pool, so plain
+     * LRU never hits on them.
+     */
+    private static double hotHitRate(EvictionPolicy policy) {
+        Set<PageId> resident = new HashSet<PageId>();
+        // warm up: hot pages referenced among a stream of cold ones
+        int coldPage = 100000;
+        for (int i = 0; i < 50 * HOT_PAGES; i++) {
+            reference(policy, resident, new HeapPageId(TABLE, i % HOT_PAGES));
+            reference(policy, resident, new HeapPageId(TABLE, coldPage++));
+        }
+        int hits = 0, refs = 0;
+        int scanPage = HOT_PAGES;
+        for (int i = 0; i < 2000; i++) {
+            for (int s = 0; s < 8; s++) {
+                reference(policy, resident, new HeapPageId(TABLE, scanPage++));
+            }
+            refs++;
+            if (reference(policy, resident, new HeapPageId(TABLE, i % HOT_PAGES))) {
+                hits++;
+            }
+        }
+        return (double) hits / refs;
+    }
+
+    private static void checkSkipsUnevictable(EvictionPolicy policy) {
+        final PageId p0 = new HeapPageId(TABLE, 0);
+        final PageId p1 = new HeapPageId(TABLE, 1);
+        policy.pageAdded(p0);
+        policy.pageAdded(p1);
+
+        PageId victim = policy.evict(new EvictionPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                return !pid.equals(p0);
+            }
+        });
+        assertEquals(p1, victim);
+
+        EvictionPolicy.Evictable none = new EvictionPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                return false;
+            }
+        };
+        assertNull(policy.evict(none));
+
+        policy.pageRemoved(p0);
+        assertNull(policy.evict(ALL));
+    }
+
+    /**
+     * Unit test for ClockEvictionPolicy: a frequently used page outlives a
+     * scan over more pages than the pool holds
+     */
+    @Test public void clockKeepsFrequentPages() {
+        EvictionPolicy policy = new ClockEvictionPolicy();
+        Set<PageId> resident = new HashSet<PageId>();
+        PageId hot = new HeapPageId(TABLE, 0);
+        for (int i = 0; i < ClockEvictionPolicy.MAX_USAGE; i++) {
+            reference(policy, resident, hot);
+        }
+        for (int i = 1; i <= 2 * CAPACITY; i++) {
+            reference(policy, resident, new HeapPageId(TABLE, i));
+        }
+        assertTrue(resident.contains(hot));
+    }
+
+    /**
+     * Sanity check that the scan workload defeats plain LRU, i.e. LRU-1
+     */
+    @Test public void lruLosesHotPages() {
+        assertTrue(hotHitRate(new LRUKEvictionPolicy(1, 0)) < 0.1);
+    }
+
+    /**
+     * Unit test for LRUKEvictionPolicy scan resistance
+     */
+    @Test public void lruKKeepsHotPages() {
+        assertTrue(hotHitRate(new LRUKEvictionPolicy()) > 0.9);
+    }
+
+    /**
+     * Unit test for TwoQueueEvictionPolicy scan resistance
+     */
+    @Test public void twoQueueKeepsHotPages() {
+        assertTrue(hotHitRate(new TwoQueueEvictionPolicy(CAPACITY)) > 0.9);
+    }
+
+    /**
+     * Unit test for TwoQueueEvictionPolicy: a page evicted from A1in because
+     * no page of Am could be evicted is still remembered in A1out
+     */
+    @Test public void twoQueueRemembersFallbackVictim() {
+        EvictionPolicy policy = new TwoQueueEvictionPolicy(4);
+        final PageId a = new HeapPageId(TABLE, 0);
+        final PageId b = new HeapPageId(TABLE, 1);
+        PageId c = new HeapPageId(TABLE, 2);
+        policy.pageAdded(a);
+        policy.pageAdded(b);
+        assertEquals(a, policy.evict(ALL));
+        policy.pageAdded(a); // promoted to Am
+
+        assertEquals(b, policy.evict(new EvictionPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                return !pid.equals(a);
+            }
+        }));
+        policy.pageAdded(b); // promoted to Am as well
+        policy.pageAdded(c);
+        assertEquals(a, policy.evict(ALL));
+    }
+
+    /**
+     * Unit test for EvictionPolicy.evict() honoring the Evictable callback
+     */
+    @Test public void skipsUnevictablePages() {
+        checkSkipsUnevictable(new ClockEvictionPolicy());
+        checkSkipsUnevictable(new LRUKEvictionPolicy());
+        checkSkipsUnevictable(new TwoQueueEvictionPolicy(CAPACITY));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class FileHandleCacheTest extends SimpleDbTestBase {
+
+    private static final int MAX_OPEN = 2;
+
+    private FileHandleCache cache;
+    private File[] files;
+
+    @Before public void createFiles() throws Exception {
+        cache = new FileHandleCache(MAX_OPEN);
+        files = new File[4];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = File.createTempFile("handles", ".dat");
+            files[i].deleteOnExit();
+        }
+    }
+
+    @After public void closeFiles() {
+        cache.closeAll();
+    }
+
+    /**
+     * Unit test for FileHandleCache keeping one channel per file
+     */
+    @Test public void sharesChannel() throws Exception {
+        FileChannel a = cache.acquire(files[0]);
+        FileChannel b = cache.acquire(files[0].getAbsoluteFile());
+        assertSame(a, b);
+        cache.release(a);
+        cache.release(b);
+        assertSame(a, cache.acquire(files[0]));
+        assertEquals(1, cache.numOpen());
+    }
+
+    /**
+     * Unit test for FileHandleCache closing idle channels beyond its limit
+     */
+    @Test public void boundsOpenChannels() throws Exception {
+        FileChannel first = cache.acquire(files[0]);
+        cache.release(first);
+        for (int i = 1; i < files.length; i++) {
+            cache.release(cache.acquire(files[i]));
+            assertTrue(cache.numOpen() <= MAX_OPEN);
+        }
+        assertFalse(first.isOpen());
+
+        // a closed file is reopened on demand
+        FileChannel again = cache.acquire(files[0]);
+        assertNotSame(first, again);
+        assertTrue(again.isOpen());
+        cache.release(again);
+    }
+
+    /**
+     * Unit test for FileHandleCache never closing a channel in use
+     */
+    @Test public void keepsChannelsInUse() throws Exception {
+        FileChannel[] held = new FileChannel[files.length];
+        for (int i = 0; i < files.length; i++) {
+            held[i] = cache.acquire(files[i]);
+        }
+        cache.close(files[0]);
+        for (FileChannel ch : held) {
+            assertTrue(ch.isOpen());
+        }
+
+        held[0].write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 0);
+        for (FileChannel ch : held) {
+            cache.release(ch);
+        }
+        assertEquals(MAX_OPEN, cache.numOpen());
+        assertFalse(held[0].isOpen());
+        assertEquals(3, files[0].length());
+    }
+
+    /**
+     * Unit test for FileHandleCache only creating a missing file when it is
+     * opened for writing
+     */
+    @Test public void createsOnlyForWrite() throws Exception {
+        File missing = files[0];
+        assertTrue(missing.delete());
+        try {
+            cache.acquire(missing);
+            fail("expected FileNotFoundException");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+        assertFalse(missing.exists());
+        assertEquals(0, cache.numOpen());
+
+        FileChannel ch = cache.acquireForWrite(missing);
+        assertTrue(missing.exists());
+        cache.release(ch);
+        assertSame(ch, cache.acquire(missing));
+        cache.release(ch);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FileHandleCacheTest.class);
+    }
+}
@@ -120,6 +120,26 @@ public class FilterTest extends SimpleDbTestBase {
     op.close();
   }
 
+  /**
+   * Unit test for Filter.nextBatch() over more tuples than fit in a batch
+   */
+  @Test public void filterBatches() throws Exception {
+    this.scan = new TestUtil.MockScan(-5000, 5000, testWidth);
+    Predicate pred = new Predicate(0, Predicate.Op.LESS_THAN, TestUtil.getField(2));
+    Filter op = new Filter(pred, scan);
+    op.open();
+    int expected = -5000;
+    TupleBatch batch;
+    while ((batch = op.nextBatch()) != null) {
+      assertTrue(batch.size() > 0);
+      for (int i = 0; i < batch.size(); i++) {
+        assertEquals(expected++, batch.getInt(0, i));
+      }
+    }
+    assertEquals(2, expected);
+    op.close();
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,202 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+
+    private static final int TABLE_PAGES = 10;
+
+    /** Counts the number of readPage operations. */
+    private static class CountingHeapFile extends HeapFile {
+        int readCount = 0;
+
+        CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public synchronized Page readPage(PageId pid) {
+            readCount++;
+            return super.readPage(pid);
+        }
+    }
+
+    private File f;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * TABLE_PAGES, 1000, null, null);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private CountingHeapFile open() {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getBufferPool().getPrefetcher().setWindow(0);
+        CountingHeapFile hf = new CountingHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        return hf;
+    }
+
+    /**
+     * Unit test for inserts skipping pages the map records as full, across
+     * reopening the file
+     */
+    @Test public void skipsFullPages() throws Exception {
+        CountingHeapFile hf = open();
+        hf.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        assertEquals(TABLE_PAGES + 1, hf.numPages());
+        for (int i = 0; i < TABLE_PAGES; i++) {
+            // pages we only looked at are not left locked
+            assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), i)));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        hf = open();
+        tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(2, 2);
+        hf.insertTuple(tid, t);
+        assertEquals(1, hf.readCount);
+        assertEquals(TABLE_PAGES, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(TABLE_PAGES + 1, hf.numPages());
+    }
+
+    /**
+     * Unit test for deletes making a full page available to inserts again
+     */
+    @Test public void deleteFreesPage() throws Exception {
+        CountingHeapFile hf = open();
+        hf.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        HeapPageId pid = new HeapPageId(hf.getId(), 3);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        hf.deleteTuple(tid, page.iterator().next());
+        assertEquals(1, page.getNumEmptySlots());
+
+        Tuple t = Utility.getHeapTuple(3, 2);
+        hf.insertTuple(tid, t);
+        assertEquals(pid, t.getRecordId().getPageId());
+        assertEquals(0, page.getNumEmptySlots());
+    }
+
+    /**
+     * Unit test for an abort making a page it filled available to inserts
+     * again
+     */
+    @Test public void abortFreesPage() throws Exception {
+        CountingHeapFile hf = open();
+        BufferPool bp = Database.getBufferPool();
+        HeapPageId pid = new HeapPageId(hf.getId(), 3);
+        HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        bp.deleteTuple(tid, page.iterator().next());
+        bp.transactionComplete(tid);
+
+        // fills page 3 again, then aborts
+        tid = new TransactionId();
+        bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(1, 2));
+        bp.transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(2, 2);
+        bp.insertTuple(tid, hf.getId(), t);
+        assertEquals(pid, t.getRecordId().getPageId());
+        assertEquals(TABLE_PAGES, hf.numPages());
+    }
+
+    /**
+     * Unit test for a side file with bits for pages past the end of the heap
+     * file being dropped
+     */
+    @Test public void dropsStaleMap() throws Exception {
+        FreeSpaceMap map = new FreeSpaceMap(f);
+        for (int i = 0; i < TABLE_PAGES + 8; i++) {
+            map.markFull(i);
+        }
+
+        map = new FreeSpaceMap(f);
+        assertFalse(map.isFull(0));
+        assertEquals(0, map.findPage(0, TABLE_PAGES));
+        assertEquals(0, map.getFile().length());
+    }
+
+    /**
+     * Unit test for rewriting a heap file in place dropping its map
+     */
+    @Test public void rewriteResetsMap() throws Exception {
+        FreeSpaceMap map = new FreeSpaceMap(f);
+        for (int i = 0; i < TABLE_PAGES; i++) {
+            map.markFull(i);
+        }
+        // same name, same number of pages, all of them with room
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        SystemTestUtil.createRandomHeapFileUnopened(2, 500 * TABLE_PAGES, 1000, null, tuples);
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        assertEquals(TABLE_PAGES * BufferPool.getPageSize(), f.length());
+        assertFalse(FreeSpaceMap.sideFile(f).exists());
+        assertFalse(new FreeSpaceMap(f).isFull(0));
+    }
+
+    /**
+     * Unit test for a side file built for another heap file being dropped
+     */
+    @Test public void dropsMapOfOtherFile() throws Exception {
+        FreeSpaceMap map = new FreeSpaceMap(f);
+        for (int i = 0; i < TABLE_PAGES; i++) {
+            map.markFull(i);
+        }
+        File other = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * TABLE_PAGES, 1000, null, null);
+        Files.copy(FreeSpaceMap.sideFile(f).toPath(), FreeSpaceMap.sideFile(other).toPath());
+
+        map = new FreeSpaceMap(other);
+        assertFalse(map.isFull(0));
+        assertEquals(0, map.findPage(0, TABLE_PAGES));
+    }
+
+    /**
+     * Unit test for the map surviving in its side file
+     */
+    @Test public void persists() throws Exception {
+        FreeSpaceMap map = new FreeSpaceMap(f);
+        assertEquals(0, map.findPage(0, TABLE_PAGES));
+        for (int i = 0; i < TABLE_PAGES; i++) {
+            map.markFull(i);
+        }
+        map.markFree(9);
+        map.markFree(3);
+        assertEquals(3, map.findPage(0, TABLE_PAGES));
+
+        map = new FreeSpaceMap(f);
+        assertTrue(map.isFull(8));
+        assertEquals(3, map.findPage(0, TABLE_PAGES));
+        assertEquals(9, map.findPage(4, TABLE_PAGES));
+        assertEquals(-1, map.findPage(10, TABLE_PAGES));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
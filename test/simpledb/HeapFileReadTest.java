@@ -77,6 +77,32 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for reading a HeapFile a batch at a time
+     */
+    @Test
+    public void testReadBatch() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile bigFile = SystemTestUtil.createRandomHeapFile(2, 3000, null, tuples);
+        assertTrue(bigFile.numPages() > 1);
+
+        DbFileIterator it = bigFile.iterator(tid);
+        it.open();
+        int row = 0;
+        TupleBatch batch = new TupleBatch(td);
+        while (it.readBatch(batch)) {
+            assertTrue(batch.size() <= TupleBatch.DEFAULT_SIZE);
+            for (int i = 0; i < batch.size(); i++, row++) {
+                assertEquals((int) tuples.get(row).get(0), batch.getInt(0, i));
+                assertEquals((int) tuples.get(row).get(1), batch.getInt(1, i));
+                assertNotNull(batch.getTuple(i).getRecordId());
+            }
+            batch = new TupleBatch(td);
+        }
+        assertEquals(3000, row);
+        it.close();
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
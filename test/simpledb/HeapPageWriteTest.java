@@ -1,9 +1,13 @@
 package simpledb;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +130,53 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage keeping its bytes unchanged until the first
+     * write, which keeps them as the before-image
+     */
+    @Test public void beforeImageOnFirstWrite() throws Exception {
+        byte[] original = HeapPageReadTest.EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, original);
+        assertSame(original, page.getPageData());
+        assertEquals(0, page.getDirtyRanges().length);
+
+        Tuple first = page.iterator().next();
+        page.deleteTuple(first);
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, original);
+        assertNotSame(original, page.getPageData());
+        assertArrayEquals(original, page.getBeforeImage().getPageData());
+
+        // the slot and the header byte holding its bit changed
+        int slot = first.getRecordId().getTupleNumber();
+        int tupleSize = Utility.getTupleDesc(2).getSize();
+        int offset = (int) Math.ceil(page.numSlots / 8.0) + slot * tupleSize;
+        assertArrayEquals(new int[] { slot / 8, slot / 8 + 1, offset, offset + tupleSize },
+                page.getDirtyRanges());
+
+        page.setBeforeImage();
+        assertEquals(0, page.getDirtyRanges().length);
+        assertArrayEquals(page.getPageData(), page.getBeforeImage().getPageData());
+    }
+
+    /**
+     * Unit test for tuples read from a HeapPage not changing when the page
+     * does
+     */
+    @Test public void viewsSurviveWrites() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA.clone());
+        Tuple first = page.iterator().next();
+        byte[] data = page.getPageData();
+        byte[] copy = data.clone();
+
+        // reuse the slot before the view decodes anything
+        page.deleteTuple(first);
+        page.insertTuple(Utility.getHeapTuple(new int[] { 7, 7 }));
+        Tuple original = new HeapPage(pid, copy).iterator().next();
+        assertEquals(original.getField(0), first.getField(0));
+        assertEquals(original.getField(1), first.getField(1));
+        assertTrue(Arrays.equals(copy, data));
+    }
+
     /**
      * JUnit suite target
      */
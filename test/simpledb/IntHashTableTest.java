@@ -0,0 +1,66 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+public class IntHashTableTest {
+
+    /**
+     * Unit test for IntHashTable.add() and get()
+     */
+    @Test public void addAndGet() {
+        IntHashTable table = new IntHashTable();
+        assertEquals(-1, table.get(5));
+        assertEquals(0, table.add(5));
+        assertEquals(1, table.add(-5));
+        assertEquals(0, table.add(5));
+        assertEquals(2, table.add(0));
+        assertEquals(3, table.size());
+        assertEquals(1, table.get(-5));
+        assertEquals(0, table.key(2));
+        assertEquals(-1, table.get(6));
+
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(-1, table.get(5));
+        assertEquals(0, table.add(6));
+    }
+
+    /**
+     * Unit test for IntHashTable keeping ids as it grows, against a HashMap
+     */
+    @Test public void grow() {
+        IntHashTable table = new IntHashTable();
+        HashMap<Integer, Integer> ids = new HashMap<Integer, Integer>();
+        Random random = new Random(22);
+        for (int i = 0; i < 100000; i++) {
+            // strided keys, so that runs of keys share low bits
+            int key = random.nextInt(50000) * 1024;
+            Integer id = ids.get(key);
+            if (id == null) {
+                id = ids.size();
+                ids.put(key, id);
+            }
+            assertEquals((int) id, table.add(key));
+        }
+        assertEquals(ids.size(), table.size());
+        for (Integer key : ids.keySet()) {
+            int id = ids.get(key);
+            assertEquals(id, table.get(key));
+            assertEquals((int) key, table.key(id));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IntHashTableTest.class);
+    }
+}
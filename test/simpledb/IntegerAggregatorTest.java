@@ -126,6 +126,33 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test IntegerAggregator.mergeBatchIntoGroup() with and without grouping
+   */
+  @Test public void mergeBatch() throws Exception {
+    scan1.open();
+    TupleBatch batch = scan1.nextBatch();
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+    agg.mergeBatchIntoGroup(batch);
+    OpIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1,
+        new int[] { 1, 12, 3, 12, 5, 7 }), it);
+
+    agg = new IntegerAggregator(Aggregator.NO_GROUPING, null, 1, Aggregator.Op.MIN);
+    agg.mergeBatchIntoGroup(batch);
+    agg.mergeTupleIntoGroup(Utility.getHeapTuple(new int[] { 0, 1 }));
+    it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(1, new int[] { 1 }), it);
+
+    agg = new IntegerAggregator(Aggregator.NO_GROUPING, null, 1, Aggregator.Op.AVG);
+    agg.mergeBatchIntoGroup(batch);
+    it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(1, new int[] { 31 / 7 }), it);
+  }
+
   /**
    * Test IntegerAggregator.iterator() for OpIterator behaviour
    */
@@ -3,12 +3,16 @@ package simpledb;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
 
 public class JoinTest extends SimpleDbTestBase {
 
@@ -105,6 +109,274 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for Join.nextBatch() using a &gt; predicate
+   */
+  @Test public void gtJoinBatches() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    Join op = new Join(pred, scan1, scan2);
+    op.open();
+    OpIterator actual = TestUtil.readBatches(op);
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, actual);
+    TestUtil.matchAllTuples(actual, gtJoin);
+  }
+
+  /**
+   * Unit test for HashEquiJoin.nextBatch()
+   */
+  @Test public void hashJoinBatches() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+    op.open();
+    OpIterator actual = TestUtil.readBatches(op);
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, actual);
+    TestUtil.matchAllTuples(actual, eqJoin);
+  }
+
+  /**
+   * Unit test for Join.getNext() when most outer tuples match nothing
+   */
+  @Test public void sparseJoin() throws Exception {
+    int[] left = new int[100000];
+    for (int i = 0; i < left.length; i++)
+      left[i] = i;
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    Join op = new Join(pred, TestUtil.createTupleList(1, left),
+        TestUtil.createTupleList(1, new int[] { -1, left.length - 1 }));
+    op.setBlockRows(1);
+    op.open();
+    assertTrue(op.hasNext());
+    Tuple t = op.next();
+    assertEquals(new IntField(left.length - 1), t.getField(0));
+    assertTrue(TestUtil.checkExhausted(op));
+  }
+
+  /**
+   * Unit test for Join probing a B+ tree on the inner join field
+   */
+  @Test public void indexJoin() throws Exception {
+    int[] rows = new int[2 * 500];
+    BTreeFile bf = createBTree(rows);
+    int[] left = new int[] { 5, 50, 99, 150 };
+    TransactionId tid = new TransactionId();
+    Predicate.Op[] ops = new Predicate.Op[] { Predicate.Op.EQUALS,
+        Predicate.Op.GREATER_THAN, Predicate.Op.LESS_THAN_OR_EQ };
+    for (Predicate.Op o : ops) {
+      JoinPredicate pred = new JoinPredicate(0, o, 0);
+      SeqScan inner = new SeqScan(tid, bf.getId());
+      assertTrue(Join.canUseIndex(pred, inner));
+      Join indexed = new Join(pred, TestUtil.createTupleList(1, left), inner);
+      Join scanned = new Join(pred, TestUtil.createTupleList(1, left),
+          TestUtil.createTupleList(2, rows));
+      indexed.open();
+      scanned.open();
+      assertEquals(count(scanned), count(indexed));
+      scanned.rewind();
+      TestUtil.matchAllTuples(scanned, indexed);
+    }
+    assertTrue(!Join.canUseIndex(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+        new SeqScan(tid, bf.getId())));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Create a B+ tree of random two-field tuples keyed on the first field, one
+   * for each pair of entries in rows, and add it to the catalog.  The tuples
+   * are stored in rows, one field after the other.
+   */
+  private static BTreeFile createBTree(int[] rows) throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, rows.length / 2, 100,
+        null, tuples, 0);
+    Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+    for (int i = 0; i < tuples.size(); i++) {
+      rows[2 * i] = tuples.get(i).get(0);
+      rows[2 * i + 1] = tuples.get(i).get(1);
+    }
+    return bf;
+  }
+
+  private static int count(OpIterator it) throws Exception {
+    int n = 0;
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * Unit test for HashEquiJoin when child1 does not fit in memory, so both
+   * children are partitioned to disk, and the partitions again
+   */
+  @Test public void hashJoinSpills() throws Exception {
+    int[] left = new int[600];
+    for (int i = 0; i < left.length; i++)
+      left[i] = i % 200;
+    int[] right = new int[300];
+    for (int i = 0; i < right.length; i++)
+      right[i] = i;
+    int[] expected = new int[2 * 600];
+    for (int i = 0; i < 600; i++) {
+      expected[2 * i] = i % 200;
+      expected[2 * i + 1] = i % 200;
+    }
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, TestUtil.createTupleList(1, left),
+        TestUtil.createTupleList(1, right));
+    op.setMemoryRows(10);
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(600, count);
+    assertTrue(op.numSpills() > 1);
+
+    op.rewind();
+    OpIterator actual = TestUtil.readBatches(op);
+    OpIterator expectedJoin = TestUtil.createTupleList(2, expected);
+    expectedJoin.open();
+    TestUtil.matchAllTuples(expectedJoin, actual);
+    TestUtil.matchAllTuples(actual, expectedJoin);
+  }
+
+  /**
+   * Unit test for HashEquiJoin when one key does not fit in memory, so that
+   * partitioning cannot split it up
+   */
+  @Test public void hashJoinSkewed() throws Exception {
+    int[] left = new int[50];
+    for (int i = 0; i < left.length; i++)
+      left[i] = 7;
+    int[] right = new int[] { 6, 7, 7, 8 };
+    int[] expected = new int[2 * 100];
+    for (int i = 0; i < expected.length; i++)
+      expected[i] = 7;
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, TestUtil.createTupleList(1, left),
+        TestUtil.createTupleList(1, right));
+    op.setMemoryRows(10);
+    op.open();
+    OpIterator actual = TestUtil.readBatches(op);
+    OpIterator expectedJoin = TestUtil.createTupleList(2, expected);
+    expectedJoin.open();
+    TestUtil.matchAllTuples(expectedJoin, actual);
+    TestUtil.matchAllTuples(actual, expectedJoin);
+    assertEquals(HashEquiJoin.MAX_DEPTH, op.numSpills());
+  }
+
+  /**
+   * Unit test for SortMergeJoin sorting unordered children, against Join
+   */
+  @Test public void mergeJoin() throws Exception {
+    int[] left = new int[60];
+    for (int i = 0; i < left.length; i++)
+      left[i] = i * 7 % 23;
+    int[] right = new int[40];
+    for (int i = 0; i < right.length; i++)
+      right[i] = i * 5 % 19;
+    Predicate.Op[] ops = new Predicate.Op[] { Predicate.Op.EQUALS,
+        Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ,
+        Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ };
+    for (Predicate.Op o : ops) {
+      JoinPredicate pred = new JoinPredicate(0, o, 0);
+      SortMergeJoin op = new SortMergeJoin(pred, TestUtil.createTupleList(1, left),
+          TestUtil.createTupleList(1, right));
+      Join nested = new Join(pred, TestUtil.createTupleList(1, left),
+          TestUtil.createTupleList(1, right));
+      op.open();
+      nested.open();
+      assertNotNull(op.getSort(0));
+      assertNotNull(op.getSort(1));
+      assertEquals(count(nested), count(op));
+      nested.rewind();
+      TestUtil.matchAllTuples(nested, op);
+
+      // ordered on the left key, except for < and <=, which are driven by
+      // the right
+      int field = o == Predicate.Op.LESS_THAN || o == Predicate.Op.LESS_THAN_OR_EQ ? 1 : 0;
+      op.rewind();
+      int last = Integer.MIN_VALUE;
+      while (op.hasNext()) {
+        int key = ((IntField) op.next().getField(field)).getValue();
+        assertTrue(key >= last);
+        last = key;
+      }
+    }
+  }
+
+  /**
+   * Unit test for SortMergeJoin.nextBatch() when a sort does not fit in
+   * memory, so that its runs are written to disk and merged
+   */
+  @Test public void mergeJoinSpills() throws Exception {
+    int[] left = new int[100];
+    for (int i = 0; i < left.length; i++)
+      left[i] = (left.length - i) % 30;
+    int[] right = new int[] { 29, 3, 3, 0, 40 };
+    int[] expected = new int[2 * 14];
+    int n = 0;
+    for (int key : new int[] { 0, 3, 29 })
+      for (int i = 0; i < left.length; i++)
+        if (left[i] == key)
+          for (int r : right)
+            if (r == key) {
+              expected[n++] = key;
+              expected[n++] = key;
+            }
+    assertEquals(expected.length, n);
+    ExternalSort sort = new ExternalSort(TestUtil.createTupleList(1, left), 0);
+    sort.setMemoryRows(10);
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, sort, TestUtil.createTupleList(1, right));
+    op.open();
+    assertTrue(op.getSort(0) == null);
+    assertEquals(10, sort.numRuns());
+    OpIterator actual = TestUtil.readBatches(op);
+    OpIterator expectedJoin = TestUtil.createTupleList(2, expected);
+    expectedJoin.open();
+    TestUtil.matchAllTuples(expectedJoin, actual);
+    TestUtil.matchAllTuples(actual, expectedJoin);
+    op.rewind();
+    assertEquals(14, count(op));
+  }
+
+  /**
+   * Unit test for SortMergeJoin streaming a B+ tree scan without sorting it,
+   * and for the optimizer choosing a merge join of two B+ trees
+   */
+  @Test public void mergeJoinSortedInput() throws Exception {
+    int[] rows = new int[2 * 500];
+    BTreeFile bf = createBTree(rows);
+    int[] left = new int[] { 99, 5, 50, 150, 5 };
+    TransactionId tid = new TransactionId();
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SeqScan inner = new SeqScan(tid, bf.getId());
+    assertTrue(SortMergeJoin.isSorted(inner, 0));
+    assertTrue(!SortMergeJoin.isSorted(inner, 1));
+    SortMergeJoin merged = new SortMergeJoin(pred, TestUtil.createTupleList(1, left), inner);
+    Join scanned = new Join(pred, TestUtil.createTupleList(1, left),
+        TestUtil.createTupleList(2, rows));
+    merged.open();
+    scanned.open();
+    assertTrue(merged.getSort(1) == null);
+    assertEquals(count(scanned), count(merged));
+    scanned.rewind();
+    TestUtil.matchAllTuples(scanned, merged);
+
+    SeqScan scanA = new SeqScan(tid, bf.getId(), "a");
+    SeqScan scanB = new SeqScan(tid, bf.getId(), "b");
+    LogicalJoinNode lj = new LogicalJoinNode("a", "b",
+        scanA.getTupleDesc().getFieldName(0), scanB.getTupleDesc().getFieldName(0),
+        Predicate.Op.LESS_THAN);
+    assertTrue(JoinOptimizer.instantiateJoin(lj, scanA, scanB) instanceof SortMergeJoin);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,273 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    /** Time to wait before checking the state of lock contention, in ms */
+    private static final int TIMEOUT = 100;
+
+    private static final int TABLE_ID = 1;
+
+    private LockManager lm;
+
+    /** Acquires a lock in a new thread. */
+    private class Locker extends Thread {
+        final TransactionId tid;
+        final PageId pid;
+        final Permissions perm;
+        volatile boolean acquired = false;
+        volatile Exception error = null;
+
+        Locker(TransactionId tid, PageId pid, Permissions perm) {
+            this.tid = tid;
+            this.pid = pid;
+            this.perm = perm;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                lm.acquireLock(pid, tid, perm);
+                acquired = true;
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        lm = new LockManager(BufferPool.DEFAULT_PAGES, 2 * BufferPool.DEFAULT_PAGES);
+    }
+
+    private PageId page(int n) {
+        return new HeapPageId(TABLE_ID, n);
+    }
+
+    /**
+     * Unit test for shared locks taken and released on the fast path
+     */
+    @Test public void sharedLocks() throws Exception {
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        lm.acquireLock(page(0), tid1, Permissions.READ_ONLY);
+        lm.acquireLock(page(0), tid1, Permissions.READ_ONLY);
+        lm.acquireLock(page(0), tid2, Permissions.READ_ONLY);
+        lm.acquireLock(page(1), tid2, Permissions.READ_ONLY);
+        assertTrue(lm.holdsLock(tid1, page(0)));
+        assertTrue(lm.holdsLock(tid2, page(0)));
+        assertEquals(2, lm.getLockList(tid2).size());
+
+        lm.releaseLocksOnTransaction(tid1);
+        assertFalse(lm.holdsLock(tid1, page(0)));
+        assertNull(lm.getLockList(tid1));
+        assertTrue(lm.tryAcquireSharedLock(page(0), tid1));
+
+        // tid2 still reads page 0, so tid1 cannot write it
+        Locker writer = new Locker(tid1, page(0), Permissions.READ_WRITE);
+        writer.start();
+        writer.join(TIMEOUT);
+        assertFalse(writer.acquired);
+        lm.releaseLocksOnTransaction(tid2);
+        writer.join(TIMEOUT);
+        assertTrue(writer.acquired);
+    }
+
+    /**
+     * Unit test for a writer waiting until every fast-path reader is gone,
+     * and for readers arriving after it waiting behind it
+     */
+    @Test public void writerWaitsForReaders() throws Exception {
+        TransactionId reader1 = new TransactionId();
+        TransactionId reader2 = new TransactionId();
+        lm.acquireLock(page(0), reader1, Permissions.READ_ONLY);
+        lm.acquireLock(page(0), reader2, Permissions.READ_ONLY);
+
+        Locker writer = new Locker(new TransactionId(), page(0), Permissions.READ_WRITE);
+        writer.start();
+        writer.join(TIMEOUT);
+        assertFalse(writer.acquired);
+        assertFalse(lm.tryAcquireSharedLock(page(0), new TransactionId()));
+
+        lm.releaseLock(reader1, page(0));
+        writer.join(TIMEOUT);
+        assertFalse(writer.acquired);
+        lm.releaseLock(reader2, page(0));
+        writer.join(TIMEOUT);
+        assertTrue(writer.acquired);
+        assertNull(writer.error);
+
+        lm.releaseLocksOnTransaction(writer.tid);
+        assertTrue(lm.tryAcquireSharedLock(page(0), reader1));
+    }
+
+    /**
+     * Unit test for two fast-path readers upgrading to write locks: one of
+     * them is aborted, the other gets the lock
+     */
+    @Test public void upgradeDeadlock() throws Exception {
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        lm.acquireLock(page(0), tid1, Permissions.READ_ONLY);
+        lm.acquireLock(page(0), tid2, Permissions.READ_ONLY);
+
+        Locker upgrade1 = new Locker(tid1, page(0), Permissions.READ_WRITE);
+        upgrade1.start();
+        upgrade1.join(TIMEOUT);
+        assertFalse(upgrade1.acquired);
+
+        Locker upgrade2 = new Locker(tid2, page(0), Permissions.READ_WRITE);
+        upgrade2.start();
+        upgrade2.join(TIMEOUT);
+        assertTrue(upgrade2.error instanceof TransactionAbortedException);
+
+        lm.releaseLocksOnTransaction(tid2);
+        upgrade1.join(TIMEOUT);
+        assertTrue(upgrade1.acquired);
+    }
+
+    /**
+     * Unit test for one wait closing two cycles: a reader upgrades while two
+     * other readers wait for its write locks, and both of them are aborted
+     */
+    @Test public void upgradeClosesTwoCycles() throws Exception {
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        TransactionId tid3 = new TransactionId();
+        lm.acquireLock(page(0), tid1, Permissions.READ_ONLY);
+        lm.acquireLock(page(0), tid2, Permissions.READ_ONLY);
+        lm.acquireLock(page(0), tid3, Permissions.READ_ONLY);
+        lm.acquireLock(page(1), tid1, Permissions.READ_WRITE);
+        lm.acquireLock(page(2), tid1, Permissions.READ_WRITE);
+
+        Locker wait2 = new Locker(tid2, page(1), Permissions.READ_WRITE);
+        wait2.start();
+        Locker wait3 = new Locker(tid3, page(2), Permissions.READ_WRITE);
+        wait3.start();
+        wait2.join(TIMEOUT);
+        wait3.join(TIMEOUT);
+        assertFalse(wait2.acquired);
+        assertFalse(wait3.acquired);
+
+        Locker upgrade = new Locker(tid1, page(0), Permissions.READ_WRITE);
+        upgrade.start();
+        wait2.join(TIMEOUT);
+        wait3.join(TIMEOUT);
+        assertTrue(wait2.error instanceof TransactionAbortedException);
+        assertTrue(wait3.error instanceof TransactionAbortedException);
+
+        lm.releaseLocksOnTransaction(tid2);
+        lm.releaseLocksOnTransaction(tid3);
+        upgrade.join(TIMEOUT);
+        assertTrue(upgrade.acquired);
+    }
+
+    /**
+     * Unit test for page locks being escalated to a table lock
+     */
+    @Test public void escalation() throws Exception {
+        lm.setEscalationThreshold(4);
+        TransactionId reader = new TransactionId();
+        for (int i = 0; i < 4; i++) {
+            lm.acquireLock(page(i), reader, Permissions.READ_ONLY);
+        }
+        assertEquals(0, lm.getLockList(reader).size());
+        assertEquals(Arrays.asList(TABLE_ID), lm.getTableLocks(reader));
+        assertTrue(lm.holdsLock(reader, page(10)));
+        assertTrue(lm.holdsLocks(reader));
+
+        // other readers are fine, writers wait for the table lock
+        lm.acquireLock(page(5), new TransactionId(), Permissions.READ_ONLY);
+        Locker writer = new Locker(new TransactionId(), page(6), Permissions.READ_WRITE);
+        writer.start();
+        writer.join(TIMEOUT);
+        assertFalse(writer.acquired);
+
+        lm.releaseLocksOnTransaction(reader);
+        writer.join(TIMEOUT);
+        assertTrue(writer.acquired);
+        assertNull(lm.getLockList(reader));
+    }
+
+    /**
+     * Unit test for escalation being skipped, rather than waited for, while
+     * another transaction writes the table
+     */
+    @Test public void escalationDoesNotWait() throws Exception {
+        lm.setEscalationThreshold(4);
+        TransactionId writer = new TransactionId();
+        lm.acquireLock(page(9), writer, Permissions.READ_WRITE);
+        TransactionId reader = new TransactionId();
+        for (int i = 0; i < 4; i++) {
+            lm.acquireLock(page(i), reader, Permissions.READ_ONLY);
+        }
+        assertEquals(4, lm.getLockList(reader).size());
+        assertTrue(lm.getTableLocks(reader).isEmpty());
+        assertFalse(lm.holdsLock(reader, page(9)));
+    }
+
+    /**
+     * Unit test for readers on several threads sharing pages: each takes its
+     * shared locks without waiting while all the others hold theirs
+     */
+    @Test public void concurrentReaders() throws Exception {
+        final int pages = 8;
+        final int threads = 4;
+        final int rounds = 50;
+        final CyclicBarrier allHeld = new CyclicBarrier(threads);
+        final Exception[] error = new Exception[1];
+        final AtomicInteger waited = new AtomicInteger(0);
+        Thread[] readers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            readers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int r = 0; r < rounds; r++) {
+                            TransactionId tid = new TransactionId();
+                            for (int p = 0; p < pages; p++) {
+                                if (!lm.tryAcquireSharedLock(page(p), tid)) {
+                                    waited.incrementAndGet();
+                                }
+                            }
+                            // every reader holds all its locks at once here
+                            allHeld.await(10, TimeUnit.SECONDS);
+                            lm.releaseLocksOnTransaction(tid);
+                        }
+                    } catch (Exception e) {
+                        error[0] = e;
+                    }
+                }
+            };
+            readers[i].setDaemon(true);
+            readers[i].start();
+        }
+        for (Thread t : readers) {
+            t.join();
+        }
+        assertNull(error[0]);
+        assertEquals(0, waited.get());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
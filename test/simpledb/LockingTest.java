@@ -3,6 +3,8 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertNull;
 import junit.framework.JUnit4TestAdapter;
 
@@ -186,6 +188,42 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * Queues a write lock behind a read lock; later read locks queue behind
+   * the writer instead of starving it, and are granted together after it.
+   */
+  @Test public void writerNotStarvedByReaders() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    TransactionId tid4 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    TestUtil.LockGrabber reader3 = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber reader4 = new TestUtil.LockGrabber(tid4, p0, Permissions.READ_ONLY);
+    reader3.start();
+    reader4.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired());
+    assertFalse(reader3.acquired());
+    assertFalse(reader4.acquired());
+
+    bp.transactionComplete(tid1);
+    Thread.sleep(TIMEOUT);
+    assertTrue(writer.acquired());
+    assertFalse(reader3.acquired());
+
+    bp.transactionComplete(tid2);
+    Thread.sleep(TIMEOUT);
+    assertTrue(reader3.acquired());
+    assertTrue(reader4.acquired());
+    assertNull(reader3.getError());
+    bp.transactionComplete(tid3);
+    bp.transactionComplete(tid4);
+  }
+
   /**
    * JUnit suite target
    */
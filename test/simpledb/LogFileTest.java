@@ -0,0 +1,420 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+    private File file;
+    private HeapFile hf;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        // keep the background writer from writing pages behind our back
+        System.setProperty(PageWriter.INTERVAL_PROPERTY, "600000");
+        super.setUp();
+        file = File.createTempFile("logfiletest", ".dat");
+        Utility.deleteOnExit(file);
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    @After public void tearDown() {
+        System.clearProperty(PageWriter.INTERVAL_PROPERTY);
+    }
+
+    private void insert(Transaction t, int v) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(v, 2));
+    }
+
+    /** Return the number of tuples of hf with v in their first field. */
+    private int count(int v) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            if (((IntField) it.next().getField(0)).getValue() == v) {
+                n++;
+            }
+        }
+        it.close();
+        t.commit();
+        return n;
+    }
+
+    /** Return the number of tuples stored in hf's file, bypassing the cache. */
+    private int countOnDisk() throws Exception {
+        int n = 0;
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            for (Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next()) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private void crash() throws Exception {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * Unit test for a commit under NO-FORCE only writing the log, and for
+     * recovery redoing it
+     */
+    @Test public void redoCommitted() throws Exception {
+        Database.getBufferPool().setForce(false);
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 1);
+        insert(t, 2);
+        t.commit();
+        assertEquals(0, countOnDisk());
+
+        crash();
+        assertEquals(2, countOnDisk());
+        assertEquals(1, count(1));
+        assertEquals(1, count(2));
+    }
+
+    /**
+     * Unit test for an abort rolling back a page that was already written
+     */
+    @Test public void undoStolenPage() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 1);
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        insert(t, 2);
+        Database.getBufferPool().flushAllPages();
+        assertEquals(2, countOnDisk());
+        t.abort();
+        assertEquals(1, countOnDisk());
+        assertEquals(1, count(1));
+        assertEquals(0, count(2));
+    }
+
+    /**
+     * Unit test for an abort keeping a commit under NO-FORCE that is not
+     * written yet on the same page
+     */
+    @Test public void abortKeepsUnwrittenCommit() throws Exception {
+        Database.getBufferPool().setForce(false);
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 1);
+        t.commit();
+        assertEquals(0, countOnDisk());
+
+        t = new Transaction();
+        t.start();
+        insert(t, 2);
+        t.abort();
+        assertEquals(1, count(1));
+        assertEquals(0, count(2));
+
+        Database.getBufferPool().flushAllPages();
+        assertEquals(1, countOnDisk());
+    }
+
+    /**
+     * Unit test for recovery undoing transactions that were running at the
+     * crash, and keeping those that committed or aborted before it
+     */
+    @Test public void undoLosers() throws Exception {
+        Transaction committed = new Transaction();
+        committed.start();
+        insert(committed, 1);
+        committed.commit();
+
+        Transaction aborted = new Transaction();
+        aborted.start();
+        insert(aborted, 2);
+        Database.getBufferPool().flushAllPages();
+        aborted.abort();
+
+        Database.getLogFile().logCheckpoint();
+
+        Transaction running = new Transaction();
+        running.start();
+        insert(running, 3);
+        Database.getBufferPool().flushAllPages();
+        assertEquals(2, countOnDisk());
+
+        crash();
+        assertEquals(1, countOnDisk());
+        assertEquals(1, count(1));
+        assertEquals(0, count(2));
+        assertEquals(0, count(3));
+
+        // the rollback is logged, so recovering again changes nothing
+        crash();
+        assertEquals(1, count(1));
+        assertEquals(0, count(3));
+    }
+
+    /**
+     * Unit test for STEAL writing out pages of a running transaction when
+     * the pool is full, and for the abort rolling them back
+     */
+    @Test public void stealOnEviction() throws Exception {
+        Database.resetBufferPool(2);
+        Database.getBufferPool().setSteal(true);
+        Database.getBufferPool().getPrefetcher().setWindow(0);
+        Transaction t = new Transaction();
+        t.start();
+        // fill three pages; only two fit in the pool
+        for (int i = 0; i < 3 * 504; i++) {
+            insert(t, 1);
+        }
+        assertEquals(3, hf.numPages());
+        t.abort();
+        assertEquals(0, countOnDisk());
+        assertEquals(0, count(1));
+    }
+
+    /**
+     * Unit test for records being buffered until the log is forced
+     */
+    @Test public void appendsAreBuffered() throws Exception {
+        LogFile log = Database.getLogFile();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long length = log.bytesOnDisk();
+        TransactionId other = new TransactionId();
+        log.logXactionBegin(other);
+        assertEquals(length, log.bytesOnDisk());
+
+        // BEGIN and COMMIT records are 20 bytes each
+        log.logCommit(tid);
+        assertEquals(length + 3 * 20, log.bytesOnDisk());
+    }
+
+    /**
+     * Unit test for pages being stamped with the LSN of their log record,
+     * and for the log being durable that far before they are written
+     */
+    @Test public void writeAheadToPageLsn() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 1);
+        LogFile log = Database.getLogFile();
+        long durable = log.getDurableLsn();
+        Page page = Database.getBufferPool().getPage(t.getId(),
+                new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        assertEquals(0, page.getLsn());
+
+        Database.getBufferPool().flushAllPages();
+        assertTrue(page.getLsn() > durable);
+        assertTrue(page.getLsn() <= log.getDurableLsn());
+        t.commit();
+    }
+
+    /**
+     * Unit test for an update of one tuple logging the bytes it changed,
+     * not images of the whole page
+     */
+    @Test public void smallUpdateRecords() throws Exception {
+        LogFile log = Database.getLogFile();
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 1);
+        log.force();
+        long length = log.bytesOnDisk();
+        Database.getBufferPool().flushAllPages();
+        long recordSize = log.bytesOnDisk() - length;
+        assertTrue("UPDATE record of " + recordSize + " bytes",
+                recordSize < BufferPool.getPageSize() / 20);
+        t.commit();
+    }
+
+    /** Return the number of tuples of bf with v in their first field. */
+    private int count(BTreeFile bf, int v) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = bf.iterator(t.getId());
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            if (((IntField) it.next().getField(0)).getValue() == v) {
+                n++;
+            }
+        }
+        it.close();
+        t.commit();
+        return n;
+    }
+
+    /**
+     * Unit test for an update of one tuple of a B+ tree, whose pages do not
+     * track their changes, logging only the bytes it changed
+     */
+    @Test public void smallBTreeUpdateRecords() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 100, 1000, null, null, 0);
+        LogFile log = Database.getLogFile();
+        Transaction t = new Transaction();
+        t.start();
+        // larger than every key, so it goes after the last tuple of the leaf
+        Database.getBufferPool().insertTuple(t.getId(), bf.getId(), Utility.getHeapTuple(2000, 2));
+        log.force();
+        long length = log.bytesOnDisk();
+        Database.getBufferPool().flushAllPages();
+        long recordSize = log.bytesOnDisk() - length;
+        assertTrue("UPDATE records of " + recordSize + " bytes",
+                recordSize < BufferPool.getPageSize() / 20);
+        t.commit();
+    }
+
+    /**
+     * Unit test for recovery of a B+ tree page whose bytes a transaction
+     * changed in one logged write and changed back in the next
+     */
+    @Test public void redoBTreeChangedBack() throws Exception {
+        Database.getBufferPool().setForce(false);
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 100, 1000, null, null, 0);
+        Transaction t = new Transaction();
+        t.start();
+        Tuple tup = Utility.getHeapTuple(2000, 2);
+        Database.getBufferPool().insertTuple(t.getId(), bf.getId(), tup);
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().deleteTuple(t.getId(), tup);
+        Database.getBufferPool().flushAllPages();
+        t.commit();
+        assertEquals(0, count(bf, 2000));
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        bf = BTreeUtility.openBTreeFile(2, bf.getFile(), 0);
+        Database.getLogFile().recover();
+        assertEquals(0, count(bf, 2000));
+    }
+
+    /**
+     * Unit test for a checkpoint leaving dirty pages in the pool, and for
+     * recovery redoing a committed update that is older than the
+     * checkpoint because its page was listed as dirty
+     */
+    @Test public void fuzzyCheckpoint() throws Exception {
+        Database.getBufferPool().setForce(false);
+        Transaction committed = new Transaction();
+        committed.start();
+        insert(committed, 1);
+        committed.commit();
+
+        // dirties the page again, so the checkpoint cannot write it
+        Transaction running = new Transaction();
+        running.start();
+        insert(running, 2);
+        Database.getLogFile().logCheckpoint();
+        assertEquals(0, countOnDisk());
+
+        crash();
+        assertEquals(1, countOnDisk());
+        assertEquals(1, count(1));
+        assertEquals(0, count(2));
+    }
+
+    /**
+     * Unit test for truncation deleting the segments recovery no longer
+     * needs, and keeping those of a running transaction
+     */
+    @Test public void truncateDeletesSegments() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setSegmentSize(100);
+        Transaction running = new Transaction();
+        running.start();
+        insert(running, 1);
+        Database.getBufferPool().flushAllPages();
+        for (int i = 0; i < 20; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+        }
+        int segments = log.numSegments();
+        assertTrue(segments > 5);
+
+        // the running transaction still needs everything since its BEGIN
+        log.logCheckpoint();
+        assertTrue(log.numSegments() >= segments);
+        running.abort();
+        assertEquals(0, countOnDisk());
+
+        log.logCheckpoint();
+        assertTrue(log.numSegments() <= 2);
+
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 2);
+        t.commit();
+        crash();
+        assertEquals(0, count(1));
+        assertEquals(1, count(2));
+    }
+
+    /**
+     * Unit test for concurrent commits sharing forces of the log
+     */
+    @Test public void groupCommit() throws Exception {
+        final int threads = 8;
+        final int commitsPerThread = 50;
+        final LogFile log = Database.getLogFile();
+        final AtomicInteger commits = new AtomicInteger(0);
+        final Exception[] error = new Exception[1];
+        long forcesBefore = log.getForceCount();
+        Thread[] committers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            committers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < commitsPerThread; j++) {
+                            TransactionId tid = new TransactionId();
+                            log.logXactionBegin(tid);
+                            log.logCommit(tid);
+                            commits.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        error[0] = e;
+                    }
+                }
+            };
+            committers[i].start();
+        }
+        for (Thread t : committers) {
+            t.join();
+        }
+        assertNull(error[0]);
+        assertEquals(threads * commitsPerThread, commits.get());
+        long forces = log.getForceCount() - forcesBefore;
+        assertTrue(forces + " forces for " + commits.get() + " commits",
+                forces > 0 && forces < commits.get());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
@@ -0,0 +1,80 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class MappedFileTest extends SimpleDbTestBase {
+
+    private static final int PAGE = 4096;
+
+    private File f;
+    private MappedFile mf;
+
+    @Before public void createFile() throws Exception {
+        f = File.createTempFile("mapped", ".dat");
+        f.deleteOnExit();
+        mf = new MappedFile(f);
+    }
+
+    @After public void closeFile() throws Exception {
+        mf.close();
+    }
+
+    private static byte[] page(int n) {
+        byte[] data = new byte[PAGE];
+        for (int i = 0; i < PAGE; i++) {
+            data[i] = (byte) (n + i);
+        }
+        return data;
+    }
+
+    /**
+     * Unit test for MappedFile reads as the file grows past the mapping
+     */
+    @Test public void readWhileGrowing() throws Exception {
+        int pages = (int) (4 * MappedFile.REMAP_THRESHOLD / PAGE);
+        for (int n = 0; n < pages; n++) {
+            mf.write((long) n * PAGE, page(n));
+            // re-read every page written so far, mapped or not
+            for (int m = Math.max(0, n - 3); m <= n; m++) {
+                byte[] buf = new byte[PAGE];
+                assertEquals(PAGE, mf.read((long) m * PAGE, buf));
+                assertArrayEquals(page(m), buf);
+            }
+        }
+        assertEquals((long) pages * PAGE, mf.size());
+
+        // overwrite a page that is now mapped
+        mf.write(0, page(42));
+        byte[] buf = new byte[PAGE];
+        mf.read(0, buf);
+        assertArrayEquals(page(42), buf);
+    }
+
+    /**
+     * Unit test for MappedFile reads at an unaligned offset and past EOF
+     */
+    @Test public void readAtEnd() throws Exception {
+        mf.write(0, page(1));
+        byte[] buf = new byte[PAGE];
+        assertEquals(PAGE - 9, mf.read(9, buf));
+        assertEquals(0, mf.read(PAGE, buf));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MappedFileTest.class);
+    }
+}
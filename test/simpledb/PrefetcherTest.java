@@ -0,0 +1,133 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PrefetcherTest extends SimpleDbTestBase {
+
+    private static final int TABLE_PAGES = 40;
+    private static final int WINDOW = 8;
+
+    /** Counts the number of readPage operations. */
+    private static class CountingHeapFile extends HeapFile {
+        int readCount = 0;
+
+        CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public synchronized Page readPage(PageId pid) {
+            readCount++;
+            return super.readPage(pid);
+        }
+    }
+
+    private CountingHeapFile hf;
+    private BufferPool bp;
+    private Prefetcher prefetcher;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * TABLE_PAGES, 1000, null, null);
+        hf = new CountingHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        bp = Database.resetBufferPool(4 * WINDOW);
+        prefetcher = bp.getPrefetcher();
+        prefetcher.setWindow(WINDOW);
+    }
+
+    private HeapPageId page(int n) {
+        return new HeapPageId(hf.getId(), n);
+    }
+
+    /**
+     * Unit test for read-ahead starting once a scan is sequential
+     */
+    @Test public void readsAheadOfSequentialScan() throws Exception {
+        Prefetcher.Stream stream = prefetcher.stream(hf);
+        stream.access(page(0));
+        prefetcher.awaitIdle();
+        assertEquals(0, prefetcher.getPagesRead());
+
+        stream.access(page(1));
+        prefetcher.awaitIdle();
+        assertEquals(WINDOW, prefetcher.getPagesRead());
+        for (int i = 2; i < 2 + WINDOW; i++) {
+            assertTrue(bp.isCached(page(i)));
+        }
+    }
+
+    /**
+     * Unit test for random page accesses not being read ahead
+     */
+    @Test public void ignoresRandomAccess() throws Exception {
+        Prefetcher.Stream stream = prefetcher.stream(hf);
+        int[] pages = { 7, 3, 20, 11, 30, 2 };
+        for (int n : pages) {
+            stream.access(page(n));
+        }
+        prefetcher.awaitIdle();
+        assertEquals(0, prefetcher.getPagesRead());
+    }
+
+    /**
+     * Unit test for a full scan reading every page exactly once, mostly
+     * through read-ahead
+     */
+    @Test public void scanUsesReadAheadPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int tuples = 0;
+        while (it.hasNext()) {
+            it.next();
+            tuples++;
+            if (tuples == 504 + 1) {
+                // the scan is on its second page; let read-ahead catch up
+                prefetcher.awaitIdle();
+            }
+        }
+        it.close();
+        prefetcher.awaitIdle();
+
+        assertEquals(504 * TABLE_PAGES, tuples);
+        assertEquals(TABLE_PAGES, hf.readCount);
+        assertEquals(TABLE_PAGES, prefetcher.getHits() + prefetcher.getMisses());
+        assertTrue(prefetcher.getHits() >= WINDOW);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for a window of 0 turning read-ahead off
+     */
+    @Test public void zeroWindowDisables() throws Exception {
+        prefetcher.setWindow(0);
+        Prefetcher.Stream stream = prefetcher.stream(hf);
+        for (int i = 0; i < TABLE_PAGES; i++) {
+            stream.access(page(i));
+        }
+        prefetcher.awaitIdle();
+        assertEquals(0, prefetcher.getPagesRead());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PrefetcherTest.class);
+    }
+}
@@ -149,6 +149,25 @@ public class TestUtil {
         }
     }
 
+    /**
+     * Read all of an open OpIterator a batch at a time, checking that no
+     * batch is empty, and return its rows as an open TupleIterator.
+     */
+    public static TupleIterator readBatches(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        TupleBatch batch;
+        while ((batch = it.nextBatch()) != null) {
+            assertTrue(batch.size() > 0);
+            for (int i = 0; i < batch.size(); i++) {
+                tuples.add(batch.getTuple(i));
+            }
+        }
+        TupleIterator result = new TupleIterator(it.getTupleDesc(), tuples);
+        result.open();
+        return result;
+    }
+
     /**
      * Verifies that the OpIterator has been exhausted of all elements.
      */
@@ -379,7 +398,7 @@ public class TestUtil {
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-            emptyFile.deleteOnExit();
+            Utility.deleteOnExit(emptyFile);
         }
 
         protected void setUp() throws Exception {
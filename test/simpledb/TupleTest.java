@@ -1,6 +1,12 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Test;
@@ -57,6 +63,34 @@ public class TupleTest extends SimpleDbTestBase {
 	}
     }
 
+    /**
+     * Unit test for tuples that are views over serialized bytes
+     */
+    @Test public void viewOverBytes() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE });
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.write(new byte[3]);
+        new IntField(-7).serialize(dos);
+        new StringField("hello", Type.STRING_LEN).serialize(dos);
+        new IntField(1 << 20).serialize(dos);
+        byte[] data = baos.toByteArray();
+
+        Tuple tup = new Tuple(td, data, 3);
+        assertTrue(tup.isViewOf(data, 3));
+        assertEquals(new IntField(1 << 20), tup.getField(2));
+        assertEquals(new StringField("hello", Type.STRING_LEN), tup.getField(1));
+        assertEquals(new IntField(-7), tup.getField(0));
+        assertTrue(tup.isViewOf(data, 3));
+
+        // changing a field detaches the tuple from the bytes
+        tup.setField(0, new IntField(5));
+        assertFalse(tup.isViewOf(data, 3));
+        assertEquals(new IntField(5), tup.getField(0));
+        assertEquals(new StringField("hello", Type.STRING_LEN), tup.getField(1));
+        assertEquals(3, tup.getFields().size());
+    }
+
     /**
      * JUnit suite target
      */
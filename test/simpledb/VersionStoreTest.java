@@ -0,0 +1,94 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class VersionStoreTest extends TestUtil.CreateHeapFile {
+
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        empty.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        bp.transactionComplete(tid);
+    }
+
+    private int count(TransactionId tid) throws Exception {
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * Unit test for a snapshot transaction reading the committed state as of
+     * its start, without blocking or being blocked by a writer
+     */
+    @Test public void readsSnapshot() throws Exception {
+        TransactionId snapshot = new TransactionId(true);
+        assertEquals(1, count(snapshot));
+
+        // the snapshot holds no lock the writer could wait for
+        TransactionId writer = new TransactionId();
+        empty.insertTuple(writer, Utility.getHeapTuple(2, 2));
+        assertEquals(1, count(snapshot));
+        bp.transactionComplete(writer);
+        assertEquals(1, count(snapshot));
+
+        TransactionId later = new TransactionId(true);
+        assertEquals(2, count(later));
+        assertEquals(1, bp.getVersions().numVersions());
+
+        bp.transactionComplete(snapshot);
+        bp.transactionComplete(later);
+        assertEquals(0, bp.getVersions().numVersions());
+    }
+
+    /**
+     * Unit test for commits keeping no versions while no snapshot runs
+     */
+    @Test public void noVersionsWithoutSnapshots() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            TransactionId writer = new TransactionId();
+            empty.insertTuple(writer, Utility.getHeapTuple(i, 2));
+            bp.transactionComplete(writer);
+        }
+        assertEquals(0, bp.getVersions().numVersions());
+        TransactionId snapshot = new TransactionId(true);
+        assertEquals(4, count(snapshot));
+        bp.transactionComplete(snapshot);
+    }
+
+    /**
+     * Unit test for snapshot transactions not writing
+     */
+    @Test(expected = DbException.class) public void snapshotIsReadOnly() throws Exception {
+        TransactionId snapshot = new TransactionId(true);
+        try {
+            bp.getPage(snapshot, new HeapPageId(empty.getId(), 0), Permissions.READ_WRITE);
+        } finally {
+            bp.transactionComplete(snapshot);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(VersionStoreTest.class);
+    }
+}